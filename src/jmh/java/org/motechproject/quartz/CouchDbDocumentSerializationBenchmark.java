@@ -0,0 +1,179 @@
+package org.motechproject.quartz;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.ektorp.impl.StdObjectMapperFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.quartz.JobDataMap;
+import org.quartz.JobDetail;
+import org.quartz.impl.calendar.HolidayCalendar;
+import org.quartz.impl.triggers.CronTriggerImpl;
+import org.quartz.impl.triggers.SimpleTriggerImpl;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.quartz.CronScheduleBuilder.cronSchedule;
+import static org.quartz.JobBuilder.newJob;
+import static org.quartz.SimpleScheduleBuilder.simpleSchedule;
+import static org.quartz.TriggerBuilder.newTrigger;
+
+/**
+ * Measures how fast the documents of the store are mapped to and from JSON by the object mapper ektorp uses.
+ * Run with {@code mvn -Pbenchmarks test-compile exec:exec}, which adds {@code -prof gc} for the allocation per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CouchDbDocumentSerializationBenchmark {
+
+    private static final ObjectMapper MAPPER = new StdObjectMapperFactory().createObjectMapper();
+
+    @State(Scope.Benchmark)
+    public static class Triggers {
+
+        /* number of entries in the trigger's JobDataMap */
+        @Param({"0", "20"})
+        public int jobDataEntries;
+
+        CouchDbSimpleTrigger simpleTrigger;
+        CouchDbCronTrigger cronTrigger;
+        String simpleTriggerJson;
+        String cronTriggerJson;
+
+        @Setup
+        public void setup() throws Exception {
+            Date start = new Date(System.currentTimeMillis() + 60000);
+            SimpleTriggerImpl simple = (SimpleTriggerImpl) newTrigger()
+                    .withIdentity("simple-trigger", "benchmark-group")
+                    .forJob("benchmark-job", "benchmark-group")
+                    .usingJobData(jobData(jobDataEntries))
+                    .startAt(start)
+                    .withSchedule(simpleSchedule().withIntervalInMinutes(5).repeatForever())
+                    .build();
+            simple.computeFirstFireTime(null);
+            CronTriggerImpl cron = (CronTriggerImpl) newTrigger()
+                    .withIdentity("cron-trigger", "benchmark-group")
+                    .forJob("benchmark-job", "benchmark-group")
+                    .usingJobData(jobData(jobDataEntries))
+                    .startAt(start)
+                    .withSchedule(cronSchedule("0 0/15 8-18 ? * MON-FRI"))
+                    .build();
+            cron.computeFirstFireTime(null);
+
+            simpleTrigger = new CouchDbSimpleTrigger(simple);
+            simpleTrigger.setRevision("12-967a00dff5e02add41819138abb3284d");
+            cronTrigger = new CouchDbCronTrigger(cron);
+            cronTrigger.setRevision("12-967a00dff5e02add41819138abb3284d");
+            simpleTriggerJson = MAPPER.writeValueAsString(simpleTrigger);
+            cronTriggerJson = MAPPER.writeValueAsString(cronTrigger);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Jobs {
+
+        @Param({"2", "50"})
+        public int jobDataEntries;
+
+        CouchDbJobDetail job;
+        String jobJson;
+
+        @Setup
+        public void setup() throws Exception {
+            JobDetail jobDetail = newJob(JobListener.class)
+                    .withIdentity("benchmark-job", "benchmark-group")
+                    .withDescription("sends the reminders of a patient's appointment")
+                    .usingJobData(jobData(jobDataEntries))
+                    .storeDurably()
+                    .build();
+            job = new CouchDbJobDetail(jobDetail);
+            job.setRevision("3-1f0e2b5e6c3d3cbb5bbd29bd6e8a5c8e");
+            jobJson = MAPPER.writeValueAsString(job);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Calendars {
+
+        /* number of excluded days, a year of holidays being the large end */
+        @Param({"10", "365"})
+        public int excludedDays;
+
+        CouchDbCalendar calendar;
+        String calendarJson;
+
+        @Setup
+        public void setup() throws Exception {
+            HolidayCalendar holidays = new HolidayCalendar();
+            long day = TimeUnit.DAYS.toMillis(1);
+            long first = new Date().getTime();
+            for (int i = 0; i < excludedDays; i++) {
+                holidays.addExcludedDate(new Date(first + i * day));
+            }
+            calendar = new CouchDbCalendar("holidays", holidays);
+            calendar.setRevision("7-0c4a5b8f3b2c1d4e5f60718293a4b5c6");
+            calendarJson = MAPPER.writeValueAsString(calendar);
+        }
+    }
+
+    @Benchmark
+    public String serializeSimpleTrigger(Triggers triggers) throws Exception {
+        return MAPPER.writeValueAsString(triggers.simpleTrigger);
+    }
+
+    @Benchmark
+    public CouchDbTrigger deserializeSimpleTrigger(Triggers triggers) throws Exception {
+        return MAPPER.readValue(triggers.simpleTriggerJson, CouchDbTrigger.class);
+    }
+
+    @Benchmark
+    public String serializeCronTrigger(Triggers triggers) throws Exception {
+        return MAPPER.writeValueAsString(triggers.cronTrigger);
+    }
+
+    @Benchmark
+    public CouchDbTrigger deserializeCronTrigger(Triggers triggers) throws Exception {
+        return MAPPER.readValue(triggers.cronTriggerJson, CouchDbTrigger.class);
+    }
+
+    @Benchmark
+    public String serializeJobDetail(Jobs jobs) throws Exception {
+        return MAPPER.writeValueAsString(jobs.job);
+    }
+
+    @Benchmark
+    public CouchDbJobDetail deserializeJobDetail(Jobs jobs) throws Exception {
+        return MAPPER.readValue(jobs.jobJson, CouchDbJobDetail.class);
+    }
+
+    @Benchmark
+    public String serializeCalendar(Calendars calendars) throws Exception {
+        return MAPPER.writeValueAsString(calendars.calendar);
+    }
+
+    /* the calendar is only deserialized on first use, which is what every fire of a trigger modified by it does */
+    @Benchmark
+    public Object deserializeCalendar(Calendars calendars) throws Exception {
+        return MAPPER.readValue(calendars.calendarJson, CouchDbCalendar.class).getCalendar();
+    }
+
+    private static JobDataMap jobData(int entries) {
+        JobDataMap jobData = new JobDataMap();
+        for (int i = 0; i < entries; i++) {
+            jobData.put("parameter" + i, "value of parameter " + i + " for the benchmark");
+        }
+        return jobData;
+    }
+}
@@ -0,0 +1,348 @@
+package org.motechproject.quartz;
+
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+import org.quartz.Job;
+import org.quartz.JobDetail;
+import org.quartz.JobExecutionContext;
+import org.quartz.Scheduler;
+import org.quartz.Trigger;
+import org.quartz.TriggerBuilder;
+import org.quartz.TriggerKey;
+import org.quartz.impl.DefaultThreadExecutor;
+import org.quartz.impl.DirectSchedulerFactory;
+import org.quartz.impl.calendar.HolidayCalendar;
+import org.quartz.listeners.TriggerListenerSupport;
+import org.quartz.simpl.SimpleThreadPool;
+import org.quartz.spi.OperableTrigger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.quartz.CalendarIntervalScheduleBuilder.calendarIntervalSchedule;
+import static org.quartz.CronScheduleBuilder.cronSchedule;
+import static org.quartz.JobBuilder.newJob;
+import static org.quartz.SimpleScheduleBuilder.simpleSchedule;
+import static org.quartz.TriggerBuilder.newTrigger;
+
+/**
+ * Runs a Quartz scheduler on a {@link CouchDbStore} against a {@link CouchDbStandIn} and measures how many fires per
+ * second it sustains, how late they run and how many HTTP requests each costs. For every dataset size the stand-in
+ * is preloaded with as many triggers, a third each simple, cron and calendar interval, half of them modified by a
+ * calendar, each firing once per interval. After a warm-up, fires are counted for the given duration and the lag of
+ * each, the time its job started minus its scheduled fire time, is recorded along with the store's phases of it, see
+ * {@link CouchDbFireStatistics}. Missed fires are not caught up, so an overloaded store shows in the misfire count
+ * rather than in an ever growing lag.
+ * <p/>
+ * Configured by system properties, results are printed as JSON and written to harness.output if given:
+ * <pre>
+ * mvn -Pbenchmarks test-compile exec:exec@harness -Dharness.args="-Dharness.triggers=10000,100000 -Xmx4g"
+ * </pre>
+ * Properties prefixed with harness.store. are handed to the store, e.g. -Dharness.store.db.triggerIndex.enabled=true.
+ */
+public class CouchDbSchedulerThroughputHarness {
+
+    private static final String[] KINDS = {"simple", "cron", "calendarInterval"};
+    private static final String CALENDAR_NAME = "harness-calendar";
+    private static final String STORE_PREFIX = "harness.store.";
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+    private static final String[] PHASES = {CouchDbFireStatistics.SCHEDULING, CouchDbFireStatistics.ACQUISITION,
+            CouchDbFireStatistics.WAITING, CouchDbFireStatistics.FIRING, CouchDbFireStatistics.EXECUTION};
+
+    private static volatile Measurement measurement;
+
+    private Logger logger = Logger.getLogger(CouchDbSchedulerThroughputHarness.class);
+
+    private final int intervalSeconds = Integer.getInteger("harness.interval", 60);
+    private final int warmupSeconds = Integer.getInteger("harness.warmup", 10);
+    private final int durationSeconds = Integer.getInteger("harness.duration", 60);
+    private final int threads = Integer.getInteger("harness.threads", 10);
+    private final int batchSize = Integer.getInteger("harness.batchSize", 10);
+    private final long batchWindowMillis = Long.getLong("harness.batchWindow", 0);
+    private final int chunkSize = Integer.getInteger("harness.chunk", 1000);
+    private final long latencyMillis = Long.getLong("harness.latency", 0);
+    private final long latencyJitterMillis = Long.getLong("harness.latencyJitter", 0);
+
+    public static void main(String[] args) throws Exception, CouchDbJobStoreException {
+        CouchDbSchedulerThroughputHarness harness = new CouchDbSchedulerThroughputHarness();
+        ObjectNode result = harness.parameters();
+        ArrayNode runs = result.putArray("runs");
+        for (String triggers : System.getProperty("harness.triggers", "10000").split("\\s*,\\s*")) {
+            runs.add(harness.run(Integer.parseInt(triggers)));
+        }
+
+        ObjectMapper mapper = new ObjectMapper();
+        System.out.println(mapper.writerWithDefaultPrettyPrinter().writeValueAsString(result));
+        String output = System.getProperty("harness.output");
+        if (output != null) {
+            mapper.writerWithDefaultPrettyPrinter().writeValue(new File(output), result);
+        }
+    }
+
+    private ObjectNode parameters() {
+        ObjectNode parameters = JsonNodeFactory.instance.objectNode();
+        parameters.put("timestamp", new Date().getTime());
+        parameters.put("intervalSeconds", intervalSeconds);
+        parameters.put("warmupSeconds", warmupSeconds);
+        parameters.put("durationSeconds", durationSeconds);
+        parameters.put("threads", threads);
+        parameters.put("batchSize", batchSize);
+        parameters.put("batchWindowMillis", batchWindowMillis);
+        parameters.put("latencyMillis", latencyMillis);
+        parameters.put("latencyJitterMillis", latencyJitterMillis);
+        ObjectNode store = parameters.putObject("store");
+        for (Map.Entry<Object, Object> property : storeProperties().entrySet()) {
+            store.put(property.getKey().toString(), property.getValue().toString());
+        }
+        return parameters;
+    }
+
+    private ObjectNode run(int triggers) throws Exception, CouchDbJobStoreException {
+        CouchDbStandIn standIn = new CouchDbStandIn().start(0);
+        standIn.setLatency(latencyMillis, latencyJitterMillis);
+        Properties properties = storeProperties();
+        properties.setProperty("port", String.valueOf(standIn.getPort()));
+        CouchDbStore store = new CouchDbStore();
+        store.setProperties(properties);
+
+        String schedulerName = "harness-" + triggers;
+        SimpleThreadPool threadPool = new SimpleThreadPool(threads, Thread.NORM_PRIORITY);
+        threadPool.setMakeThreadsDaemons(true);
+        DirectSchedulerFactory.getInstance().createScheduler(schedulerName, schedulerName, threadPool, new DefaultThreadExecutor(),
+                store, null, null, 0, -1, -1, false, null, batchSize, batchWindowMillis);
+        Scheduler scheduler = DirectSchedulerFactory.getInstance().getScheduler(schedulerName);
+        Measurement current = new Measurement();
+        scheduler.getListenerManager().addTriggerListener(current);
+        store.addMetricsListener(current);
+        try {
+            long preloadStart = System.currentTimeMillis();
+            preload(store, triggers);
+            long preloadMillis = System.currentTimeMillis() - preloadStart;
+            logger.info("preloaded " + triggers + " triggers in " + preloadMillis + " ms");
+
+            measurement = current;
+            scheduler.start();
+            Thread.sleep(warmupSeconds * 1000L);
+
+            CouchDbMetrics metrics = store.getMetrics();
+            long requestsBefore = metrics.getHttpRequestCount();
+            current.start();
+            Thread.sleep(durationSeconds * 1000L);
+            current.stop();
+            long requests = metrics.getHttpRequestCount() - requestsBefore;
+
+            return current.result(triggers, preloadMillis, requests, (double) triggers / intervalSeconds);
+        } finally {
+            measurement = null;
+            scheduler.shutdown(false);
+            standIn.stop();
+        }
+    }
+
+    private Properties storeProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("host", "localhost");
+        properties.setProperty("maxConnections", String.valueOf(threads + 10));
+        properties.setProperty("connectionTimeout", "1000");
+        properties.setProperty("socketTimeout", "60000");
+        properties.setProperty("db.name", "scheduler-store");
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(STORE_PREFIX)) {
+                properties.setProperty(name.substring(STORE_PREFIX.length()), System.getProperty(name));
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Stores the triggers in bulk, one job for every chunk of them, their first fires spread evenly over the interval
+     * after the one the preload starts in.
+     */
+    private void preload(CouchDbStore store, int triggers) throws Exception {
+        HolidayCalendar calendar = new HolidayCalendar();
+        calendar.addExcludedDate(new Date(0));
+        store.storeCalendar(CALENDAR_NAME, calendar, false, false);
+
+        long intervalMillis = intervalSeconds * 1000L;
+        Date firstFire = new Date(System.currentTimeMillis() + intervalMillis);
+        for (int chunk = 0; chunk * chunkSize < triggers; chunk++) {
+            JobDetail job = newJob(FireJob.class).withIdentity("job-" + chunk, "harness").storeDurably().build();
+            List<Trigger> chunkTriggers = new ArrayList<Trigger>();
+            for (int i = chunk * chunkSize; i < Math.min(triggers, (chunk + 1) * chunkSize); i++) {
+                String kind = KINDS[i % KINDS.length];
+                TriggerBuilder<Trigger> builder = newTrigger()
+                        .withIdentity("trigger-" + i, kind)
+                        .forJob(job)
+                        .startAt(new Date(firstFire.getTime() + i * intervalMillis / triggers));
+                boolean withCalendar = (i / KINDS.length) % 2 == 1;
+                if (withCalendar) {
+                    builder.modifiedByCalendar(CALENDAR_NAME);
+                }
+                OperableTrigger trigger = (OperableTrigger) schedule(builder, kind, i).build();
+                trigger.computeFirstFireTime(withCalendar ? calendar : null);
+                chunkTriggers.add(trigger);
+            }
+            Map<JobDetail, List<Trigger>> triggersAndJobs = new HashMap<JobDetail, List<Trigger>>();
+            triggersAndJobs.put(job, chunkTriggers);
+            store.storeJobsAndTriggers(triggersAndJobs, false);
+        }
+    }
+
+    /**
+     * Cron triggers fire at a spread second of every interval, which should divide a minute, or of every minute if
+     * the interval is a minute or longer.
+     */
+    private TriggerBuilder<? extends Trigger> schedule(TriggerBuilder<Trigger> builder, String kind, int i) {
+        if ("simple".equals(kind)) {
+            return builder.withSchedule(simpleSchedule()
+                    .withIntervalInSeconds(intervalSeconds)
+                    .repeatForever()
+                    .withMisfireHandlingInstructionNextWithRemainingCount());
+        }
+        if ("cron".equals(kind)) {
+            String seconds = intervalSeconds < 60 ? (i % intervalSeconds) + "/" + intervalSeconds : String.valueOf(i % 60);
+            return builder.withSchedule(cronSchedule(seconds + " * * * * ?")
+                    .withMisfireHandlingInstructionDoNothing());
+        }
+        return builder.withSchedule(calendarIntervalSchedule()
+                .withIntervalInSeconds(intervalSeconds)
+                .withMisfireHandlingInstructionDoNothing());
+    }
+
+    public static class FireJob implements Job {
+        @Override
+        public void execute(JobExecutionContext context) {
+            Measurement current = measurement;
+            if (current != null) {
+                current.fired(context.getTrigger().getKey().getGroup(), System.currentTimeMillis() - context.getScheduledFireTime().getTime());
+            }
+        }
+    }
+
+    /**
+     * The fires, their lag and phases and the misfires of one run, counted while measuring.
+     */
+    static class Measurement extends TriggerListenerSupport implements CouchDbMetricsListener {
+
+        private final CouchDbHistogram lag = new CouchDbHistogram();
+        private final ConcurrentMap<String, CouchDbHistogram> lagByKind = new ConcurrentHashMap<String, CouchDbHistogram>();
+        private final ConcurrentMap<String, CouchDbFireStatistics> phasesByKind = new ConcurrentHashMap<String, CouchDbFireStatistics>();
+        private final AtomicLong misfires = new AtomicLong();
+        private volatile boolean measuring;
+        private long startMillis;
+        private long stopMillis;
+
+        Measurement() {
+            for (String kind : KINDS) {
+                lagByKind.put(kind, new CouchDbHistogram());
+                phasesByKind.put(kind, new CouchDbFireStatistics());
+            }
+        }
+
+        @Override
+        public String getName() {
+            return "harness-measurement";
+        }
+
+        @Override
+        public void triggerMisfired(Trigger trigger) {
+            if (measuring) {
+                misfires.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void operationCompleted(String operation, long durationMicros) {
+        }
+
+        @Override
+        public void requestCompleted(String method, String resource, int status, long durationMicros, long bytesSent, long bytesReceived) {
+        }
+
+        @Override
+        public void bulkWritten(int documents, int rejected, int conflicts) {
+        }
+
+        @Override
+        public void fireCompleted(TriggerKey key, long due, long acquisitionStarted, long acquired, long fireStarted, long fired, long completed) {
+            CouchDbFireStatistics statistics = phasesByKind.get(key.getGroup());
+            if (measuring && statistics != null) {
+                statistics.fired(due, acquisitionStarted, acquired, fireStarted, fired);
+                statistics.completed(fired, completed);
+            }
+        }
+
+        void start() {
+            startMillis = System.currentTimeMillis();
+            measuring = true;
+        }
+
+        void stop() {
+            measuring = false;
+            stopMillis = System.currentTimeMillis();
+        }
+
+        void fired(String kind, long lagMillis) {
+            if (!measuring) {
+                return;
+            }
+            lag.record(lagMillis);
+            CouchDbHistogram histogram = lagByKind.get(kind);
+            if (histogram != null) {
+                histogram.record(lagMillis);
+            }
+        }
+
+        ObjectNode result(int triggers, long preloadMillis, long requests, double offeredFiresPerSecond) {
+            ObjectNode result = JsonNodeFactory.instance.objectNode();
+            long fires = lag.getCount();
+            double seconds = (stopMillis - startMillis) / 1000.0;
+            result.put("triggers", triggers);
+            result.put("preloadMillis", preloadMillis);
+            result.put("offeredFiresPerSecond", offeredFiresPerSecond);
+            result.put("fires", fires);
+            result.put("firesPerSecond", fires / seconds);
+            result.put("misfires", misfires.get());
+            result.put("httpRequests", requests);
+            result.put("httpRequestsPerFire", fires == 0 ? 0 : (double) requests / fires);
+            result.put("lagMillis", percentiles(lag));
+            ObjectNode byKind = result.putObject("lagMillisByKind");
+            for (String kind : KINDS) {
+                byKind.put(kind, percentiles(lagByKind.get(kind)));
+            }
+            ObjectNode phases = result.putObject("storePhasesMillisByKind");
+            for (String kind : KINDS) {
+                CouchDbFireStatistics statistics = phasesByKind.get(kind);
+                ObjectNode kindPhases = phases.putObject(kind);
+                kindPhases.put("lag", percentiles(statistics.getLag()));
+                for (String phase : PHASES) {
+                    kindPhases.put(phase, percentiles(statistics.getPhase(phase)));
+                }
+            }
+            return result;
+        }
+
+        private static ObjectNode percentiles(CouchDbHistogram histogram) {
+            ObjectNode node = JsonNodeFactory.instance.objectNode();
+            node.put("count", histogram.getCount());
+            node.put("mean", histogram.getMean());
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                node.put(PERCENTILE_NAMES[i], histogram.getValueAtPercentile(PERCENTILES[i]));
+            }
+            node.put("max", histogram.getMax());
+            return node;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.motechproject.quartz;
+
+import org.apache.log4j.Logger;
+import org.ektorp.BulkDeleteDocument;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DocumentOperationResult;
+import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
+import org.quartz.JobPersistenceException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Deletes every document listed by a view keyed by document id with the revision as value. The view is read one
+ * page at a time and each page is deleted with a single _bulk_docs request.
+ * <p/>
+ * The repositories give it views of their own, all_*_revs: the older all_* views emit the id as value and are left
+ * as they were, since a changed view is only rewritten in existing databases with autoUpdateViewOnChange set.
+ */
+public class CouchDbBulkDeleter {
+
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private Logger logger = Logger.getLogger(CouchDbBulkDeleter.class);
+
+    private final CouchDbConnector db;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+    public CouchDbBulkDeleter(CouchDbConnector db) {
+        this.db = db;
+    }
+
+    public void setPageSize(int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Bulk page size must be larger than 0");
+        }
+        this.pageSize = pageSize;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return the number of documents deleted
+     * @throws JobPersistenceException if some documents could not be deleted; all others are deleted regardless
+     */
+    public int deleteAll(ViewQuery query) throws JobPersistenceException {
+        int deleted = 0;
+        List<String> failedIds = new ArrayList<String>();
+        String lastId = null;
+        while (true) {
+            ViewQuery pageQuery = query.clone().limit(pageSize);
+            if (lastId != null) {
+                pageQuery.startKey(lastId);
+            }
+            ViewResult page = db.queryView(pageQuery);
+
+            List<BulkDeleteDocument> deletions = new ArrayList<BulkDeleteDocument>();
+            for (ViewResult.Row row : page) {
+                if (!row.getId().equals(lastId)) {
+                    deletions.add(new BulkDeleteDocument(row.getId(), row.getValue()));
+                }
+            }
+            if (!deletions.isEmpty()) {
+                List<DocumentOperationResult> errors = db.executeBulk(deletions);
+                for (DocumentOperationResult error : errors) {
+                    logger.error(String.format("Could not delete %s: %s (%s)", error.getId(), error.getError(), error.getReason()));
+                    failedIds.add(error.getId());
+                }
+                deleted += deletions.size() - errors.size();
+                lastId = deletions.get(deletions.size() - 1).getId();
+            }
+            if (page.getSize() < pageSize || deletions.isEmpty()) {
+                break;
+            }
+        }
+        if (!failedIds.isEmpty()) {
+            throw new JobPersistenceException(deleted + " documents deleted, could not delete " + failedIds);
+        }
+        return deleted;
+    }
+}
@@ -0,0 +1,30 @@
+package org.motechproject.quartz;
+
+import org.quartz.JobPersistenceException;
+import org.quartz.utils.Key;
+
+import java.util.Map;
+
+/**
+ * Thrown when some of the jobs and triggers of a bulk store could not be written. Carries the reason for every
+ * job or trigger that failed; whether the others were kept or rolled back is told by {@link #isRolledBack()}.
+ */
+public class CouchDbBulkStoreException extends JobPersistenceException {
+
+    private final Map<Key<?>, String> failures;
+    private final boolean rolledBack;
+
+    public CouchDbBulkStoreException(Map<Key<?>, String> failures, boolean rolledBack) {
+        super("could not store " + failures + (rolledBack ? ", created documents rolled back" : ""));
+        this.failures = failures;
+        this.rolledBack = rolledBack;
+    }
+
+    public Map<Key<?>, String> getFailures() {
+        return failures;
+    }
+
+    public boolean isRolledBack() {
+        return rolledBack;
+    }
+}
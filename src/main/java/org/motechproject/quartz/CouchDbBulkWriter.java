@@ -0,0 +1,70 @@
+package org.motechproject.quartz;
+
+import org.codehaus.jackson.JsonNode;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DocumentOperationResult;
+import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Looks up the current revisions of many documents with one key-only _all_docs request and writes documents with
+ * _bulk_docs requests of at most pageSize documents each.
+ */
+public class CouchDbBulkWriter {
+
+    private final CouchDbConnector db;
+    private int pageSize = CouchDbBulkDeleter.DEFAULT_PAGE_SIZE;
+
+    public CouchDbBulkWriter(CouchDbConnector db) {
+        this.db = db;
+    }
+
+    public void setPageSize(int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Bulk page size must be larger than 0");
+        }
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @return the current revision by document id; ids of missing or deleted documents are left out
+     */
+    public Map<String, String> currentRevisions(Collection<String> ids) {
+        Map<String, String> revisions = new HashMap<String, String>();
+        if (ids.isEmpty()) {
+            return revisions;
+        }
+        ViewQuery query = new ViewQuery().allDocs().keys(new ArrayList<String>(ids));
+        query.setIgnoreNotFound(true);
+        for (ViewResult.Row row : db.queryView(query)) {
+            JsonNode value = row.getValueAsNode();
+            if (value != null && !value.path("deleted").getBooleanValue()) {
+                revisions.put(row.getId(), value.path("rev").getTextValue());
+            }
+        }
+        return revisions;
+    }
+
+    /**
+     * Writes the documents page by page; documents written successfully get their new revisions set.
+     *
+     * @return the rejected writes by document id
+     */
+    public Map<String, DocumentOperationResult> write(List<?> documents) {
+        Map<String, DocumentOperationResult> failures = new LinkedHashMap<String, DocumentOperationResult>();
+        for (int from = 0; from < documents.size(); from += pageSize) {
+            List<?> page = documents.subList(from, Math.min(from + pageSize, documents.size()));
+            for (DocumentOperationResult result : db.executeBulk(page)) {
+                failures.put(result.getId(), result);
+            }
+        }
+        return failures;
+    }
+}
@@ -20,6 +20,8 @@ public class CouchDbCalendar extends CouchDbDocument {
     private String name;
     @JsonIgnore
     private Calendar calendar;
+    @JsonIgnore
+    private byte[] calendarData;
 
     @JsonProperty
     private String type = "CouchDbCalendar";
@@ -31,13 +33,26 @@ public class CouchDbCalendar extends CouchDbDocument {
         this();
         this.calendar = calendar;
         this.name = name;
+        setId(toId(name));
+    }
+
+    public static String toId(String name) {
+        return "calendar:" + name;
     }
 
     public byte [] getCalendarAsStream() throws IOException {
+        if (calendar == null && calendarData != null) {
+            return calendarData;
+        }
         return serializeCalendar(calendar);
     }
+
+    /* the calendar is only deserialized when first asked for, so that a copy already
+       deserialized for the same revision can be handed in with setCalendar() instead
+     */
     public void setCalendarAsStream(byte [] data) throws IOException, ClassNotFoundException {
-        this.calendar = deserializeCalendar(data);
+        this.calendarData = data;
+        this.calendar = null;
     }
 
     private Calendar deserializeCalendar(byte[] data) throws IOException, ClassNotFoundException {
@@ -62,9 +77,25 @@ public class CouchDbCalendar extends CouchDbDocument {
 
     @JsonIgnore
     public Calendar getCalendar() {
+        if (calendar == null && calendarData != null && calendarData.length > 0) {
+            try {
+                calendar = deserializeCalendar(calendarData);
+            } catch (IOException e) {
+                throw new IllegalStateException("could not deserialize calendar " + name, e);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("could not deserialize calendar " + name, e);
+            }
+            calendarData = null;
+        }
         return calendar;
     }
 
+    @JsonIgnore
+    void setCalendar(Calendar calendar) {
+        this.calendar = calendar;
+        this.calendarData = null;
+    }
+
     @JsonIgnore
     public String getName() {
         return name;
@@ -1,24 +1,50 @@
 package org.motechproject.quartz;
 
 import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.ektorp.CouchDbConnector;
+import org.ektorp.StreamingViewResult;
 import org.ektorp.ViewResult;
+import org.ektorp.changes.DocumentChange;
+import org.ektorp.impl.StdObjectMapperFactory;
 import org.ektorp.support.CouchDbRepositorySupport;
 import org.ektorp.support.View;
+import org.quartz.Calendar;
 import org.quartz.JobPersistenceException;
 import org.quartz.ObjectAlreadyExistsException;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class CouchDbCalendarStore extends CouchDbRepositorySupport {
+public class CouchDbCalendarStore extends CouchDbRepositorySupport implements CouchDbChangeListener {
 
     private Logger logger = Logger.getLogger(CouchDbCalendarStore.class);
+    private final CouchDbBulkDeleter bulkDeleter;
+    private final ObjectMapper mapper;
+
+    private final ConcurrentMap<String, CachedCalendar> calendarCache = new ConcurrentHashMap<String, CachedCalendar>();
+    private final CouchDbChangedRevisions changedRevisions = new CouchDbChangedRevisions();
+    private volatile boolean cacheFollowsChanges;
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
 
     protected CouchDbCalendarStore(CouchDbConnector db) {
         super(CouchDbCalendar.class, db);
         initStandardDesignDocument();
+        this.bulkDeleter = new CouchDbBulkDeleter(db);
+        this.mapper = new StdObjectMapperFactory().createObjectMapper(db);
+    }
+
+    public void setBulkPageSize(int bulkPageSize) {
+        bulkDeleter.setPageSize(bulkPageSize);
     }
 
     public void storeCalendar(CouchDbCalendar couchdbCalendar, boolean replaceExisting) throws JobPersistenceException {
@@ -28,6 +54,8 @@ public class CouchDbCalendarStore extends CouchDbRepositorySupport {
             throw e;
         } catch (Exception e) {
             throw new JobPersistenceException(e.getMessage(), e);
+        } finally {
+            calendarCache.remove(couchdbCalendar.getName());
         }
     }
 
@@ -47,47 +75,188 @@ public class CouchDbCalendarStore extends CouchDbRepositorySupport {
     public boolean removeCalendar(String calName) throws JobPersistenceException {
         CouchDbCalendar calendar = get(calName);
         if (calendar == null) {
+            calendarCache.remove(calName);
             return false;
         }
         remove(calendar);
+        calendarCache.remove(calName);
         return true;
     }
 
-    @View(name = "by_calendarName", map = "function(doc) { if (doc.type === 'CouchDbCalendar') emit(doc.name, doc._id); }")
+    /**
+     * Loads the calendar by its id, derived from the name, falling back to the by_calendarName view for calendars
+     * stored with a generated id.
+     */
     public CouchDbCalendar get(String calName) {
-        List<CouchDbCalendar> calendars = db.queryView(createQuery("by_calendarName").key(calName).includeDocs(true), type);
-        return calendars != null && calendars.size() > 0 ? calendars.get(0) : null;
+        CouchDbCalendar calendar = db.find(CouchDbCalendar.class, CouchDbCalendar.toId(calName));
+        if (calendar != null) {
+            return resolve(calendar);
+        }
+        List<CouchDbCalendar> calendars = findLegacyCalendars(Arrays.asList(calName));
+        return calendars.isEmpty() ? null : calendars.get(0);
     }
 
+    /**
+     * Loads the calendars by their ids with one _all_docs request; the names not found that way are looked up in
+     * the by_calendarName view.
+     */
     public List<CouchDbCalendar> getCalendars(List<String> calendarNames) {
-        return db.queryView(createQuery("by_calendarName").includeDocs(true).keys(calendarNames), type);
+        List<CouchDbCalendar> calendars = new ArrayList<CouchDbCalendar>();
+        if (calendarNames.isEmpty()) {
+            return calendars;
+        }
+        List<String> ids = new ArrayList<String>();
+        for (String calendarName : calendarNames) {
+            ids.add(CouchDbCalendar.toId(calendarName));
+        }
+        Set<String> missingNames = new LinkedHashSet<String>(calendarNames);
+        for (CouchDbCalendar calendar : CouchDbDocumentLoader.loadAll(db, mapper, ids, CouchDbCalendar.class)) {
+            calendars.add(resolve(calendar));
+            missingNames.remove(calendar.getName());
+        }
+        if (!missingNames.isEmpty()) {
+            calendars.addAll(findLegacyCalendars(new ArrayList<String>(missingNames)));
+        }
+        return calendars;
+    }
+
+    /**
+     * Looks up calendars stored with a generated id before calendar ids were derived from their names.
+     */
+    @View(name = "by_calendarName", map = "function(doc) { if (doc.type === 'CouchDbCalendar') emit(doc.name, doc._id); }")
+    public List<CouchDbCalendar> findLegacyCalendars(List<String> calendarNames) {
+        List<CouchDbCalendar> calendars = db.queryView(createQuery("by_calendarName").includeDocs(true).keys(calendarNames), type);
+        for (CouchDbCalendar calendar : calendars) {
+            resolve(calendar);
+        }
+        return calendars;
+    }
+
+    /**
+     * Returns the named calendar. While the cache is kept current from the _changes feed a cached calendar is
+     * returned without asking CouchDB; otherwise the document is loaded and only deserialized if its revision
+     * is not cached yet. The calendar is handed out as a clone since callers are free to modify it.
+     */
+    public Calendar retrieveCalendar(String calName) {
+        Calendar calendar = findCalendar(calName);
+        return calendar != null ? (Calendar) calendar.clone() : null;
     }
 
+    /**
+     * Like {@link #retrieveCalendar(String)}, but returns the cached instance itself, which must not be modified.
+     */
+    Calendar findCalendar(String calName) {
+        if (cacheFollowsChanges) {
+            CachedCalendar cached = calendarCache.get(calName);
+            if (cached != null) {
+                cacheHits.incrementAndGet();
+                return cached.calendar;
+            }
+        }
+        CouchDbCalendar calendar = get(calName);
+        return calendar != null ? calendar.getCalendar() : null;
+    }
+
+    /**
+     * Hands the calendar already deserialized for the revision of the given document to it, or deserializes and
+     * caches it if that revision was not seen before. A revision older than one the _changes feed already
+     * reported is not cached, as its invalidation has been missed.
+     */
+    public CouchDbCalendar resolve(CouchDbCalendar couchdbCalendar) {
+        CachedCalendar cached = calendarCache.get(couchdbCalendar.getName());
+        if (cached != null && cached.revision.equals(couchdbCalendar.getRevision())) {
+            cacheHits.incrementAndGet();
+            couchdbCalendar.setCalendar(cached.calendar);
+        } else if (couchdbCalendar.getRevision() != null) {
+            cacheMisses.incrementAndGet();
+            CachedCalendar loaded = new CachedCalendar(couchdbCalendar.getId(), couchdbCalendar.getRevision(), couchdbCalendar.getCalendar());
+            synchronized (changedRevisions) {
+                if (!changedRevisions.isOutdated(loaded.id, loaded.revision)) {
+                    calendarCache.put(couchdbCalendar.getName(), loaded);
+                }
+            }
+        }
+        return couchdbCalendar;
+    }
+
+    /**
+     * @return the share of calendar lookups served without deserializing the calendar
+     */
+    public double getCacheHitRate() {
+        long requests = cacheHits.get() + cacheMisses.get();
+        return requests == 0 ? 0 : (double) cacheHits.get() / requests;
+    }
+
+    public void setCacheFollowsChanges(boolean cacheFollowsChanges) {
+        synchronized (changedRevisions) {
+            changedRevisions.clear();
+            calendarCache.clear();
+        }
+        this.cacheFollowsChanges = cacheFollowsChanges;
+    }
+
+    @Override
+    public void onChange(DocumentChange change) {
+        synchronized (changedRevisions) {
+            changedRevisions.record(change.getId(), change.getRevision());
+            for (Map.Entry<String, CachedCalendar> entry : calendarCache.entrySet()) {
+                if (entry.getValue().id.equals(change.getId()) && !entry.getValue().revision.equals(change.getRevision())) {
+                    calendarCache.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * @deprecated reads every calendar into memory at once, use {@link #iterateAll()}
+     */
+    @Deprecated
     @View(name = "all_calendars", map = "function(doc) { if (doc.type === 'CouchDbCalendar') emit(doc._id, doc._id); }")
     public List<CouchDbCalendar> getAll() {
         return db.queryView(createQuery("all_calendars").includeDocs(true), type);
     }
 
+    /**
+     * @return every calendar, read one bulk page at a time; the cursor has to be closed unless read to the end
+     */
+    public CouchDbViewCursor<CouchDbCalendar> iterateAll() {
+        return new CouchDbViewCursor<CouchDbCalendar>(db, mapper, createQuery("all_calendars"), CouchDbCalendar.class, bulkDeleter.getPageSize());
+    }
+
+    @View(name = "count_calendars", map = "function(doc) { if (doc.type === 'CouchDbCalendar') emit(doc.name, null); }", reduce = "_count")
     public int getNumberOfCalendars() {
-        return getAll().size();
+        ViewResult result = db.queryView(createQuery("count_calendars").reduce(true));
+        return result.isEmpty() ? 0 : result.getRows().get(0).getValueAsInt();
     }
 
     public List<String> getCalendarNames() {
-        final ViewResult result = db.queryView(createQuery("by_calendarName"));
         List<String> calendarNames = new ArrayList<String>();
-        for (ViewResult.Row row : result.getRows()) {
-            calendarNames.add(row.getKey());
+        StreamingViewResult rows = db.queryForStreamingView(createQuery("by_calendarName"));
+        try {
+            for (ViewResult.Row row : rows) {
+                calendarNames.add(row.getKey());
+            }
+        } finally {
+            rows.close();
         }
         return calendarNames;
     }
 
-    public void removeAll() {
-        try {
-            for (CouchDbCalendar doc : getAll()) {
-                db.delete(db.get(CouchDbCalendar.class, doc.getId()));
-            }
-        } catch (Exception e) {
-            logger.error(e.getMessage(), e);
+    @View(name = "all_calendar_revs", map = "function(doc) { if (doc.type === 'CouchDbCalendar') emit(doc._id, doc._rev); }")
+    public int removeAll() throws JobPersistenceException {
+        calendarCache.clear();
+        return bulkDeleter.deleteAll(createQuery("all_calendar_revs"));
+    }
+
+    private static class CachedCalendar {
+        private final String id;
+        private final String revision;
+        private final Calendar calendar;
+
+        private CachedCalendar(String id, String revision, Calendar calendar) {
+            this.id = id;
+            this.revision = revision;
+            this.calendar = calendar;
         }
     }
 }
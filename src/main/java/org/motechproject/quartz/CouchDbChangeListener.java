@@ -0,0 +1,11 @@
+package org.motechproject.quartz;
+
+import org.ektorp.changes.DocumentChange;
+
+/**
+ * Receives every document change of the scheduler database, see {@link CouchDbChangesFollower}.
+ * Changes are delivered with their documents included, on the follower thread.
+ */
+public interface CouchDbChangeListener {
+    void onChange(DocumentChange change);
+}
@@ -0,0 +1,62 @@
+package org.motechproject.quartz;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the revision the _changes feed last reported for the most recently changed documents, so that a cache
+ * can refuse an entry that was loaded before a change it has already been told about. Not thread-safe, callers
+ * synchronize on the lock that also guards their cache.
+ */
+class CouchDbChangedRevisions {
+
+    static final int DEFAULT_SIZE = 10000;
+
+    private final Map<String, Integer> generations;
+
+    CouchDbChangedRevisions() {
+        this(DEFAULT_SIZE);
+    }
+
+    CouchDbChangedRevisions(final int maxSize) {
+        this.generations = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    void record(String id, String revision) {
+        Integer known = generations.get(id);
+        int generation = generation(revision);
+        if (known == null || known < generation) {
+            generations.put(id, generation);
+        }
+    }
+
+    /**
+     * @return true if the feed already reported a later revision of the document
+     */
+    boolean isOutdated(String id, String revision) {
+        Integer known = generations.get(id);
+        return known != null && generation(revision) < known;
+    }
+
+    void clear() {
+        generations.clear();
+    }
+
+    /* revisions are "<generation>-<hash>", the generation counting the updates of the document */
+    static int generation(String revision) {
+        if (revision == null) {
+            return 0;
+        }
+        int dash = revision.indexOf('-');
+        try {
+            return Integer.parseInt(dash < 0 ? revision : revision.substring(0, dash));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package org.motechproject.quartz;
+
+import org.apache.log4j.Logger;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.changes.ChangesCommand;
+import org.ektorp.changes.ChangesFeed;
+import org.ektorp.changes.DocumentChange;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows the continuous _changes feed of the scheduler database on a daemon thread and hands every change to the
+ * registered listeners. The feed is reopened from the last seen sequence if the connection drops.
+ */
+public class CouchDbChangesFollower implements Runnable {
+
+    private static final int HEARTBEAT_MILLIS = 5000;
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+
+    private Logger logger = Logger.getLogger(CouchDbChangesFollower.class);
+
+    private final CouchDbConnector db;
+    private final List<CouchDbChangeListener> listeners = new CopyOnWriteArrayList<CouchDbChangeListener>();
+
+    private volatile String since;
+    private volatile boolean running;
+    private Thread thread;
+
+    public CouchDbChangesFollower(CouchDbConnector db) {
+        this.db = db;
+    }
+
+    public void addListener(CouchDbChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public String currentSequence() {
+        return db.getDbInfo().getUpdateSeqAsString();
+    }
+
+    public synchronized void start(String since) {
+        if (running) {
+            return;
+        }
+        this.since = since;
+        running = true;
+        thread = new Thread(this, "couchdb-changes-" + db.getDatabaseName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        thread.interrupt();
+        thread = null;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            ChangesFeed feed = null;
+            try {
+                feed = db.changesFeed(new ChangesCommand.Builder().since(since).includeDocs(true).heartbeat(HEARTBEAT_MILLIS).build());
+                while (running && feed.isAlive()) {
+                    DocumentChange change = feed.next(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                    if (change != null) {
+                        dispatch(change);
+                        since = String.valueOf(change.getSequence());
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                logger.warn("changes feed interrupted at sequence " + since + ", reconnecting: " + e.getMessage());
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            } finally {
+                if (feed != null) {
+                    feed.cancel();
+                }
+            }
+        }
+    }
+
+    private void dispatch(DocumentChange change) {
+        for (CouchDbChangeListener listener : listeners) {
+            try {
+                listener.onChange(change);
+            } catch (Exception e) {
+                logger.error("listener failed on change of " + change.getId(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.motechproject.quartz;
+
+import org.apache.log4j.Logger;
+import org.quartz.JobPersistenceException;
+
+/**
+ * Checks this scheduler instance in every checkinInterval milliseconds on a daemon thread, like the JDBC store's
+ * ClusterManager. After each check-in the heartbeats of the other instances are inspected; triggers acquired by an
+ * instance that missed its check-in are returned to WAITING and its heartbeat is removed.
+ */
+public class CouchDbClusterManager implements Runnable {
+
+    static final long FAILURE_GRACE_PERIOD_MILLIS = 7500;
+
+    private Logger logger = Logger.getLogger(CouchDbClusterManager.class);
+
+    private final CouchDbSchedulerStateStore stateStore;
+    private final CouchDbTriggerStore triggerStore;
+    private final CouchDbSchedulerState state;
+
+    private volatile boolean running;
+    private Thread thread;
+
+    public CouchDbClusterManager(CouchDbSchedulerStateStore stateStore, CouchDbTriggerStore triggerStore, String instanceId, long checkinInterval) {
+        this.stateStore = stateStore;
+        this.triggerStore = triggerStore;
+        this.state = new CouchDbSchedulerState(instanceId, checkinInterval);
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "couchdb-cluster-" + state.getInstanceId());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        thread.interrupt();
+        thread = null;
+        if (state.getRevision() != null) {
+            try {
+                stateStore.removeHeartbeat(state);
+            } catch (RuntimeException e) {
+                logger.warn("could not remove heartbeat of " + state.getInstanceId() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                checkin();
+            } catch (Exception e) {
+                logger.error("cluster check-in of " + state.getInstanceId() + " failed", e);
+            }
+            try {
+                Thread.sleep(state.getCheckinInterval());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes this instance's heartbeat and recovers the triggers of failed instances.
+     *
+     * @return the number of triggers recovered
+     */
+    public synchronized int checkin() throws JobPersistenceException {
+        long now = System.currentTimeMillis();
+        stateStore.checkin(state, now);
+
+        int recovered = 0;
+        for (CouchDbSchedulerState other : stateStore.getAll()) {
+            if (other.getInstanceId().equals(state.getInstanceId()) || !other.hasFailed(now, FAILURE_GRACE_PERIOD_MILLIS)) {
+                continue;
+            }
+            int released = releaseTriggersOf(other.getInstanceId());
+            logger.info(String.format("instance %s missed its check-in, released %s of its triggers", other.getInstanceId(), released));
+            stateStore.removeHeartbeat(other);
+            recovered += released;
+        }
+        return recovered;
+    }
+
+    /**
+     * Returns the ACQUIRED and EXECUTING triggers of the given instance to WAITING.
+     */
+    public int releaseTriggersOf(final String instanceId) throws JobPersistenceException {
+        return triggerStore.updateTriggersOfInstance(instanceId, new CouchDbTriggerStore.TriggerUpdate() {
+            @Override
+            public boolean update(CouchDbTrigger trigger) {
+                if (!instanceId.equals(trigger.getInstanceId())
+                    || (trigger.getState() != CouchDbTriggerState.ACQUIRED && trigger.getState() != CouchDbTriggerState.EXECUTING)) {
+                    return false;
+                }
+                trigger.release();
+                return true;
+            }
+        });
+    }
+}
@@ -0,0 +1,119 @@
+package org.motechproject.quartz;
+
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DbAccessException;
+import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
+import org.quartz.JobKey;
+import org.quartz.JobPersistenceException;
+import org.quartz.TriggerKey;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Loads triggers, jobs and calendars of any mix by their ids in a single _all_docs?include_docs=true request and
+ * sorts the documents by their type.
+ */
+public class CouchDbDocumentLoader {
+
+    private Logger logger = Logger.getLogger(CouchDbDocumentLoader.class);
+
+    private final CouchDbConnector db;
+    private final ObjectMapper mapper;
+
+    public CouchDbDocumentLoader(CouchDbConnector db, ObjectMapper mapper) {
+        this.db = db;
+        this.mapper = mapper;
+    }
+
+    public Documents load(Collection<String> ids) throws JobPersistenceException {
+        Documents documents = new Documents();
+        if (ids.isEmpty()) {
+            return documents;
+        }
+        ViewQuery query = new ViewQuery().allDocs().includeDocs(true).keys(new ArrayList<String>(new LinkedHashSet<String>(ids)));
+        query.setIgnoreNotFound(true);
+        try {
+            for (ViewResult.Row row : db.queryView(query)) {
+                JsonNode doc = row.getDocAsNode();
+                if (doc == null || !doc.isObject()) {
+                    continue;
+                }
+                String type = doc.path("type").getTextValue();
+                if ("CouchDbTrigger".equals(type)) {
+                    CouchDbTrigger trigger = mapper.readValue(doc, CouchDbTrigger.class);
+                    documents.triggers.put(trigger.getKey(), trigger);
+                } else if ("CouchDbJobDetail".equals(type)) {
+                    CouchDbJobDetail job = mapper.readValue(doc, CouchDbJobDetail.class);
+                    documents.jobs.put(job.getKey(), job);
+                } else if ("CouchDbCalendar".equals(type)) {
+                    CouchDbCalendar calendar = mapper.readValue(doc, CouchDbCalendar.class);
+                    documents.calendars.put(calendar.getName(), calendar);
+                } else if (logger.isDebugEnabled()) {
+                    logger.debug("ignoring document " + row.getId() + " of type " + type);
+                }
+            }
+        } catch (Exception e) {
+            throw new JobPersistenceException(e.getMessage(), e);
+        }
+        return documents;
+    }
+
+    /**
+     * Loads the documents of one type by their ids with one _all_docs request, leaving out missing and deleted ones.
+     * The rows are bound one by one: ektorp's typed parsing of _all_docs drops every row when the first one is a
+     * deleted document.
+     */
+    static <T> List<T> loadAll(CouchDbConnector db, ObjectMapper mapper, List<String> ids, Class<T> type) {
+        List<T> documents = new ArrayList<T>();
+        if (ids.isEmpty()) {
+            return documents;
+        }
+        ViewQuery query = new ViewQuery().allDocs().keys(ids).includeDocs(true);
+        query.setIgnoreNotFound(true);
+        for (ViewResult.Row row : db.queryView(query)) {
+            JsonNode doc = row.getDocAsNode();
+            if (doc == null || !doc.isObject()) {
+                continue;
+            }
+            try {
+                documents.add(mapper.readValue(doc, type));
+            } catch (IOException e) {
+                throw new DbAccessException(e);
+            }
+        }
+        return documents;
+    }
+
+    public static class Documents {
+        private final Map<TriggerKey, CouchDbTrigger> triggers = new HashMap<TriggerKey, CouchDbTrigger>();
+        private final Map<JobKey, CouchDbJobDetail> jobs = new HashMap<JobKey, CouchDbJobDetail>();
+        private final Map<String, CouchDbCalendar> calendars = new HashMap<String, CouchDbCalendar>();
+
+        public CouchDbTrigger getTrigger(TriggerKey key) {
+            return triggers.get(key);
+        }
+
+        public CouchDbJobDetail getJob(JobKey key) {
+            return jobs.get(key);
+        }
+
+        public CouchDbCalendar getCalendar(String name) {
+            return calendars.get(name);
+        }
+
+        public Set<String> getCalendarNames() {
+            return calendars.keySet();
+        }
+    }
+}
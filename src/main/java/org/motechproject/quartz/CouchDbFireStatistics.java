@@ -0,0 +1,91 @@
+package org.motechproject.quartz;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The lag of the fires of a trigger group and how it divides into phases, in milliseconds. The lag, the time from a
+ * trigger being due until triggersFired handed out its job, is the sum of
+ * <ul>
+ * <li>scheduling: due, but not yet being acquired, because the scheduler thread was busy or waiting for a free
+ * worker thread, or an earlier acquisition passed it over,</li>
+ * <li>acquisition: due while the store queried and claimed it,</li>
+ * <li>waiting: due and acquired, but triggersFired not called yet,</li>
+ * <li>firing: due while triggersFired ran,</li>
+ * </ul>
+ * each counting only time after the trigger was due. Execution, from triggersFired until triggeredJobComplete, covers
+ * the handover to a worker thread and the job itself. Fires are passed over when an acquisition whose range covered
+ * them, and which was not full, did not claim them: the view was stale, the trigger was leased, paused or stored
+ * only afterwards.
+ */
+public class CouchDbFireStatistics {
+
+    public static final String SCHEDULING = "scheduling";
+    public static final String ACQUISITION = "acquisition";
+    public static final String WAITING = "waiting";
+    public static final String FIRING = "firing";
+    public static final String EXECUTION = "execution";
+
+    private final CouchDbHistogram lag = new CouchDbHistogram();
+    private final CouchDbHistogram scheduling = new CouchDbHistogram();
+    private final CouchDbHistogram acquisition = new CouchDbHistogram();
+    private final CouchDbHistogram waiting = new CouchDbHistogram();
+    private final CouchDbHistogram firing = new CouchDbHistogram();
+    private final CouchDbHistogram execution = new CouchDbHistogram();
+    private final AtomicLong passedOver = new AtomicLong();
+
+    void acquired(boolean passedOverBefore) {
+        if (passedOverBefore) {
+            passedOver.incrementAndGet();
+        }
+    }
+
+    void fired(long due, long acquisitionStarted, long acquired, long fireStarted, long fired) {
+        long scheduled = Math.max(acquisitionStarted, due);
+        long claimed = Math.max(acquired, scheduled);
+        long called = Math.max(fireStarted, claimed);
+        long handedOut = Math.max(fired, called);
+        scheduling.record(scheduled - due);
+        acquisition.record(claimed - scheduled);
+        waiting.record(called - claimed);
+        firing.record(handedOut - called);
+        lag.record(handedOut - due);
+    }
+
+    void completed(long fired, long completed) {
+        execution.record(completed - fired);
+    }
+
+    public long getFireCount() {
+        return lag.getCount();
+    }
+
+    public long getPassedOverCount() {
+        return passedOver.get();
+    }
+
+    public CouchDbHistogram getLag() {
+        return lag;
+    }
+
+    /**
+     * @return the histogram of one of the phases named by the constants of this class, null for any other name
+     */
+    public CouchDbHistogram getPhase(String phase) {
+        if (SCHEDULING.equals(phase)) {
+            return scheduling;
+        }
+        if (ACQUISITION.equals(phase)) {
+            return acquisition;
+        }
+        if (WAITING.equals(phase)) {
+            return waiting;
+        }
+        if (FIRING.equals(phase)) {
+            return firing;
+        }
+        if (EXECUTION.equals(phase)) {
+            return execution;
+        }
+        return null;
+    }
+}
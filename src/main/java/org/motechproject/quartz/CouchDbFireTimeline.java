@@ -0,0 +1,176 @@
+package org.motechproject.quartz;
+
+import org.quartz.TriggerKey;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free ring buffer of the timelines of the latest trigger fires: when each was due, when the acquisition
+ * that claimed it started and ended, when triggersFired started and ended and when its job completed, all in
+ * milliseconds. Recording allocates nothing; a fire is found again by its trigger and due time, searching back from
+ * the newest record. A fire still in flight when the buffer wrapped around it is lost, so the capacity should be
+ * well above the number of fires acquired but not completed at any time.
+ */
+public class CouchDbFireTimeline {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    static final int DUE = 0;
+    static final int ACQUISITION_STARTED = 1;
+    static final int ACQUIRED = 2;
+    static final int FIRE_STARTED = 3;
+    static final int FIRED = 4;
+    static final int COMPLETED = 5;
+    private static final int SEQUENCE = 6;
+    private static final int FIELDS = 8;
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray slots;
+    private final AtomicReferenceArray<TriggerKey> keys;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public CouchDbFireTimeline(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.slots = new AtomicLongArray(size * FIELDS);
+        this.keys = new AtomicReferenceArray<TriggerKey>(size);
+        for (int slot = 0; slot < size; slot++) {
+            slots.set(slot * FIELDS + SEQUENCE, -1);
+        }
+    }
+
+    /**
+     * Starts the record of a fire claimed by an acquisition.
+     */
+    void acquired(TriggerKey key, long due, long acquisitionStarted, long acquired) {
+        long recordSequence = sequence.getAndIncrement();
+        int slot = (int) (recordSequence & mask);
+        int base = slot * FIELDS;
+        slots.set(base + SEQUENCE, -1);
+        keys.set(slot, key);
+        slots.set(base + DUE, due);
+        slots.set(base + ACQUISITION_STARTED, acquisitionStarted);
+        slots.set(base + ACQUIRED, acquired);
+        slots.set(base + FIRE_STARTED, 0);
+        slots.set(base + FIRED, 0);
+        slots.set(base + COMPLETED, 0);
+        slots.set(base + SEQUENCE, recordSequence);
+    }
+
+    /**
+     * @param field the last field that has to be set, 0 if none
+     * @return the slot of the newest record of the trigger's fire at the given time whose given field is set and
+     *         whose next one is not, -1 if there is none
+     */
+    int find(TriggerKey key, long due, int field) {
+        long newest = sequence.get() - 1;
+        for (long recordSequence = newest; recordSequence >= 0 && recordSequence > newest - capacity; recordSequence--) {
+            int slot = (int) (recordSequence & mask);
+            int base = slot * FIELDS;
+            if (slots.get(base + SEQUENCE) == recordSequence && slots.get(base + DUE) == due
+                    && slots.get(base + field) != 0 && slots.get(base + field + 1) == 0 && key.equals(keys.get(slot))) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    long get(int slot, int field) {
+        return slots.get(slot * FIELDS + field);
+    }
+
+    void set(int slot, int field, long value) {
+        slots.set(slot * FIELDS + field, value);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the fires recorded so far, including those no longer in the buffer
+     */
+    public long getRecordedCount() {
+        return sequence.get();
+    }
+
+    /**
+     * @return up to the given number of the latest records, newest first, skipping any being overwritten
+     */
+    public List<Fire> getLatest(int max) {
+        List<Fire> fires = new ArrayList<Fire>();
+        long newest = sequence.get() - 1;
+        for (long recordSequence = newest; recordSequence >= 0 && recordSequence > newest - capacity && fires.size() < max; recordSequence--) {
+            int slot = (int) (recordSequence & mask);
+            int base = slot * FIELDS;
+            TriggerKey key = keys.get(slot);
+            long[] times = new long[SEQUENCE];
+            for (int field = 0; field < SEQUENCE; field++) {
+                times[field] = slots.get(base + field);
+            }
+            if (slots.get(base + SEQUENCE) == recordSequence) {
+                fires.add(new Fire(key, times));
+            }
+        }
+        return fires;
+    }
+
+    /**
+     * The timeline of one fire, times not reached yet are 0.
+     */
+    public static class Fire {
+        private final TriggerKey key;
+        private final long[] times;
+
+        Fire(TriggerKey key, long[] times) {
+            this.key = key;
+            this.times = times;
+        }
+
+        public TriggerKey getKey() {
+            return key;
+        }
+
+        public long getDueTime() {
+            return times[DUE];
+        }
+
+        public long getAcquisitionStartTime() {
+            return times[ACQUISITION_STARTED];
+        }
+
+        public long getAcquiredTime() {
+            return times[ACQUIRED];
+        }
+
+        public long getFireStartTime() {
+            return times[FIRE_STARTED];
+        }
+
+        public long getFiredTime() {
+            return times[FIRED];
+        }
+
+        public long getCompletedTime() {
+            return times[COMPLETED];
+        }
+
+        @Override
+        public String toString() {
+            return key + " due " + times[DUE] + ", acquisition " + times[ACQUISITION_STARTED] + "-" + times[ACQUIRED]
+                    + ", fire " + times[FIRE_STARTED] + "-" + times[FIRED] + ", completed " + times[COMPLETED];
+        }
+    }
+}
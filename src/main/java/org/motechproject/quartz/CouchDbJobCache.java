@@ -0,0 +1,150 @@
+package org.motechproject.quartz;
+
+import org.ektorp.changes.DocumentChange;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded, least-recently-used cache of job details keyed by document id. Every entry remembers the revision it
+ * was loaded at; entries are dropped on local writes and when the _changes feed reports another revision. A job
+ * loaded at a revision older than one the feed already reported is not cached. Cached jobs are handed out as
+ * clones since callers are free to modify their job data.
+ */
+public class CouchDbJobCache implements CouchDbChangeListener {
+
+    private final int maxSize;
+    private final Map<String, CouchDbJobDetail> jobs;
+    private final CouchDbChangedRevisions changedRevisions = new CouchDbChangedRevisions();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private volatile boolean followsChanges;
+
+    public CouchDbJobCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.jobs = new LinkedHashMap<String, CouchDbJobDetail>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CouchDbJobDetail> eldest) {
+                if (size() > CouchDbJobCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached job regardless of its revision; only to be trusted while the cache follows changes.
+     */
+    public CouchDbJobDetail get(String id) {
+        return hitOrMiss(lookup(id));
+    }
+
+    /**
+     * Returns the cached job if it was loaded at the given revision.
+     */
+    public CouchDbJobDetail get(String id, String revision) {
+        CouchDbJobDetail job = lookup(id);
+        return hitOrMiss(job != null && job.getRevision().equals(revision) ? job : null);
+    }
+
+    /**
+     * @return the revision the job was cached at, without counting as a hit or miss
+     */
+    public String getRevision(String id) {
+        CouchDbJobDetail job = lookup(id);
+        return job == null ? null : job.getRevision();
+    }
+
+    public void put(CouchDbJobDetail job) {
+        if (job.getRevision() == null) {
+            return;
+        }
+        CouchDbJobDetail copy = (CouchDbJobDetail) job.clone();
+        synchronized (jobs) {
+            if (!changedRevisions.isOutdated(copy.getId(), copy.getRevision())) {
+                jobs.put(copy.getId(), copy);
+            }
+        }
+    }
+
+    public void invalidate(String id) {
+        synchronized (jobs) {
+            jobs.remove(id);
+        }
+    }
+
+    public void clear() {
+        synchronized (jobs) {
+            jobs.clear();
+            changedRevisions.clear();
+        }
+    }
+
+    public boolean followsChanges() {
+        return followsChanges;
+    }
+
+    public void setFollowsChanges(boolean followsChanges) {
+        clear();
+        this.followsChanges = followsChanges;
+    }
+
+    @Override
+    public void onChange(DocumentChange change) {
+        synchronized (jobs) {
+            changedRevisions.record(change.getId(), change.getRevision());
+            CouchDbJobDetail job = jobs.get(change.getId());
+            if (job != null && !job.getRevision().equals(change.getRevision())) {
+                jobs.remove(change.getId());
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (jobs) {
+            return jobs.size();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public double getHitRate() {
+        long requests = hits.get() + misses.get();
+        return requests == 0 ? 0 : (double) hits.get() / requests;
+    }
+
+    private CouchDbJobDetail lookup(String id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    private CouchDbJobDetail hitOrMiss(CouchDbJobDetail job) {
+        if (job == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return (CouchDbJobDetail) job.clone();
+    }
+}
@@ -1,9 +1,13 @@
 package org.motechproject.quartz;
 
 import org.apache.log4j.Logger;
-import org.ektorp.ComplexKey;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.ektorp.CouchDbConnector;
 import org.ektorp.DocumentNotFoundException;
+import org.ektorp.StreamingViewResult;
+import org.ektorp.UpdateConflictException;
+import org.ektorp.ViewResult;
+import org.ektorp.impl.StdObjectMapperFactory;
 import org.ektorp.support.CouchDbRepositorySupport;
 import org.ektorp.support.View;
 import org.quartz.JobKey;
@@ -12,42 +16,100 @@ import org.quartz.ObjectAlreadyExistsException;
 import org.quartz.impl.matchers.GroupMatcher;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-import static ch.lambdaj.Lambda.extract;
-import static ch.lambdaj.Lambda.on;
-
 public class CouchDbJobStore extends CouchDbRepositorySupport<CouchDbJobDetail> {
     private Logger logger = Logger.getLogger(CouchDbJobStore.class);
+    private final CouchDbBulkDeleter bulkDeleter;
+    private final CouchDbBulkWriter bulkWriter;
+    private final ObjectMapper mapper;
+
+    private CouchDbJobCache jobCache;
 
     protected CouchDbJobStore(CouchDbConnector db) {
         super(CouchDbJobDetail.class, db);
         initStandardDesignDocument();
+        this.bulkDeleter = new CouchDbBulkDeleter(db);
+        this.bulkWriter = new CouchDbBulkWriter(db);
+        this.mapper = new StdObjectMapperFactory().createObjectMapper(db);
+    }
+
+    public void setBulkPageSize(int bulkPageSize) {
+        bulkDeleter.setPageSize(bulkPageSize);
+    }
+
+    void setJobCache(CouchDbJobCache jobCache) {
+        this.jobCache = jobCache;
+    }
+
+    public CouchDbJobCache getJobCache() {
+        return jobCache;
     }
 
+    /**
+     * Writes the job without reading it first: it is created, or updated at the revision it carries or was cached
+     * at. Only when CouchDB answers with a conflict is the current revision looked up.
+     */
     public void storeJob(CouchDbJobDetail newJob, boolean replaceExisting) throws JobPersistenceException {
-        CouchDbJobDetail existingJob = retrieveJob(newJob.getKey());
-        if (existingJob == null) {
+        if (replaceExisting && newJob.getRevision() == null && jobCache != null) {
+            newJob.setRevision(jobCache.getRevision(newJob.getId()));
+        }
+        if (newJob.getRevision() == null) {
+            try {
+                db.create(newJob);
+                invalidate(newJob.getId());
+                return;
+            } catch (UpdateConflictException e) {
+                if (!replaceExisting) {
+                    throw new ObjectAlreadyExistsException("job already exists");
+                }
+            }
+        } else if (replaceExisting && updateAtKnownRevision(newJob)) {
+            invalidate(newJob.getId());
+            return;
+        }
+
+        String revision = bulkWriter.currentRevisions(Arrays.asList(newJob.getId())).get(newJob.getId());
+        if (revision == null) {
+            newJob.setRevision(null);
             db.create(newJob);
+            invalidate(newJob.getId());
             return;
         }
         if (replaceExisting) {
-            newJob.setId(existingJob.getId());
-            newJob.setRevision(existingJob.getRevision());
+            newJob.setRevision(revision);
             db.update(newJob);
+            invalidate(newJob.getId());
         } else {
             throw new ObjectAlreadyExistsException("job already exists");
         }
     }
 
+    private boolean updateAtKnownRevision(CouchDbJobDetail job) {
+        try {
+            db.update(job);
+            return true;
+        } catch (UpdateConflictException e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("Revision %s of %s is stale", job.getRevision(), job.getId()));
+            }
+            return false;
+        }
+    }
+
     public boolean removeJob(JobKey jobKey) throws JobPersistenceException {
-        CouchDbJobDetail job = retrieveJob(jobKey);
+        CouchDbJobDetail job = loadJob(jobKey);
         if (job == null) {
             return false;
         }
         db.delete(job);
+        invalidate(job.getId());
         return true;
     }
 
@@ -60,10 +122,18 @@ public class CouchDbJobStore extends CouchDbRepositorySupport<CouchDbJobDetail>
     }
 
     public boolean checkExists(JobKey jobKey) throws JobPersistenceException {
-        return retrieveJob(jobKey) != null;
+        return loadJob(jobKey) != null;
     }
 
     public CouchDbJobDetail retrieveJob(JobKey jobKey) throws JobPersistenceException {
+        if (jobCache == null) {
+            return loadJob(jobKey);
+        }
+        List<CouchDbJobDetail> jobs = getJobs(Arrays.asList(jobKey));
+        return jobs.isEmpty() ? null : jobs.get(0);
+    }
+
+    private CouchDbJobDetail loadJob(JobKey jobKey) {
         try {
             return get(CouchDbJobDetail.toId(jobKey.getGroup(), jobKey.getName()));
         } catch (DocumentNotFoundException ex) {
@@ -71,46 +141,155 @@ public class CouchDbJobStore extends CouchDbRepositorySupport<CouchDbJobDetail>
         }
     }
 
+    /**
+     * @deprecated reads every job into memory at once, use {@link #iterateAll()}
+     */
+    @Deprecated
     @View(name = "all_jobs", map = "function(doc) { if (doc.type === 'CouchDbJobDetail') emit(doc._id, doc._id); }")
     public List<CouchDbJobDetail> getAll() {
         return db.queryView(createQuery("all_jobs").includeDocs(true), type);
     }
 
-    @View(name = "by_jobkey", map = "function(doc) { if (doc.type === 'CouchDbJobDetail') emit([doc.name, doc.group], doc._id); }")
+    /**
+     * @return every job, read one bulk page at a time; the cursor has to be closed unless read to the end
+     */
+    public CouchDbViewCursor<CouchDbJobDetail> iterateAll() {
+        return new CouchDbViewCursor<CouchDbJobDetail>(db, mapper, createQuery("all_jobs"), type, bulkDeleter.getPageSize());
+    }
+
     public List<CouchDbJobDetail> getJobs(List<JobKey> jobKeys) {
-        List<ComplexKey> keys = new ArrayList<ComplexKey>();
+        if (jobCache == null) {
+            return loadJobs(jobKeys);
+        }
+        List<CouchDbJobDetail> jobs = new ArrayList<CouchDbJobDetail>();
+        List<JobKey> missingKeys = new ArrayList<JobKey>();
+        if (jobCache.followsChanges()) {
+            for (JobKey jobKey : jobKeys) {
+                addCachedOrMissing(jobCache.get(toId(jobKey)), jobKey, jobs, missingKeys);
+            }
+        } else {
+            Map<String, String> revisions = currentRevisions(jobKeys);
+            for (JobKey jobKey : jobKeys) {
+                String revision = revisions.get(toId(jobKey));
+                if (revision != null) {
+                    addCachedOrMissing(jobCache.get(toId(jobKey), revision), jobKey, jobs, missingKeys);
+                }
+            }
+        }
+        if (!missingKeys.isEmpty()) {
+            for (CouchDbJobDetail job : loadJobs(missingKeys)) {
+                jobCache.put(job);
+                jobs.add(job);
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Returns the cached jobs that can be used without asking CouchDB, which is only the case while the cache
+     * follows the _changes feed.
+     */
+    public Map<JobKey, CouchDbJobDetail> getCachedJobs(Collection<JobKey> jobKeys) {
+        Map<JobKey, CouchDbJobDetail> jobs = new HashMap<JobKey, CouchDbJobDetail>();
+        if (jobCache == null || !jobCache.followsChanges()) {
+            return jobs;
+        }
+        for (JobKey jobKey : jobKeys) {
+            CouchDbJobDetail job = jobCache.get(toId(jobKey));
+            if (job != null) {
+                jobs.put(jobKey, job);
+            }
+        }
+        return jobs;
+    }
+
+    public void cacheJob(CouchDbJobDetail job) {
+        if (jobCache != null) {
+            jobCache.put(job);
+        }
+    }
+
+    /**
+     * Loads the jobs by their ids, derived from the keys, with one _all_docs request; missing jobs are left out.
+     */
+    private List<CouchDbJobDetail> loadJobs(List<JobKey> jobKeys) {
+        List<CouchDbJobDetail> jobs = new ArrayList<CouchDbJobDetail>();
+        if (jobKeys.isEmpty()) {
+            return jobs;
+        }
+        List<String> ids = new ArrayList<String>();
+        for (JobKey jobKey : jobKeys) {
+            ids.add(toId(jobKey));
+        }
+        return CouchDbDocumentLoader.loadAll(db, mapper, ids, type);
+    }
+
+    private Map<String, String> currentRevisions(List<JobKey> jobKeys) {
+        List<String> ids = new ArrayList<String>();
         for (JobKey jobKey : jobKeys) {
-            keys.add(ComplexKey.of(jobKey.getName(), jobKey.getGroup()));
+            ids.add(toId(jobKey));
         }
-        return db.queryView(createQuery("by_jobkey").includeDocs(true).keys(keys), type);
+        return bulkWriter.currentRevisions(ids);
     }
 
+    private void addCachedOrMissing(CouchDbJobDetail cachedJob, JobKey jobKey, List<CouchDbJobDetail> jobs, List<JobKey> missingKeys) {
+        if (cachedJob != null) {
+            jobs.add(cachedJob);
+        } else {
+            missingKeys.add(jobKey);
+        }
+    }
+
+    void invalidate(String id) {
+        if (jobCache != null) {
+            jobCache.invalidate(id);
+        }
+    }
+
+    private static String toId(JobKey jobKey) {
+        return CouchDbJobDetail.toId(jobKey.getGroup(), jobKey.getName());
+    }
+
+    @View(name = "count_by_group", map = "function(doc) { if (doc.type === 'CouchDbJobDetail') emit(doc.group, null); }", reduce = "_count")
     public int getNumberOfJobs() {
-        return getAll().size();
+        ViewResult result = db.queryView(createQuery("count_by_group").reduce(true));
+        return result.isEmpty() ? 0 : result.getRows().get(0).getValueAsInt();
+    }
+
+    public Map<String, Integer> getNumberOfJobsByGroup() {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (ViewResult.Row row : db.queryView(createQuery("count_by_group").group(true))) {
+            counts.put(row.getKey(), row.getValueAsInt());
+        }
+        return counts;
     }
 
+    @View(name = "by_group_and_name", map = "function(doc) { if (doc.type === 'CouchDbJobDetail') emit([doc.group, doc.name], null); }")
     public Set<JobKey> getJobKeys(GroupMatcher<JobKey> matcher) {
         Set<JobKey> matchedKeys = new HashSet<JobKey>();
-        for (CouchDbJobDetail jobDetail : getAll()) {
-            if (matcher.isMatch(jobDetail.getKey())) {
-                matchedKeys.add(jobDetail.getKey());
+        StreamingViewResult rows = db.queryForStreamingView(GroupMatcherKeyRange.apply(createQuery("by_group_and_name"), matcher));
+        try {
+            for (ViewResult.Row row : rows) {
+                JobKey key = JobKey.jobKey(row.getKeyAsNode().get(1).getTextValue(), row.getKeyAsNode().get(0).getTextValue());
+                if (matcher.isMatch(key)) {
+                    matchedKeys.add(key);
+                }
             }
+        } finally {
+            rows.close();
         }
         return matchedKeys;
     }
 
-    @View(name = "by_jobGroupName", map = "function(doc) { if (doc.type === 'CouchDbJobDetail') emit(doc.group, doc._id); }")
     public List<String> getJobGroupNames() {
-        return new ArrayList<String>(new HashSet<String>(extract(db.queryView(createQuery("by_jobGroupName").includeDocs(true), type), on(CouchDbJobDetail.class).getGroup())));
+        return new ArrayList<String>(getNumberOfJobsByGroup().keySet());
     }
 
-    public void removeAll() {
-        try {
-            for (CouchDbJobDetail doc : getAll()) {
-                db.delete(db.get(CouchDbJobDetail.class, doc.getId()));
-            }
-        } catch (Exception e) {
-            logger.error(e.getMessage(), e);
+    @View(name = "all_job_revs", map = "function(doc) { if (doc.type === 'CouchDbJobDetail') emit(doc._id, doc._rev); }")
+    public int removeAll() throws JobPersistenceException {
+        if (jobCache != null) {
+            jobCache.clear();
         }
+        return bulkDeleter.deleteAll(createQuery("all_job_revs"));
     }
 }
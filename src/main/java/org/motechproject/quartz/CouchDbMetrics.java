@@ -0,0 +1,367 @@
+package org.motechproject.quartz;
+
+import org.apache.log4j.Logger;
+import org.quartz.TriggerKey;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the measurements of a {@link CouchDbStore}: the latency of every JobStore method, count, latency and
+ * size of every HTTP request by method and resource, bulk write sizes, conflicts and cache hit rates, and the
+ * timeline of every trigger fire with its lag and phases per trigger group, see {@link CouchDbFireStatistics}. The
+ * numbers are readable through JMX once {@link #register(String)} was called and are handed to the registered
+ * {@link CouchDbMetricsListener}s as they are taken.
+ */
+public class CouchDbMetrics implements CouchDbMetricsMBean {
+
+    private Logger logger = Logger.getLogger(CouchDbMetrics.class);
+
+    private final ConcurrentMap<String, CouchDbHistogram> operations = new ConcurrentHashMap<String, CouchDbHistogram>();
+    private final ConcurrentMap<String, CouchDbHistogram> requests = new ConcurrentHashMap<String, CouchDbHistogram>();
+    private final CouchDbHistogram bulkSizes = new CouchDbHistogram();
+    private final ConcurrentMap<String, CouchDbFireStatistics> fireStatistics = new ConcurrentHashMap<String, CouchDbFireStatistics>();
+    private volatile CouchDbFireTimeline fireTimeline = new CouchDbFireTimeline(CouchDbFireTimeline.DEFAULT_CAPACITY);
+
+    private final AtomicLong httpRequests = new AtomicLong();
+    private final AtomicLong httpErrors = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong bulkDocuments = new AtomicLong();
+    private final AtomicLong firedTriggers = new AtomicLong();
+
+    private final List<CouchDbMetricsListener> listeners = new CopyOnWriteArrayList<CouchDbMetricsListener>();
+
+    private volatile CouchDbJobCache jobCache;
+    private volatile CouchDbCalendarStore calendarStore;
+    private ObjectName objectName;
+
+    public void addListener(CouchDbMetricsListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(CouchDbMetricsListener listener) {
+        listeners.remove(listener);
+    }
+
+    void setJobCache(CouchDbJobCache jobCache) {
+        this.jobCache = jobCache;
+    }
+
+    void setCalendarStore(CouchDbCalendarStore calendarStore) {
+        this.calendarStore = calendarStore;
+    }
+
+    void setFireTimelineCapacity(int capacity) {
+        this.fireTimeline = new CouchDbFireTimeline(capacity);
+    }
+
+    /**
+     * @return the start time to hand to {@link #operationCompleted(String, long)}
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    public void operationCompleted(String operation, long startNanos) {
+        long durationMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        histogram(operations, operation).record(durationMicros);
+        for (CouchDbMetricsListener listener : listeners) {
+            try {
+                listener.operationCompleted(operation, durationMicros);
+            } catch (RuntimeException e) {
+                logger.warn("metrics listener " + listener + " failed", e);
+            }
+        }
+    }
+
+    public void requestCompleted(String method, String resource, int status, long durationMicros, long sent, long received) {
+        histogram(requests, method + " " + resource).record(durationMicros);
+        httpRequests.incrementAndGet();
+        if (status == 409) {
+            conflicts.incrementAndGet();
+        } else if (status >= 400 && status != 404) {
+            httpErrors.incrementAndGet();
+        }
+        bytesSent.addAndGet(sent);
+        bytesReceived.addAndGet(received);
+        for (CouchDbMetricsListener listener : listeners) {
+            try {
+                listener.requestCompleted(method, resource, status, durationMicros, sent, received);
+            } catch (RuntimeException e) {
+                logger.warn("metrics listener " + listener + " failed", e);
+            }
+        }
+    }
+
+    public void bulkWritten(int documents, int rejected, int bulkConflicts) {
+        bulkSizes.record(documents);
+        bulkDocuments.addAndGet(documents);
+        conflicts.addAndGet(bulkConflicts);
+        for (CouchDbMetricsListener listener : listeners) {
+            try {
+                listener.bulkWritten(documents, rejected, bulkConflicts);
+            } catch (RuntimeException e) {
+                logger.warn("metrics listener " + listener + " failed", e);
+            }
+        }
+    }
+
+    public void triggersFired(int count) {
+        firedTriggers.addAndGet(count);
+    }
+
+    /**
+     * @param passedOver whether an earlier acquisition should have claimed the trigger already
+     */
+    public void fireAcquired(TriggerKey key, long due, long acquisitionStarted, long acquired, boolean passedOver) {
+        fireTimeline.acquired(key, due, acquisitionStarted, acquired);
+        statistics(key.getGroup()).acquired(passedOver);
+    }
+
+    public void fired(TriggerKey key, long due, long fireStarted, long fired) {
+        CouchDbFireTimeline timeline = fireTimeline;
+        int slot = timeline.find(key, due, CouchDbFireTimeline.ACQUIRED);
+        if (slot < 0) {
+            return;
+        }
+        timeline.set(slot, CouchDbFireTimeline.FIRE_STARTED, fireStarted);
+        timeline.set(slot, CouchDbFireTimeline.FIRED, fired);
+        statistics(key.getGroup()).fired(due, timeline.get(slot, CouchDbFireTimeline.ACQUISITION_STARTED), timeline.get(slot, CouchDbFireTimeline.ACQUIRED), fireStarted, fired);
+    }
+
+    public void fireCompleted(TriggerKey key, long due, long completed) {
+        CouchDbFireTimeline timeline = fireTimeline;
+        int slot = timeline.find(key, due, CouchDbFireTimeline.FIRED);
+        if (slot < 0) {
+            return;
+        }
+        timeline.set(slot, CouchDbFireTimeline.COMPLETED, completed);
+        long acquisitionStarted = timeline.get(slot, CouchDbFireTimeline.ACQUISITION_STARTED);
+        long acquired = timeline.get(slot, CouchDbFireTimeline.ACQUIRED);
+        long fireStarted = timeline.get(slot, CouchDbFireTimeline.FIRE_STARTED);
+        long fired = timeline.get(slot, CouchDbFireTimeline.FIRED);
+        statistics(key.getGroup()).completed(fired, completed);
+        for (CouchDbMetricsListener listener : listeners) {
+            try {
+                listener.fireCompleted(key, due, acquisitionStarted, acquired, fireStarted, fired, completed);
+            } catch (RuntimeException e) {
+                logger.warn("metrics listener " + listener + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, named after the scheduler instance.
+     */
+    public synchronized void register(String instanceName) throws JMException {
+        if (objectName != null) {
+            return;
+        }
+        ObjectName name = new ObjectName("org.motechproject.quartz:type=CouchDbStore,name=" + ObjectName.quote(String.valueOf(instanceName)));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+        objectName = name;
+    }
+
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            logger.warn("could not unregister " + objectName, e);
+        }
+        objectName = null;
+    }
+
+    public CouchDbHistogram getOperationHistogram(String operation) {
+        return operations.get(operation);
+    }
+
+    public CouchDbHistogram getRequestHistogram(String request) {
+        return requests.get(request);
+    }
+
+    public CouchDbHistogram getBulkSizeHistogram() {
+        return bulkSizes;
+    }
+
+    public CouchDbFireTimeline getFireTimeline() {
+        return fireTimeline;
+    }
+
+    public CouchDbFireStatistics getFireStatistics(String triggerGroup) {
+        return fireStatistics.get(triggerGroup);
+    }
+
+    @Override
+    public long getHttpRequestCount() {
+        return httpRequests.get();
+    }
+
+    /**
+     * @return the requests answered with an error status, not counting 404s and conflicts
+     */
+    @Override
+    public long getHttpErrorCount() {
+        return httpErrors.get();
+    }
+
+    /**
+     * @return the 409 responses plus the documents rejected with a conflict within bulk writes
+     */
+    @Override
+    public long getConflictCount() {
+        return conflicts.get();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    @Override
+    public long getBulkRequestCount() {
+        return bulkSizes.getCount();
+    }
+
+    @Override
+    public long getBulkDocumentCount() {
+        return bulkDocuments.get();
+    }
+
+    @Override
+    public long getFiredTriggerCount() {
+        return firedTriggers.get();
+    }
+
+    @Override
+    public double getHttpRequestsPerFiredTrigger() {
+        long fired = firedTriggers.get();
+        return fired == 0 ? 0 : (double) httpRequests.get() / fired;
+    }
+
+    @Override
+    public double getJobCacheHitRate() {
+        CouchDbJobCache cache = jobCache;
+        return cache == null ? 0 : cache.getHitRate();
+    }
+
+    @Override
+    public double getCalendarCacheHitRate() {
+        CouchDbCalendarStore store = calendarStore;
+        return store == null ? 0 : store.getCacheHitRate();
+    }
+
+    @Override
+    public String[] getOperations() {
+        return operations.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getRequests() {
+        return requests.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public long getOperationCount(String operation) {
+        CouchDbHistogram histogram = operations.get(operation);
+        return histogram == null ? 0 : histogram.getCount();
+    }
+
+    @Override
+    public long getOperationLatency(String operation, double percentile) {
+        CouchDbHistogram histogram = operations.get(operation);
+        return histogram == null ? 0 : histogram.getValueAtPercentile(percentile);
+    }
+
+    @Override
+    public long getRequestCount(String request) {
+        CouchDbHistogram histogram = requests.get(request);
+        return histogram == null ? 0 : histogram.getCount();
+    }
+
+    @Override
+    public long getRequestLatency(String request, double percentile) {
+        CouchDbHistogram histogram = requests.get(request);
+        return histogram == null ? 0 : histogram.getValueAtPercentile(percentile);
+    }
+
+    @Override
+    public long getBulkSize(double percentile) {
+        return bulkSizes.getValueAtPercentile(percentile);
+    }
+
+    @Override
+    public String[] getTriggerGroups() {
+        return fireStatistics.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public long getFireCount(String triggerGroup) {
+        CouchDbFireStatistics statistics = fireStatistics.get(triggerGroup);
+        return statistics == null ? 0 : statistics.getFireCount();
+    }
+
+    @Override
+    public long getPassedOverFireCount(String triggerGroup) {
+        CouchDbFireStatistics statistics = fireStatistics.get(triggerGroup);
+        return statistics == null ? 0 : statistics.getPassedOverCount();
+    }
+
+    @Override
+    public long getFireLag(String triggerGroup, double percentile) {
+        CouchDbFireStatistics statistics = fireStatistics.get(triggerGroup);
+        return statistics == null ? 0 : statistics.getLag().getValueAtPercentile(percentile);
+    }
+
+    @Override
+    public long getFirePhaseDuration(String triggerGroup, String phase, double percentile) {
+        CouchDbFireStatistics statistics = fireStatistics.get(triggerGroup);
+        CouchDbHistogram histogram = statistics == null ? null : statistics.getPhase(phase);
+        return histogram == null ? 0 : histogram.getValueAtPercentile(percentile);
+    }
+
+    private CouchDbFireStatistics statistics(String triggerGroup) {
+        CouchDbFireStatistics statistics = fireStatistics.get(triggerGroup);
+        if (statistics == null) {
+            statistics = new CouchDbFireStatistics();
+            CouchDbFireStatistics existing = fireStatistics.putIfAbsent(triggerGroup, statistics);
+            if (existing != null) {
+                statistics = existing;
+            }
+        }
+        return statistics;
+    }
+
+    private static CouchDbHistogram histogram(ConcurrentMap<String, CouchDbHistogram> histograms, String name) {
+        CouchDbHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new CouchDbHistogram();
+            CouchDbHistogram existing = histograms.putIfAbsent(name, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        return histogram;
+    }
+}
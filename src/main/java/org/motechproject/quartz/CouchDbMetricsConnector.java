@@ -0,0 +1,34 @@
+package org.motechproject.quartz;
+
+import org.ektorp.CouchDbInstance;
+import org.ektorp.DocumentOperationResult;
+import org.ektorp.impl.StdCouchDbConnector;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Records the size and the rejections of every bulk write going through the connector.
+ */
+public class CouchDbMetricsConnector extends StdCouchDbConnector {
+
+    private final CouchDbMetrics metrics;
+
+    public CouchDbMetricsConnector(String databaseName, CouchDbInstance dbInstance, CouchDbMetrics metrics) {
+        super(databaseName, dbInstance);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public List<DocumentOperationResult> executeBulk(Collection<?> objects) {
+        List<DocumentOperationResult> results = super.executeBulk(objects);
+        int conflicts = 0;
+        for (DocumentOperationResult result : results) {
+            if ("conflict".equals(result.getError())) {
+                conflicts++;
+            }
+        }
+        metrics.bulkWritten(objects.size(), results.size(), conflicts);
+        return results;
+    }
+}
@@ -0,0 +1,281 @@
+package org.motechproject.quartz;
+
+import org.ektorp.http.HttpClient;
+import org.ektorp.http.HttpResponse;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures every request to CouchDB: a request counts as completed, with its latency and the bytes read, when its
+ * response is released or its content stream is closed.
+ */
+public class CouchDbMetricsHttpClient implements HttpClient {
+
+    private final HttpClient client;
+    private final CouchDbMetrics metrics;
+
+    public CouchDbMetricsHttpClient(HttpClient client, CouchDbMetrics metrics) {
+        this.client = client;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public HttpResponse get(String uri) {
+        long start = System.nanoTime();
+        return measure("GET", uri, 0, start, client.get(uri));
+    }
+
+    @Override
+    public HttpResponse get(String uri, Map<String, String> headers) {
+        long start = System.nanoTime();
+        return measure("GET", uri, 0, start, client.get(uri, headers));
+    }
+
+    @Override
+    public HttpResponse put(String uri, String content) {
+        long start = System.nanoTime();
+        return measure("PUT", uri, length(content), start, client.put(uri, content));
+    }
+
+    @Override
+    public HttpResponse put(String uri) {
+        long start = System.nanoTime();
+        return measure("PUT", uri, 0, start, client.put(uri));
+    }
+
+    @Override
+    public HttpResponse put(String uri, InputStream data, String contentType, long contentLength) {
+        long start = System.nanoTime();
+        CountingInputStream counted = new CountingInputStream(data);
+        HttpResponse response = client.put(uri, counted, contentType, contentLength);
+        return measure("PUT", uri, counted.getCount(), start, response);
+    }
+
+    @Override
+    public HttpResponse post(String uri, String content) {
+        long start = System.nanoTime();
+        return measure("POST", uri, length(content), start, client.post(uri, content));
+    }
+
+    @Override
+    public HttpResponse post(String uri, InputStream content) {
+        long start = System.nanoTime();
+        CountingInputStream counted = new CountingInputStream(content);
+        HttpResponse response = client.post(uri, counted);
+        return measure("POST", uri, counted.getCount(), start, response);
+    }
+
+    @Override
+    public HttpResponse delete(String uri) {
+        long start = System.nanoTime();
+        return measure("DELETE", uri, 0, start, client.delete(uri));
+    }
+
+    @Override
+    public HttpResponse head(String uri) {
+        long start = System.nanoTime();
+        return measure("HEAD", uri, 0, start, client.head(uri));
+    }
+
+    @Override
+    public HttpResponse getUncached(String uri) {
+        long start = System.nanoTime();
+        return measure("GET", uri, 0, start, client.getUncached(uri));
+    }
+
+    @Override
+    public HttpResponse postUncached(String uri, String content) {
+        long start = System.nanoTime();
+        return measure("POST", uri, length(content), start, client.postUncached(uri, content));
+    }
+
+    @Override
+    public HttpResponse copy(String sourceUri, String destination) {
+        long start = System.nanoTime();
+        return measure("COPY", sourceUri, 0, start, client.copy(sourceUri, destination));
+    }
+
+    @Override
+    public void shutdown() {
+        client.shutdown();
+    }
+
+    private HttpResponse measure(String method, String uri, long bytesSent, long start, HttpResponse response) {
+        return new MeasuredResponse(response, method, resource(uri), bytesSent, start);
+    }
+
+    private static long length(String content) {
+        if (content == null) {
+            return 0;
+        }
+        try {
+            return content.getBytes("UTF-8").length;
+        } catch (UnsupportedEncodingException e) {
+            return content.length();
+        }
+    }
+
+    /**
+     * @return the requested resource without database name, document id and query, e.g. _bulk_docs,
+     * _view/by_group or document
+     */
+    static String resource(String uri) {
+        String path = uri;
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        String[] segments = path.replaceFirst("^/+", "").split("/");
+        for (int i = 0; i < segments.length - 1; i++) {
+            if ("_view".equals(segments[i])) {
+                return "_view/" + segments[i + 1];
+            }
+        }
+        if (segments.length < 2) {
+            return "database";
+        }
+        if (segments[1].startsWith("_") && !"_design".equals(segments[1]) && !"_local".equals(segments[1])) {
+            return segments[1];
+        }
+        return "document";
+    }
+
+    private class MeasuredResponse implements HttpResponse {
+        private final HttpResponse response;
+        private final String method;
+        private final String resource;
+        private final long bytesSent;
+        private final long start;
+        private final AtomicBoolean completed = new AtomicBoolean();
+        private CountingInputStream content;
+
+        private MeasuredResponse(HttpResponse response, String method, String resource, long bytesSent, long start) {
+            this.response = response;
+            this.method = method;
+            this.resource = resource;
+            this.bytesSent = bytesSent;
+            this.start = start;
+        }
+
+        @Override
+        public boolean isSuccessful() {
+            return response.isSuccessful();
+        }
+
+        @Override
+        public int getCode() {
+            return response.getCode();
+        }
+
+        @Override
+        public String getRequestURI() {
+            return response.getRequestURI();
+        }
+
+        @Override
+        public String getContentType() {
+            return response.getContentType();
+        }
+
+        @Override
+        public long getContentLength() {
+            return response.getContentLength();
+        }
+
+        @Override
+        public synchronized InputStream getContent() {
+            if (content == null) {
+                content = new CountingInputStream(response.getContent()) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            complete();
+                        }
+                    }
+                };
+            }
+            return content;
+        }
+
+        @Override
+        public String getETag() {
+            return response.getETag();
+        }
+
+        @Override
+        public void releaseConnection() {
+            try {
+                response.releaseConnection();
+            } finally {
+                complete();
+            }
+        }
+
+        @Override
+        public void abort() {
+            try {
+                response.abort();
+            } finally {
+                complete();
+            }
+        }
+
+        private void complete() {
+            if (!completed.compareAndSet(false, true)) {
+                return;
+            }
+            long received;
+            synchronized (this) {
+                received = content != null ? content.getCount() : Math.max(response.getContentLength(), 0);
+            }
+            long durationMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+            metrics.requestCompleted(method, resource, response.getCode(), durationMicros, bytesSent, received);
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong count = new AtomicLong();
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count.addAndGet(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count.addAndGet(skipped);
+            return skipped;
+        }
+    }
+}
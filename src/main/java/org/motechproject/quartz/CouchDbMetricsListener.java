@@ -0,0 +1,33 @@
+package org.motechproject.quartz;
+
+import org.quartz.TriggerKey;
+
+/**
+ * Receives the measurements of a {@link CouchDbStore}, see {@link CouchDbMetrics}. Listeners are called on the
+ * thread doing the work and must return quickly.
+ */
+public interface CouchDbMetricsListener {
+
+    /**
+     * A JobStore method of the store returned.
+     */
+    void operationCompleted(String operation, long durationMicros);
+
+    /**
+     * An HTTP request to CouchDB completed, including reading its response.
+     *
+     * @param resource what was requested, e.g. _bulk_docs, _view/by_group or document
+     */
+    void requestCompleted(String method, String resource, int status, long durationMicros, long bytesSent, long bytesReceived);
+
+    /**
+     * A _bulk_docs request wrote documents, of which CouchDB rejected some, conflicts among them.
+     */
+    void bulkWritten(int documents, int rejected, int conflicts);
+
+    /**
+     * The job of a trigger fire completed. The times, in milliseconds, are those of its timeline, see
+     * {@link CouchDbFireTimeline}.
+     */
+    void fireCompleted(TriggerKey key, long due, long acquisitionStarted, long acquired, long fireStarted, long fired, long completed);
+}
@@ -0,0 +1,59 @@
+package org.motechproject.quartz;
+
+/**
+ * The JMX view of {@link CouchDbMetrics}. Latencies are in microseconds, fire lags and phases in milliseconds.
+ */
+public interface CouchDbMetricsMBean {
+
+    long getHttpRequestCount();
+
+    long getHttpErrorCount();
+
+    long getConflictCount();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getBulkRequestCount();
+
+    long getBulkDocumentCount();
+
+    long getFiredTriggerCount();
+
+    double getHttpRequestsPerFiredTrigger();
+
+    double getJobCacheHitRate();
+
+    double getCalendarCacheHitRate();
+
+    String[] getOperations();
+
+    String[] getRequests();
+
+    long getOperationCount(String operation);
+
+    long getOperationLatency(String operation, double percentile);
+
+    long getRequestCount(String request);
+
+    long getRequestLatency(String request, double percentile);
+
+    long getBulkSize(double percentile);
+
+    /**
+     * @return the groups of the triggers fired so far
+     */
+    String[] getTriggerGroups();
+
+    long getFireCount(String triggerGroup);
+
+    long getPassedOverFireCount(String triggerGroup);
+
+    long getFireLag(String triggerGroup, double percentile);
+
+    /**
+     * @param phase scheduling, acquisition, waiting, firing or execution, see {@link CouchDbFireStatistics}
+     */
+    long getFirePhaseDuration(String triggerGroup, String phase, double percentile);
+}
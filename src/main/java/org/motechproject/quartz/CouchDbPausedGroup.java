@@ -0,0 +1,48 @@
+package org.motechproject.quartz;
+
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.ektorp.support.CouchDbDocument;
+import org.ektorp.support.TypeDiscriminator;
+
+/**
+ * Marks a trigger group as paused. Pausing all groups is marked with the JDBC store's
+ * {@link org.quartz.impl.jdbcjobstore.Constants#ALL_GROUPS_PAUSED} group.
+ */
+@TypeDiscriminator("doc.type === 'CouchDbPausedGroup'")
+public class CouchDbPausedGroup extends CouchDbDocument {
+
+    private static final String ID_PREFIX = "paused_group:";
+
+    @JsonProperty
+    private String group;
+
+    @JsonProperty
+    private String type = "CouchDbPausedGroup";
+
+    private CouchDbPausedGroup() {
+    }
+
+    public CouchDbPausedGroup(String group) {
+        this();
+        this.group = group;
+        setId(toId(group));
+    }
+
+    public static String toId(String group) {
+        return ID_PREFIX + group;
+    }
+
+    public static boolean isPausedGroupId(String id) {
+        return id.startsWith(ID_PREFIX);
+    }
+
+    public static String toGroup(String id) {
+        return id.substring(ID_PREFIX.length());
+    }
+
+    @JsonIgnore
+    public String getGroup() {
+        return group;
+    }
+}
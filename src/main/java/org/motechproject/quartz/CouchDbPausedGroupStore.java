@@ -0,0 +1,186 @@
+package org.motechproject.quartz;
+
+import org.apache.log4j.Logger;
+import org.ektorp.BulkDeleteDocument;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DocumentOperationResult;
+import org.ektorp.changes.DocumentChange;
+import org.ektorp.support.CouchDbRepositorySupport;
+import org.ektorp.support.View;
+import org.quartz.JobPersistenceException;
+import org.quartz.impl.jdbcjobstore.Constants;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Keeps one marker document per paused trigger group, so pausing or resuming a whole group is a single document
+ * write instead of a rewrite of all its triggers. The paused groups are cached in memory and updated by this
+ * instance's own pauses and resumes; while the cache follows the _changes feed it is trusted as is, otherwise it is
+ * reloaded from the (small) marker view when asked and older than the refresh interval, to pick up other instances'
+ * markers.
+ */
+public class CouchDbPausedGroupStore extends CouchDbRepositorySupport<CouchDbPausedGroup> implements CouchDbChangeListener {
+
+    private Logger logger = Logger.getLogger(CouchDbPausedGroupStore.class);
+    private final CouchDbBulkDeleter bulkDeleter;
+    private final CouchDbBulkWriter bulkWriter;
+
+    public static final long DEFAULT_REFRESH_INTERVAL = 1000L;
+
+    private final Set<String> pausedGroups = new CopyOnWriteArraySet<String>();
+    private volatile boolean followsChanges;
+    private volatile long refreshInterval = DEFAULT_REFRESH_INTERVAL;
+    private volatile long loadedAt;
+
+    protected CouchDbPausedGroupStore(CouchDbConnector db) {
+        super(CouchDbPausedGroup.class, db);
+        initStandardDesignDocument();
+        this.bulkDeleter = new CouchDbBulkDeleter(db);
+        this.bulkWriter = new CouchDbBulkWriter(db);
+    }
+
+    public void setBulkPageSize(int bulkPageSize) {
+        bulkDeleter.setPageSize(bulkPageSize);
+        bulkWriter.setPageSize(bulkPageSize);
+    }
+
+    /**
+     * How long, in milliseconds, the cached paused groups are used before being reloaded while the cache does not
+     * follow the _changes feed; 0 reloads them every time they are asked for.
+     */
+    public void setRefreshInterval(long refreshInterval) {
+        if (refreshInterval < 0) {
+            throw new IllegalArgumentException("Paused group refresh interval must not be negative");
+        }
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Writes a marker for every given group that is not paused yet.
+     */
+    public void pauseGroups(Collection<String> groups) throws JobPersistenceException {
+        List<CouchDbPausedGroup> markers = new ArrayList<CouchDbPausedGroup>();
+        for (String group : groups) {
+            markers.add(new CouchDbPausedGroup(group));
+        }
+        List<String> failedIds = new ArrayList<String>();
+        for (DocumentOperationResult failure : bulkWriter.write(markers).values()) {
+            // a conflict means the group is paused already
+            if (!"conflict".equals(failure.getError())) {
+                logger.error(String.format("Could not pause %s: %s (%s)", failure.getId(), failure.getError(), failure.getReason()));
+                failedIds.add(failure.getId());
+            }
+        }
+        synchronized (pausedGroups) {
+            for (String group : groups) {
+                if (!failedIds.contains(CouchDbPausedGroup.toId(group))) {
+                    pausedGroups.add(group);
+                }
+            }
+        }
+        if (!failedIds.isEmpty()) {
+            throw new JobPersistenceException("could not pause groups " + failedIds);
+        }
+    }
+
+    /**
+     * Deletes the markers of the given groups.
+     */
+    public void resumeGroups(Collection<String> groups) throws JobPersistenceException {
+        List<String> ids = new ArrayList<String>();
+        for (String group : groups) {
+            ids.add(CouchDbPausedGroup.toId(group));
+        }
+        List<BulkDeleteDocument> deletions = new ArrayList<BulkDeleteDocument>();
+        for (Map.Entry<String, String> revision : bulkWriter.currentRevisions(ids).entrySet()) {
+            deletions.add(new BulkDeleteDocument(revision.getKey(), revision.getValue()));
+        }
+        Map<String, DocumentOperationResult> failures = bulkWriter.write(deletions);
+        synchronized (pausedGroups) {
+            for (String group : groups) {
+                if (!failures.containsKey(CouchDbPausedGroup.toId(group))) {
+                    pausedGroups.remove(group);
+                }
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw new JobPersistenceException("could not resume groups " + failures.keySet());
+        }
+    }
+
+    /**
+     * @return the paused groups, including {@link Constants#ALL_GROUPS_PAUSED} while all groups are paused
+     */
+    @View(name = "all_paused_groups", map = "function(doc) { if (doc.type === 'CouchDbPausedGroup') emit(doc._id, doc._rev); }")
+    public Set<String> getPausedGroups() {
+        if (!followsChanges && System.currentTimeMillis() - loadedAt >= refreshInterval) {
+            reload();
+        }
+        return new HashSet<String>(pausedGroups);
+    }
+
+    public boolean isPaused(Set<String> pausedGroups, String group) {
+        return pausedGroups.contains(Constants.ALL_GROUPS_PAUSED) || pausedGroups.contains(group);
+    }
+
+    public boolean isPaused(String group) {
+        return isPaused(getPausedGroups(), group);
+    }
+
+    public void setFollowsChanges(boolean followsChanges) {
+        this.followsChanges = false;
+        if (followsChanges) {
+            reload();
+        } else {
+            loadedAt = 0;
+        }
+        this.followsChanges = followsChanges;
+    }
+
+    @Override
+    public void onChange(DocumentChange change) {
+        if (!CouchDbPausedGroup.isPausedGroupId(change.getId())) {
+            return;
+        }
+        String group = CouchDbPausedGroup.toGroup(change.getId());
+        synchronized (pausedGroups) {
+            if (change.isDeleted()) {
+                pausedGroups.remove(group);
+            } else {
+                pausedGroups.add(group);
+            }
+        }
+    }
+
+    /**
+     * Reads the markers while holding the cache, so that a pause or resume of this instance is applied after the
+     * read instead of being undone by it.
+     */
+    private void reload() {
+        synchronized (pausedGroups) {
+            long readAt = System.currentTimeMillis();
+            Set<String> groups = new HashSet<String>();
+            for (CouchDbPausedGroup marker : db.queryView(createQuery("all_paused_groups").includeDocs(true), type)) {
+                groups.add(marker.getGroup());
+            }
+            pausedGroups.retainAll(groups);
+            pausedGroups.addAll(groups);
+            loadedAt = readAt;
+        }
+    }
+
+    public int removeAll() throws JobPersistenceException {
+        synchronized (pausedGroups) {
+            int removed = bulkDeleter.deleteAll(createQuery("all_paused_groups"));
+            pausedGroups.clear();
+            loadedAt = System.currentTimeMillis();
+            return removed;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.motechproject.quartz;
+
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.ektorp.support.CouchDbDocument;
+import org.ektorp.support.TypeDiscriminator;
+
+/**
+ * Heartbeat of a clustered scheduler instance, the counterpart of the JDBC store's SCHEDULER_STATE row.
+ */
+@TypeDiscriminator("doc.type === 'CouchDbSchedulerState'")
+public class CouchDbSchedulerState extends CouchDbDocument {
+
+    @JsonProperty("instance_id")
+    private String instanceId;
+    @JsonProperty("last_checkin_time")
+    private long lastCheckinTime;
+    @JsonProperty("checkin_interval")
+    private long checkinInterval;
+
+    @JsonProperty
+    private String type = "CouchDbSchedulerState";
+
+    private CouchDbSchedulerState() {
+    }
+
+    public CouchDbSchedulerState(String instanceId, long checkinInterval) {
+        this();
+        this.instanceId = instanceId;
+        this.checkinInterval = checkinInterval;
+        setId(toId(instanceId));
+    }
+
+    public static String toId(String instanceId) {
+        return "scheduler_state:" + instanceId;
+    }
+
+    @JsonIgnore
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    @JsonIgnore
+    public long getLastCheckinTime() {
+        return lastCheckinTime;
+    }
+
+    @JsonIgnore
+    public void setLastCheckinTime(long lastCheckinTime) {
+        this.lastCheckinTime = lastCheckinTime;
+    }
+
+    @JsonIgnore
+    public long getCheckinInterval() {
+        return checkinInterval;
+    }
+
+    /**
+     * An instance is considered failed once it missed a check-in by more than the grace period.
+     */
+    public boolean hasFailed(long now, long gracePeriod) {
+        return lastCheckinTime + checkinInterval + gracePeriod < now;
+    }
+}
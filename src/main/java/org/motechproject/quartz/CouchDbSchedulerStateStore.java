@@ -0,0 +1,62 @@
+package org.motechproject.quartz;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DocumentNotFoundException;
+import org.ektorp.UpdateConflictException;
+import org.ektorp.support.CouchDbRepositorySupport;
+import org.ektorp.support.View;
+
+import java.util.List;
+
+/**
+ * Stores the heartbeats of clustered scheduler instances.
+ */
+public class CouchDbSchedulerStateStore extends CouchDbRepositorySupport<CouchDbSchedulerState> {
+
+    protected CouchDbSchedulerStateStore(CouchDbConnector db) {
+        super(CouchDbSchedulerState.class, db);
+        initStandardDesignDocument();
+    }
+
+    /**
+     * Writes the heartbeat with its last check-in time set to the given time. The revision of the previous
+     * check-in is reused, so a check-in is a single write unless another writer touched the document.
+     */
+    public void checkin(CouchDbSchedulerState state, long now) {
+        state.setLastCheckinTime(now);
+        try {
+            if (state.getRevision() == null) {
+                db.create(state);
+            } else {
+                db.update(state);
+            }
+        } catch (UpdateConflictException e) {
+            CouchDbSchedulerState current = db.find(type, state.getId());
+            state.setRevision(current == null ? null : current.getRevision());
+            if (current == null) {
+                db.create(state);
+            } else {
+                db.update(state);
+            }
+        }
+    }
+
+    @View(name = "all_scheduler_states", map = "function(doc) { if (doc.type === 'CouchDbSchedulerState') emit(doc._id, doc._rev); }")
+    public List<CouchDbSchedulerState> getAll() {
+        return db.queryView(createQuery("all_scheduler_states").includeDocs(true), type);
+    }
+
+    /**
+     * @return false if the heartbeat was removed or changed by someone else meanwhile
+     */
+    public boolean removeHeartbeat(CouchDbSchedulerState state) {
+        try {
+            db.delete(state);
+            return true;
+        } catch (UpdateConflictException e) {
+            return false;
+        } catch (DocumentNotFoundException e) {
+            return false;
+        }
+    }
+}
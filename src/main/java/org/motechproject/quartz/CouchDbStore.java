@@ -1,9 +1,14 @@
 package org.motechproject.quartz;
 
 import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.ektorp.BulkDeleteDocument;
+import org.ektorp.ComplexKey;
 import org.ektorp.CouchDbConnector;
-import org.ektorp.impl.StdCouchDbConnector;
+import org.ektorp.DocumentOperationResult;
 import org.ektorp.impl.StdCouchDbInstance;
+import org.ektorp.http.HttpClient;
+import org.ektorp.impl.StdObjectMapperFactory;
 import org.ektorp.spring.HttpClientFactoryBean;
 import org.quartz.Calendar;
 import org.quartz.JobDetail;
@@ -17,6 +22,7 @@ import org.quartz.Trigger;
 import org.quartz.TriggerKey;
 import org.quartz.impl.jdbcjobstore.Constants;
 import org.quartz.impl.matchers.GroupMatcher;
+import org.quartz.impl.matchers.StringMatcher;
 import org.quartz.impl.triggers.CalendarIntervalTriggerImpl;
 import org.quartz.impl.triggers.CronTriggerImpl;
 import org.quartz.impl.triggers.SimpleTriggerImpl;
@@ -26,17 +32,23 @@ import org.quartz.spi.OperableTrigger;
 import org.quartz.spi.SchedulerSignaler;
 import org.quartz.spi.TriggerFiredBundle;
 import org.quartz.spi.TriggerFiredResult;
+import org.quartz.utils.Key;
 
+import javax.management.JMException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class CouchDbStore implements JobStore {
 
@@ -47,10 +59,53 @@ public class CouchDbStore implements JobStore {
     private CouchDbJobStore jobStore;
     private CouchDbTriggerStore triggerStore;
     private CouchDbCalendarStore calendarStore;
+    private CouchDbPausedGroupStore pausedGroupStore;
+    private CouchDbChangesFollower changesFollower;
+    private CouchDbTriggerIndex triggerIndex;
+    private CouchDbDocumentLoader documentLoader;
+    private boolean followChanges;
+    private CouchDbBulkWriter bulkWriter;
+    private boolean rollbackPartialBulkStores;
+    private CouchDbSchedulerStateStore schedulerStateStore;
+    private CouchDbClusterManager clusterManager;
+    private boolean clustered;
+    private long clusterCheckinInterval = 7500L;
+    private long triggerLeaseDuration = 60000L;
+    private int acquisitionPageSize = 100;
+    private final CouchDbMetrics metrics = new CouchDbMetrics();
+    private boolean metricsJmx;
+    private volatile long previousAcquisitionHorizon = -1;
+    private volatile boolean previousAcquisitionFull;
+    private final ConcurrentMap<String, CouchDbTrigger> acquiredTriggers = new ConcurrentHashMap<String, CouchDbTrigger>();
 
     private boolean schedulerRunning;
     private long misfireThreshold = 60000L;
 
+    private final CouchDbTriggerStore.TriggerUpdate pause = new CouchDbTriggerStore.TriggerUpdate() {
+        @Override
+        public boolean update(CouchDbTrigger trigger) {
+            CouchDbTriggerState paused = trigger.getState().paused();
+            if (paused == trigger.getState()) {
+                return false;
+            }
+            trigger.setState(paused);
+            return true;
+        }
+    };
+
+    private final CouchDbTriggerStore.TriggerUpdate resume = new CouchDbTriggerStore.TriggerUpdate() {
+        @Override
+        public boolean update(CouchDbTrigger trigger) throws JobPersistenceException {
+            CouchDbTriggerState resumed = trigger.getState().resumed();
+            if (resumed == trigger.getState()) {
+                return false;
+            }
+            trigger.setState(resumed);
+            applyMisfire(trigger.getTrigger());
+            return true;
+        }
+    };
+
     public CouchDbStore() {
     }
 
@@ -66,14 +121,25 @@ public class CouchDbStore implements JobStore {
         return calendarStore;
     }
 
+    CouchDbPausedGroupStore getPausedGroupStore() {
+        return pausedGroupStore;
+    }
+
+    CouchDbTriggerIndex getTriggerIndex() {
+        return triggerIndex;
+    }
+
     @Override
     public void initialize(ClassLoadHelper loadHelper, SchedulerSignaler signaler) throws SchedulerConfigException {
     }
 
     public void setProperties(String propertiesFile) throws IOException, CouchDbJobStoreException {
         Properties properties = new Properties();
-        properties.load(ClassLoader.class.getResourceAsStream(propertiesFile));
+        properties.load(CouchDbStore.class.getResourceAsStream(propertiesFile));
+        setProperties(properties);
+    }
 
+    public void setProperties(Properties properties) throws CouchDbJobStoreException {
         HttpClientFactoryBean httpClientFactoryBean = new HttpClientFactoryBean();
         httpClientFactoryBean.setProperties(extractHttpClientProperties(properties));
         httpClientFactoryBean.setCaching(false);
@@ -95,10 +161,69 @@ public class CouchDbStore implements JobStore {
             if (databaseName == null || databaseName.equals("")) {
                 databaseName = "scheduler";
             }
-            CouchDbConnector connector = new StdCouchDbConnector(databaseName, new StdCouchDbInstance(httpClientFactoryBean.getObject()));
+            HttpClient httpClient = new CouchDbMetricsHttpClient(httpClientFactoryBean.getObject(), metrics);
+            CouchDbConnector connector = new CouchDbMetricsConnector(databaseName, new StdCouchDbInstance(httpClient), metrics);
             this.jobStore = new CouchDbJobStore(connector);
             this.triggerStore = new CouchDbTriggerStore(connector);
             this.calendarStore = new CouchDbCalendarStore(connector);
+            this.pausedGroupStore = new CouchDbPausedGroupStore(connector);
+            metrics.setCalendarStore(calendarStore);
+            ObjectMapper mapper = new StdObjectMapperFactory().createObjectMapper(connector);
+            this.documentLoader = new CouchDbDocumentLoader(connector, mapper);
+            this.changesFollower = new CouchDbChangesFollower(connector);
+            changesFollower.addListener(calendarStore);
+            changesFollower.addListener(pausedGroupStore);
+            int bulkPageSize = Integer.parseInt(properties.getProperty("db.bulkPageSize", String.valueOf(CouchDbBulkDeleter.DEFAULT_PAGE_SIZE)).trim());
+            jobStore.setBulkPageSize(bulkPageSize);
+            triggerStore.setBulkPageSize(bulkPageSize);
+            calendarStore.setBulkPageSize(bulkPageSize);
+            pausedGroupStore.setBulkPageSize(bulkPageSize);
+            if (properties.containsKey("db.pausedGroups.refreshInterval")) {
+                pausedGroupStore.setRefreshInterval(Long.parseLong(properties.getProperty("db.pausedGroups.refreshInterval").trim()));
+            }
+            this.bulkWriter = new CouchDbBulkWriter(connector);
+            bulkWriter.setPageSize(bulkPageSize);
+            this.rollbackPartialBulkStores = Boolean.parseBoolean(properties.getProperty("db.bulkStore.rollback"));
+            int jobCacheSize = Integer.parseInt(properties.getProperty("db.jobCache.size", "0").trim());
+            if (jobCacheSize > 0) {
+                CouchDbJobCache jobCache = new CouchDbJobCache(jobCacheSize);
+                jobStore.setJobCache(jobCache);
+                metrics.setJobCache(jobCache);
+                changesFollower.addListener(jobCache);
+            }
+            if (Boolean.parseBoolean(properties.getProperty("db.triggerIndex.enabled"))) {
+                this.triggerIndex = new CouchDbTriggerIndex(mapper);
+                changesFollower.addListener(triggerIndex);
+            }
+            this.schedulerStateStore = new CouchDbSchedulerStateStore(connector);
+            if (properties.containsKey("db.clustered")) {
+                this.clustered = Boolean.parseBoolean(properties.getProperty("db.clustered").trim());
+            }
+            if (properties.containsKey("db.clusterCheckinInterval")) {
+                setClusterCheckinInterval(Long.parseLong(properties.getProperty("db.clusterCheckinInterval").trim()));
+            }
+            if (properties.containsKey("db.triggerLeaseDuration")) {
+                setTriggerLeaseDuration(Long.parseLong(properties.getProperty("db.triggerLeaseDuration").trim()));
+            }
+            if (properties.containsKey("db.acquisitionPageSize")) {
+                setAcquisitionPageSize(Integer.parseInt(properties.getProperty("db.acquisitionPageSize").trim()));
+            }
+            long writeBehindWindow = Long.parseLong(properties.getProperty("db.writeBehind.window", "0").trim());
+            if (writeBehindWindow > 0) {
+                triggerStore.setWriteBehind(writeBehindWindow, Integer.parseInt(properties.getProperty("db.writeBehind.maxPending", "1000").trim()));
+            }
+            this.metricsJmx = Boolean.parseBoolean(properties.getProperty("db.metrics.jmx"));
+            if (properties.containsKey("db.metrics.fireTimeline.size")) {
+                metrics.setFireTimelineCapacity(Integer.parseInt(properties.getProperty("db.metrics.fireTimeline.size").trim()));
+            }
+            String metricsListeners = properties.getProperty("db.metrics.listeners", "").trim();
+            if (metricsListeners.length() > 0) {
+                for (String listenerClass : metricsListeners.split("\\s*,\\s*")) {
+                    addMetricsListener((CouchDbMetricsListener) Class.forName(listenerClass).newInstance());
+                }
+            }
+            // the trigger index and the job cache are only current while they follow the _changes feed
+            this.followChanges = triggerIndex != null || jobCacheSize > 0 || Boolean.parseBoolean(properties.getProperty("db.changesFeed.enabled"));
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
             throw new CouchDbJobStoreException(e);
@@ -119,9 +244,89 @@ public class CouchDbStore implements JobStore {
 
     @Override
     public void schedulerStarted() throws SchedulerException {
-        //TODO : recover jobs (refer jdbcstore)
-        //TODO : handle misfires (refer jdbcstore)
-        schedulerRunning = true;
+        long start = metrics.start();
+        try {
+            if (clustered) {
+                clusterManager = new CouchDbClusterManager(schedulerStateStore, triggerStore, instanceId, clusterCheckinInterval);
+            }
+            recoverTriggers();
+            if (clusterManager != null) {
+                clusterManager.start();
+            }
+            triggerStore.startWriteBehind();
+            startFollowingChanges();
+            if (metricsJmx) {
+                try {
+                    metrics.register(instanceName);
+                } catch (JMException e) {
+                    logger.warn("could not register the store metrics with JMX", e);
+                }
+            }
+            schedulerRunning = true;
+        } finally {
+            metrics.operationCompleted("schedulerStarted", start);
+        }
+    }
+
+    /**
+     * Returns triggers left ACQUIRED or EXECUTING by a previous run to WAITING (in clustered mode only those of this
+     * instance, the cluster manager takes care of the others) and applies the misfire
+     * instructions of all waiting triggers overdue by more than the misfire threshold, a bulk page at a time.
+     * Calendars are deserialized once per sweep.
+     */
+    void recoverTriggers() throws JobPersistenceException {
+        CouchDbTriggerStore.TriggerUpdate release = new CouchDbTriggerStore.TriggerUpdate() {
+            @Override
+            public boolean update(CouchDbTrigger trigger) {
+                if (trigger.getState() != CouchDbTriggerState.ACQUIRED && trigger.getState() != CouchDbTriggerState.EXECUTING) {
+                    return false;
+                }
+                trigger.release();
+                return true;
+            }
+        };
+        int released = clusterManager != null
+            ? clusterManager.releaseTriggersOf(instanceId)
+            : triggerStore.updateTriggersInState(CouchDbTriggerState.ACQUIRED, release) + triggerStore.updateTriggersInState(CouchDbTriggerState.EXECUTING, release);
+
+        final Map<String, Calendar> calendars = new HashMap<String, Calendar>();
+        CouchDbTriggerStore.TriggerUpdate misfire = new CouchDbTriggerStore.TriggerUpdate() {
+            @Override
+            public boolean update(CouchDbTrigger trigger) {
+                if (trigger.getState() != CouchDbTriggerState.WAITING || !applyMisfire(trigger.getTrigger(), calendars)) {
+                    return false;
+                }
+                if (trigger.getNextFireTime() == null) {
+                    trigger.setState(CouchDbTriggerState.COMPLETE);
+                }
+                return true;
+            }
+        };
+        int misfired = triggerStore.updateTriggersDueBefore(System.currentTimeMillis() - getMisfireThreshold(), misfire);
+        if (logger.isInfoEnabled()) {
+            logger.info(String.format("recovered %s acquired or executing triggers, checked %s overdue triggers for misfires", released, misfired));
+        }
+    }
+
+    synchronized void startFollowingChanges() {
+        if (!followChanges || changesFollower.isRunning()) {
+            return;
+        }
+        String since = changesFollower.currentSequence();
+        if (triggerIndex != null) {
+            CouchDbViewCursor<CouchDbTrigger> acquirableTriggers = triggerStore.iterateAcquirableTriggers();
+            try {
+                triggerIndex.load(acquirableTriggers);
+            } finally {
+                acquirableTriggers.close();
+            }
+        }
+        calendarStore.setCacheFollowsChanges(true);
+        pausedGroupStore.setFollowsChanges(true);
+        if (jobStore.getJobCache() != null) {
+            jobStore.getJobCache().setFollowsChanges(true);
+        }
+        changesFollower.start(since);
     }
 
     @Override
@@ -137,7 +342,24 @@ public class CouchDbStore implements JobStore {
 
     @Override
     public void shutdown() {
-        throw new NotImplementedException();
+        acquiredTriggers.clear();
+        metrics.unregister();
+        try {
+            triggerStore.stopWriteBehind();
+        } catch (JobPersistenceException e) {
+            logger.error("could not write queued trigger updates on shutdown", e);
+        }
+        if (clusterManager != null) {
+            clusterManager.stop();
+        }
+        if (changesFollower != null) {
+            changesFollower.stop();
+            calendarStore.setCacheFollowsChanges(false);
+            pausedGroupStore.setFollowsChanges(false);
+            if (jobStore.getJobCache() != null) {
+                jobStore.getJobCache().setFollowsChanges(false);
+            }
+        }
     }
 
     @Override
@@ -152,265 +374,651 @@ public class CouchDbStore implements JobStore {
 
     @Override
     public boolean isClustered() {
-        return false;
+        return clustered;
+    }
+
+    public void setIsClustered(boolean clustered) {
+        this.clustered = clustered;
+    }
+
+    public void setClusterCheckinInterval(long clusterCheckinInterval) {
+        if (clusterCheckinInterval < 1) {
+            throw new IllegalArgumentException("Cluster checkin interval must be larger than 0");
+        }
+        this.clusterCheckinInterval = clusterCheckinInterval;
+    }
+
+    /**
+     * How long after their fire time acquired triggers stay owned by this scheduler. A trigger neither fired nor
+     * released by then, e.g. because the scheduler died, can be acquired by any scheduler again.
+     */
+    public void setTriggerLeaseDuration(long triggerLeaseDuration) {
+        if (triggerLeaseDuration < 1) {
+            throw new IllegalArgumentException("Trigger lease duration must be larger than 0");
+        }
+        this.triggerLeaseDuration = triggerLeaseDuration;
+    }
+
+    /**
+     * Sets how many rows of the acquisition view are read at a time once an acquisition has passed over triggers it
+     * could not claim, such as those of paused groups or under another instance's lease.
+     */
+    public void setAcquisitionPageSize(int acquisitionPageSize) {
+        if (acquisitionPageSize < 1) {
+            throw new IllegalArgumentException("Acquisition page size must be larger than 0");
+        }
+        this.acquisitionPageSize = acquisitionPageSize;
+    }
+
+    /**
+     * @return the latencies, request counts and cache hit rates of this store
+     */
+    public CouchDbMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void addMetricsListener(CouchDbMetricsListener listener) {
+        metrics.addListener(listener);
+    }
+
+    CouchDbSchedulerStateStore getSchedulerStateStore() {
+        return schedulerStateStore;
     }
 
     @Override
     public void storeJobAndTrigger(JobDetail newJob, OperableTrigger newTrigger) throws JobPersistenceException {
-        if(logger.isInfoEnabled()) {
-            logger.info("store:" + newJob + " trigger:" + newTrigger);
+        long start = metrics.start();
+        try {
+            if(logger.isInfoEnabled()) {
+                logger.info("store:" + newJob + " trigger:" + newTrigger);
+            }
+            jobStore.storeJob(new CouchDbJobDetail(newJob), false);
+            triggerStore.storeTrigger(newCouchDbTrigger(newTrigger, pausedGroupStore.getPausedGroups()), false);
+        } finally {
+            metrics.operationCompleted("storeJobAndTrigger", start);
         }
-        jobStore.storeJob(new CouchDbJobDetail(newJob), false);
-        triggerStore.storeTrigger(createCouchDbTrigger(newTrigger), false);
     }
 
     @Override
     public void storeJob(JobDetail newJob, boolean replaceExisting) throws JobPersistenceException {
-        jobStore.storeJob(new CouchDbJobDetail(newJob), replaceExisting);
+        long start = metrics.start();
+        try {
+            jobStore.storeJob(new CouchDbJobDetail(newJob), replaceExisting);
+        } finally {
+            metrics.operationCompleted("storeJob", start);
+        }
     }
 
+    /**
+     * Looks up which of the jobs and triggers exist with one _all_docs request and writes them all with chunked
+     * _bulk_docs requests. Documents rejected by CouchDB are reported per key through a
+     * {@link CouchDbBulkStoreException}; with rollbackPartialBulkStores set, the documents this call created are
+     * deleted again in that case. Replaced documents keep their new content.
+     */
     @Override
     public void storeJobsAndTriggers(Map<JobDetail, List<Trigger>> triggersAndJobs, boolean replace) throws JobPersistenceException {
-        if (!replace) {
+        long start = metrics.start();
+        try {
+            Map<String, Object> documents = new LinkedHashMap<String, Object>();
+            Map<String, Key<?>> keys = new HashMap<String, Key<?>>();
+            Set<String> pausedGroups = pausedGroupStore.getPausedGroups();
             for (Map.Entry<JobDetail, List<Trigger>> e : triggersAndJobs.entrySet()) {
-                if (checkExists(e.getKey().getKey())) {
-                    throw new ObjectAlreadyExistsException(e.getKey());
-                }
+                CouchDbJobDetail job = new CouchDbJobDetail(e.getKey());
+                documents.put(job.getId(), job);
+                keys.put(job.getId(), job.getKey());
                 for (Trigger trigger : e.getValue()) {
-                    if (checkExists(trigger.getKey())) {
-                        throw new ObjectAlreadyExistsException(trigger);
-                    }
+                    CouchDbTrigger couchdbTrigger = newCouchDbTrigger((OperableTrigger) trigger, pausedGroups);
+                    documents.put(couchdbTrigger.getId(), couchdbTrigger);
+                    keys.put(couchdbTrigger.getId(), couchdbTrigger.getKey());
                 }
             }
+
+            Map<String, String> revisions = bulkWriter.currentRevisions(documents.keySet());
+            if (!replace && !revisions.isEmpty()) {
+                Object existing = documents.get(revisions.keySet().iterator().next());
+                if (existing instanceof CouchDbJobDetail) {
+                    throw new ObjectAlreadyExistsException((CouchDbJobDetail) existing);
+                }
+                throw new ObjectAlreadyExistsException(((CouchDbTrigger) existing).getTrigger());
+            }
+            checkReplacedTriggersKeepTheirJobs(documents, revisions);
+            for (Map.Entry<String, String> revision : revisions.entrySet()) {
+                Object document = documents.get(revision.getKey());
+                if (document instanceof CouchDbJobDetail) {
+                    ((CouchDbJobDetail) document).setRevision(revision.getValue());
+                } else {
+                    ((CouchDbTrigger) document).setRevision(revision.getValue());
+                }
+            }
+
+            Map<String, DocumentOperationResult> failures = bulkWriter.write(new ArrayList<Object>(documents.values()));
+            for (Object document : documents.values()) {
+                if (document instanceof CouchDbJobDetail) {
+                    jobStore.invalidate(((CouchDbJobDetail) document).getId());
+                }
+            }
+            if (failures.isEmpty()) {
+                return;
+            }
+
+            Map<Key<?>, String> failedKeys = new LinkedHashMap<Key<?>, String>();
+            for (DocumentOperationResult failure : failures.values()) {
+                failedKeys.put(keys.get(failure.getId()), failure.getError() + ": " + failure.getReason());
+            }
+            if (rollbackPartialBulkStores) {
+                rollbackCreatedDocuments(documents, revisions.keySet(), failures.keySet());
+            }
+            throw new CouchDbBulkStoreException(failedKeys, rollbackPartialBulkStores);
+        } finally {
+            metrics.operationCompleted("storeJobsAndTriggers", start);
+        }
+    }
+
+    /**
+     * Loads the stored triggers about to be replaced, with one request, and refuses replacing any of them by a
+     * trigger of another job.
+     */
+    private void checkReplacedTriggersKeepTheirJobs(Map<String, Object> documents, Map<String, String> revisions) throws JobPersistenceException {
+        List<TriggerKey> replacedKeys = new ArrayList<TriggerKey>();
+        for (String id : revisions.keySet()) {
+            Object document = documents.get(id);
+            if (document instanceof CouchDbTrigger) {
+                replacedKeys.add(((CouchDbTrigger) document).getKey());
+            }
+        }
+        if (replacedKeys.isEmpty()) {
+            return;
+        }
+        for (CouchDbTrigger existingTrigger : triggerStore.getTriggersByKeys(replacedKeys)) {
+            JobKey jobKey = ((CouchDbTrigger) documents.get(existingTrigger.getId())).getJobKey();
+            if (!(existingTrigger.getJobName().equals(jobKey.getName()) && existingTrigger.getJobGroup().equals(jobKey.getGroup()))) {
+                throw new JobPersistenceException("New trigger is not related to the same job as the old trigger.");
+            }
         }
-        for (Map.Entry<JobDetail, List<Trigger>> e : triggersAndJobs.entrySet()) {
-            storeJob(e.getKey(), true);
-            for (Trigger trigger : e.getValue()) {
-                storeTrigger((OperableTrigger) trigger, true);
+    }
+
+    private void rollbackCreatedDocuments(Map<String, Object> documents, Set<String> existingIds, Set<String> failedIds) {
+        List<BulkDeleteDocument> deletions = new ArrayList<BulkDeleteDocument>();
+        for (Map.Entry<String, Object> document : documents.entrySet()) {
+            if (!existingIds.contains(document.getKey()) && !failedIds.contains(document.getKey())) {
+                deletions.add(BulkDeleteDocument.of(document.getValue()));
             }
         }
+        for (DocumentOperationResult failure : bulkWriter.write(deletions).values()) {
+            logger.error(String.format("Could not roll back %s: %s (%s)", failure.getId(), failure.getError(), failure.getReason()));
+        }
     }
 
     @Override
     public boolean removeJob(JobKey jobKey) throws JobPersistenceException {
-        for (OperableTrigger trigger : getTriggersForJob(jobKey)) {
-            this.removeTrigger(trigger.getKey());
+        long start = metrics.start();
+        try {
+            for (OperableTrigger trigger : getTriggersForJob(jobKey)) {
+                this.removeTrigger(trigger.getKey());
+            }
+            return jobStore.removeJob(jobKey);
+        } finally {
+            metrics.operationCompleted("removeJob", start);
         }
-        return jobStore.removeJob(jobKey);
     }
 
     @Override
     public boolean removeJobs(List<JobKey> jobKeys) throws JobPersistenceException {
-        return jobStore.removeJobs(jobKeys);
+        long start = metrics.start();
+        try {
+            return jobStore.removeJobs(jobKeys);
+        } finally {
+            metrics.operationCompleted("removeJobs", start);
+        }
     }
 
     @Override
     public JobDetail retrieveJob(JobKey jobKey) throws JobPersistenceException {
-        return jobStore.retrieveJob(jobKey);
+        long start = metrics.start();
+        try {
+            return jobStore.retrieveJob(jobKey);
+        } finally {
+            metrics.operationCompleted("retrieveJob", start);
+        }
     }
 
     @Override
     public void storeTrigger(OperableTrigger newTrigger, boolean replaceExisting) throws ObjectAlreadyExistsException, JobPersistenceException {
-        triggerStore.storeTrigger(createCouchDbTrigger(newTrigger), replaceExisting);
+        long start = metrics.start();
+        try {
+            CouchDbTrigger couchdbTrigger = newCouchDbTrigger(newTrigger, pausedGroupStore.getPausedGroups());
+            if (replaceExisting) {
+                useClaimedRevision(couchdbTrigger);
+            }
+            triggerStore.storeTrigger(couchdbTrigger, replaceExisting);
+        } finally {
+            metrics.operationCompleted("storeTrigger", start);
+        }
     }
 
     @Override
     public boolean removeTrigger(TriggerKey triggerKey) throws JobPersistenceException {
-        CouchDbTrigger trigger = triggerStore.getTriggerByKey(triggerKey);
-        if (triggerStore.removeTrigger(triggerKey)) {
-            List<CouchDbTrigger> triggers = triggerStore.findByJob(trigger.getJobKey());
-            if (triggers == null || triggers.size() <= 1) {
-                jobStore.removeJob(trigger.getJobKey());
+        long start = metrics.start();
+        try {
+            CouchDbTrigger trigger = triggerStore.getTriggerByKey(triggerKey);
+            if (triggerStore.removeTrigger(triggerKey)) {
+                List<CouchDbTrigger> triggers = triggerStore.findByJob(trigger.getJobKey());
+                if (triggers == null || triggers.size() <= 1) {
+                    jobStore.removeJob(trigger.getJobKey());
+                }
+                return true;
             }
-            return true;
+            return false;
+        } finally {
+            metrics.operationCompleted("removeTrigger", start);
         }
-        return false;
     }
 
     @Override
     public boolean removeTriggers(List<TriggerKey> triggerKeys) throws JobPersistenceException {
-        boolean allFound = true;
-        for (TriggerKey key : triggerKeys) {
-            allFound = triggerStore.removeTrigger(key) && allFound;
+        long start = metrics.start();
+        try {
+            boolean allFound = true;
+            for (TriggerKey key : triggerKeys) {
+                allFound = triggerStore.removeTrigger(key) && allFound;
+            }
+            return allFound;
+        } finally {
+            metrics.operationCompleted("removeTriggers", start);
         }
-        return allFound;
     }
 
     @Override
     public boolean replaceTrigger(TriggerKey triggerKey, OperableTrigger newTrigger) throws JobPersistenceException {
-        return triggerStore.replaceTrigger(triggerKey, createCouchDbTrigger(newTrigger));
+        long start = metrics.start();
+        try {
+            CouchDbTrigger couchdbTrigger = newCouchDbTrigger(newTrigger, pausedGroupStore.getPausedGroups());
+            if (couchdbTrigger.getKey().equals(triggerKey)) {
+                useClaimedRevision(couchdbTrigger);
+            }
+            return triggerStore.replaceTrigger(triggerKey, couchdbTrigger);
+        } finally {
+            metrics.operationCompleted("replaceTrigger", start);
+        }
+    }
+
+    /**
+     * Replacing a trigger this instance claimed gives up the claim; the revision it was claimed at saves reading
+     * the trigger before writing it.
+     */
+    private void useClaimedRevision(CouchDbTrigger couchdbTrigger) {
+        CouchDbTrigger claimedTrigger = acquiredTriggers.remove(couchdbTrigger.getId());
+        if (claimedTrigger != null && claimedTrigger.getJobKey().equals(couchdbTrigger.getJobKey())) {
+            couchdbTrigger.setRevision(claimedTrigger.getRevision());
+        }
     }
 
     @Override
     public OperableTrigger retrieveTrigger(TriggerKey triggerKey) throws JobPersistenceException {
-        CouchDbTrigger couchdbTrigger = triggerStore.retrieveTrigger(triggerKey);
-        return couchdbTrigger != null ? couchdbTrigger.getTrigger() : null;
+        long start = metrics.start();
+        try {
+            CouchDbTrigger couchdbTrigger = triggerStore.retrieveTrigger(triggerKey);
+            return couchdbTrigger != null ? couchdbTrigger.getTrigger() : null;
+        } finally {
+            metrics.operationCompleted("retrieveTrigger", start);
+        }
     }
 
     @Override
     public boolean checkExists(JobKey jobKey) throws JobPersistenceException {
-        return jobStore.checkExists(jobKey);
+        long start = metrics.start();
+        try {
+            return jobStore.checkExists(jobKey);
+        } finally {
+            metrics.operationCompleted("checkExists", start);
+        }
     }
 
     @Override
     public boolean checkExists(TriggerKey triggerKey) throws JobPersistenceException {
-        return triggerStore.checkExists(triggerKey);
+        long start = metrics.start();
+        try {
+            return triggerStore.checkExists(triggerKey);
+        } finally {
+            metrics.operationCompleted("checkExists", start);
+        }
     }
 
     @Override
     public void clearAllSchedulingData() throws JobPersistenceException {
-        jobStore.removeAll();
-        triggerStore.removeAll();
-        calendarStore.removeAll();
-        if (jobStore.getAll().size() > 0) {
-            throw new JobPersistenceException("jobs not cleared");
-        }
-        if (triggerStore.getAll().size() > 0) {
-            throw new JobPersistenceException("triggers not cleared");
-        }
-        if (calendarStore.getAll().size() > 0) {
-            throw new JobPersistenceException("calendars not cleared");
+        long start = metrics.start();
+        try {
+            int removedJobs = jobStore.removeAll();
+            int removedTriggers = triggerStore.removeAll();
+            int removedCalendars = calendarStore.removeAll();
+            int removedPausedGroups = pausedGroupStore.removeAll();
+            if (logger.isInfoEnabled()) {
+                logger.info(String.format("cleared %s jobs, %s triggers, %s calendars and %s paused groups", removedJobs, removedTriggers, removedCalendars, removedPausedGroups));
+            }
+            if (jobStore.getNumberOfJobs() > 0) {
+                throw new JobPersistenceException("jobs not cleared");
+            }
+            if (triggerStore.getNumberOfTriggers() > 0) {
+                throw new JobPersistenceException("triggers not cleared");
+            }
+            if (calendarStore.getNumberOfCalendars() > 0) {
+                throw new JobPersistenceException("calendars not cleared");
+            }
+        } finally {
+            metrics.operationCompleted("clearAllSchedulingData", start);
         }
     }
 
     @Override
     public void storeCalendar(String name, Calendar calendar, boolean replaceExisting, boolean updateTriggers) throws JobPersistenceException {
-        CouchDbCalendar couchdbCalendar = new CouchDbCalendar(name, calendar);
-        calendarStore.storeCalendar(couchdbCalendar, replaceExisting);
-        if (updateTriggers) {
-            for (CouchDbTrigger trigger : triggerStore.findByCalendarName(name)) {
-                trigger.updateWithNewCalendar(getCalendar(name), 1000);
-                triggerStore.storeTrigger(trigger, true);
+        long start = metrics.start();
+        try {
+            CouchDbCalendar couchdbCalendar = new CouchDbCalendar(name, calendar);
+            calendarStore.storeCalendar(couchdbCalendar, replaceExisting);
+            if (updateTriggers) {
+                final Calendar storedCalendar = getCalendar(name);
+                triggerStore.updateTriggersOfCalendar(name, new CouchDbTriggerStore.TriggerUpdate() {
+                    @Override
+                    public boolean update(CouchDbTrigger trigger) {
+                        trigger.updateWithNewCalendar(storedCalendar, 1000);
+                        return true;
+                    }
+                });
             }
+        } finally {
+            metrics.operationCompleted("storeCalendar", start);
         }
     }
 
     private Calendar getCalendar(String name) {
-        CouchDbCalendar couchdbCalendar = calendarStore.get(name);
-        return couchdbCalendar != null ? couchdbCalendar.getCalendar() : null;
+        return calendarStore.findCalendar(name);
     }
 
     @Override
     public boolean removeCalendar(String calName) throws JobPersistenceException {
-        return calendarStore.removeCalendar(calName);
+        long start = metrics.start();
+        try {
+            return calendarStore.removeCalendar(calName);
+        } finally {
+            metrics.operationCompleted("removeCalendar", start);
+        }
     }
 
     @Override
     public Calendar retrieveCalendar(String calName) throws JobPersistenceException {
-        return getCalendar(calName);
+        long start = metrics.start();
+        try {
+            return calendarStore.retrieveCalendar(calName);
+        } finally {
+            metrics.operationCompleted("retrieveCalendar", start);
+        }
     }
 
     @Override
     public int getNumberOfJobs() throws JobPersistenceException {
-        return jobStore.getNumberOfJobs();
+        long start = metrics.start();
+        try {
+            return jobStore.getNumberOfJobs();
+        } finally {
+            metrics.operationCompleted("getNumberOfJobs", start);
+        }
     }
 
     @Override
     public int getNumberOfTriggers() throws JobPersistenceException {
-        return triggerStore.getNumberOfTriggers();
+        long start = metrics.start();
+        try {
+            return triggerStore.getNumberOfTriggers();
+        } finally {
+            metrics.operationCompleted("getNumberOfTriggers", start);
+        }
     }
 
     @Override
     public int getNumberOfCalendars() throws JobPersistenceException {
-        return calendarStore.getNumberOfCalendars();
+        long start = metrics.start();
+        try {
+            return calendarStore.getNumberOfCalendars();
+        } finally {
+            metrics.operationCompleted("getNumberOfCalendars", start);
+        }
     }
 
     @Override
     public Set<JobKey> getJobKeys(GroupMatcher<JobKey> matcher) throws JobPersistenceException {
-        return jobStore.getJobKeys(matcher);
+        long start = metrics.start();
+        try {
+            return jobStore.getJobKeys(matcher);
+        } finally {
+            metrics.operationCompleted("getJobKeys", start);
+        }
     }
 
     @Override
     public Set<TriggerKey> getTriggerKeys(GroupMatcher<TriggerKey> matcher) throws JobPersistenceException {
-        return triggerStore.getTriggerKeys(matcher);
+        long start = metrics.start();
+        try {
+            return triggerStore.getTriggerKeys(matcher);
+        } finally {
+            metrics.operationCompleted("getTriggerKeys", start);
+        }
     }
 
     @Override
     public List<String> getJobGroupNames() throws JobPersistenceException {
-        return jobStore.getJobGroupNames();
+        long start = metrics.start();
+        try {
+            return jobStore.getJobGroupNames();
+        } finally {
+            metrics.operationCompleted("getJobGroupNames", start);
+        }
     }
 
     @Override
     public List<String> getTriggerGroupNames() throws JobPersistenceException {
-        return triggerStore.getTriggerGroupNames();
+        long start = metrics.start();
+        try {
+            return triggerStore.getTriggerGroupNames();
+        } finally {
+            metrics.operationCompleted("getTriggerGroupNames", start);
+        }
     }
 
     @Override
     public List<String> getCalendarNames() throws JobPersistenceException {
-        return calendarStore.getCalendarNames();
+        long start = metrics.start();
+        try {
+            return calendarStore.getCalendarNames();
+        } finally {
+            metrics.operationCompleted("getCalendarNames", start);
+        }
     }
 
     @Override
     public List<OperableTrigger> getTriggersForJob(JobKey jobKey) throws JobPersistenceException {
-        List<CouchDbTrigger> couchdbTriggers = triggerStore.findByJob(jobKey);
-        List<OperableTrigger> operableTriggers = new ArrayList<OperableTrigger>();
-        for (CouchDbTrigger trigger : couchdbTriggers) {
-            operableTriggers.add(trigger.getTrigger());
+        long start = metrics.start();
+        try {
+            List<CouchDbTrigger> couchdbTriggers = triggerStore.findByJob(jobKey);
+            List<OperableTrigger> operableTriggers = new ArrayList<OperableTrigger>();
+            for (CouchDbTrigger trigger : couchdbTriggers) {
+                operableTriggers.add(trigger.getTrigger());
+            }
+            return operableTriggers;
+        } finally {
+            metrics.operationCompleted("getTriggersForJob", start);
         }
-        return operableTriggers;
     }
 
     @Override
     public Trigger.TriggerState getTriggerState(TriggerKey triggerKey) throws JobPersistenceException {
-        return triggerStore.getTriggerState(triggerKey);
+        long start = metrics.start();
+        try {
+            CouchDbTrigger trigger = triggerStore.getTriggerByKey(triggerKey);
+            if (trigger == null) {
+                return null;
+            }
+            CouchDbTriggerState state = trigger.getState();
+            // triggers of a group paused by marker keep their state, report the one pausing them would have set
+            if (pausedGroupStore.isPaused(triggerKey.getGroup())) {
+                state = state.paused();
+            }
+            return state.getQuartzTriggerState();
+        } finally {
+            metrics.operationCompleted("getTriggerState", start);
+        }
     }
 
     @Override
     public void pauseTrigger(TriggerKey triggerKey) throws JobPersistenceException {
-        triggerStore.updateTriggerState(triggerKey, Constants.STATE_WAITING);
+        long start = metrics.start();
+        try {
+            triggerStore.updateTrigger(triggerKey, pause);
+        } finally {
+            metrics.operationCompleted("pauseTrigger", start);
+        }
     }
 
+    /**
+     * Marks the matched trigger groups paused with one marker document each; their triggers keep their state but
+     * are not acquired until the group is resumed. Triggers stored into a paused group start out PAUSED.
+     */
     @Override
     public Collection<String> pauseTriggers(GroupMatcher<TriggerKey> matcher) throws JobPersistenceException {
-        throw new NotImplementedException();
+        long start = metrics.start();
+        try {
+            Set<String> groups = new HashSet<String>();
+            if (matcher.getCompareWithOperator() == StringMatcher.StringOperatorName.EQUALS) {
+                groups.add(matcher.getCompareToValue());
+            } else {
+                for (String group : triggerStore.getNumberOfTriggersByGroup().keySet()) {
+                    if (GroupMatcherKeyRange.matches(matcher, group)) {
+                        groups.add(group);
+                    }
+                }
+            }
+            pausedGroupStore.pauseGroups(groups);
+            return groups;
+        } finally {
+            metrics.operationCompleted("pauseTriggers", start);
+        }
     }
 
     @Override
     public void pauseJob(JobKey jobKey) throws JobPersistenceException {
-        throw new NotImplementedException();
+        long start = metrics.start();
+        try {
+            triggerStore.updateTriggersOfJob(jobKey, pause);
+        } finally {
+            metrics.operationCompleted("pauseJob", start);
+        }
     }
 
     @Override
     public Collection<String> pauseJobs(GroupMatcher<JobKey> groupMatcher) throws JobPersistenceException {
-        throw new NotImplementedException();
+        long start = metrics.start();
+        try {
+            return triggerStore.updateTriggersOfJobGroups(groupMatcher, pause);
+        } finally {
+            metrics.operationCompleted("pauseJobs", start);
+        }
     }
 
     @Override
     public void resumeTrigger(TriggerKey triggerKey) throws JobPersistenceException {
-        throw new NotImplementedException();
+        long start = metrics.start();
+        try {
+            triggerStore.updateTrigger(triggerKey, resume);
+        } finally {
+            metrics.operationCompleted("resumeTrigger", start);
+        }
     }
 
+    /**
+     * Removes the paused markers of the matched groups and resumes their individually paused triggers. Triggers
+     * stay paused while {@link #pauseAll()} is in effect.
+     */
     @Override
     public Collection<String> resumeTriggers(GroupMatcher<TriggerKey> matcher) throws JobPersistenceException {
-        throw new NotImplementedException();
+        long start = metrics.start();
+        try {
+            Set<String> groups = new HashSet<String>();
+            for (String group : getPausedTriggerGroups()) {
+                if (GroupMatcherKeyRange.matches(matcher, group)) {
+                    groups.add(group);
+                }
+            }
+            pausedGroupStore.resumeGroups(groups);
+            groups.addAll(triggerStore.updatePausedTriggersInGroups(matcher, resume));
+            return groups;
+        } finally {
+            metrics.operationCompleted("resumeTriggers", start);
+        }
     }
 
     @Override
     public Set<String> getPausedTriggerGroups() throws JobPersistenceException {
-        throw new NotImplementedException();
+        long start = metrics.start();
+        try {
+            Set<String> groups = pausedGroupStore.getPausedGroups();
+            // like the RAM and JDBC stores, report every trigger group as paused after pauseAll
+            if (groups.remove(Constants.ALL_GROUPS_PAUSED)) {
+                groups.addAll(triggerStore.getTriggerGroupNames());
+            }
+            return groups;
+        } finally {
+            metrics.operationCompleted("getPausedTriggerGroups", start);
+        }
     }
 
     @Override
     public void resumeJob(JobKey jobKey) throws JobPersistenceException {
-        throw new NotImplementedException();
+        long start = metrics.start();
+        try {
+            triggerStore.updateTriggersOfJob(jobKey, resume);
+        } finally {
+            metrics.operationCompleted("resumeJob", start);
+        }
     }
 
     @Override
     public Collection<String> resumeJobs(GroupMatcher<JobKey> matcher) throws JobPersistenceException {
-        throw new NotImplementedException();
+        long start = metrics.start();
+        try {
+            return triggerStore.updateTriggersOfJobGroups(matcher, resume);
+        } finally {
+            metrics.operationCompleted("resumeJobs", start);
+        }
     }
 
     @Override
     public void pauseAll() throws JobPersistenceException {
-        throw new NotImplementedException();
+        long start = metrics.start();
+        try {
+            pausedGroupStore.pauseGroups(Arrays.asList(Constants.ALL_GROUPS_PAUSED));
+        } finally {
+            metrics.operationCompleted("pauseAll", start);
+        }
     }
 
     @Override
     public void resumeAll() throws JobPersistenceException {
-        throw new NotImplementedException();
+        long start = metrics.start();
+        try {
+            pausedGroupStore.resumeGroups(pausedGroupStore.getPausedGroups());
+            triggerStore.updatePausedTriggersInGroups(GroupMatcher.triggerGroupStartsWith(""), resume);
+        } finally {
+            metrics.operationCompleted("resumeAll", start);
+        }
     }
 
     protected boolean applyMisfire(OperableTrigger trigger) throws JobPersistenceException {
+        return applyMisfire(trigger, null);
+    }
+
+    /**
+     * @param calendars calendars already looked up by name, filled as more are needed; null to look each up
+     */
+    private boolean applyMisfire(OperableTrigger trigger, Map<String, Calendar> calendars) {
 
         long misfireTime = System.currentTimeMillis();
         if (getMisfireThreshold() > 0) {
@@ -425,7 +1033,14 @@ public class CouchDbStore implements JobStore {
 
         Calendar cal = null;
         if (trigger.getCalendarName() != null) {
-            cal = retrieveCalendar(trigger.getCalendarName());
+            if (calendars == null) {
+                cal = getCalendar(trigger.getCalendarName());
+            } else if (calendars.containsKey(trigger.getCalendarName())) {
+                cal = calendars.get(trigger.getCalendarName());
+            } else {
+                cal = getCalendar(trigger.getCalendarName());
+                calendars.put(trigger.getCalendarName(), cal);
+            }
         }
 
         trigger.updateAfterMisfire(cal);
@@ -437,6 +1052,10 @@ public class CouchDbStore implements JobStore {
         return true;
     }
 
+    public void setRollbackPartialBulkStores(boolean rollbackPartialBulkStores) {
+        this.rollbackPartialBulkStores = rollbackPartialBulkStores;
+    }
+
     private long getMisfireThreshold() {
         return this.misfireThreshold;
     }
@@ -450,87 +1069,283 @@ public class CouchDbStore implements JobStore {
 
     @Override
     public List<OperableTrigger> acquireNextTriggers(long noLaterThan, int maxCount, long timeWindow) throws JobPersistenceException {
-        if (logger.isInfoEnabled()) {
-            logger.info(String.format("acquireNextTriggers: [%s], maxCount [%s], timeWindow [%s]", noLaterThan, maxCount, timeWindow));
-        }
-        List<CouchDbTrigger> couchdbTriggers = triggerStore.acquireNextTriggers(noLaterThan, maxCount, timeWindow);
+        long start = metrics.start();
+        long acquisitionStarted = System.currentTimeMillis();
+        try {
+            if (logger.isInfoEnabled()) {
+                logger.info(String.format("acquireNextTriggers: [%s], maxCount [%s], timeWindow [%s]", noLaterThan, maxCount, timeWindow));
+            }
+            if (triggerIndex != null) {
+                startFollowingChanges();
+            }
+            List<OperableTrigger> operableTriggers = new ArrayList<OperableTrigger>();
+            Set<String> pausedGroups = pausedGroupStore.getPausedGroups();
+            if (pausedGroups.contains(Constants.ALL_GROUPS_PAUSED)) {
+                logger.info("all trigger groups are paused, no triggers acquired.");
+                return operableTriggers;
+            }
+            List<CouchDbTrigger> skippedTriggers = new ArrayList<CouchDbTrigger>();
+            Set<String> seenTriggerIds = new HashSet<String>();
+            Date acquiredTime = new Date();
+            ComplexKey pageStartKey = null;
+            boolean passedOver = false;
+            while (operableTriggers.size() < maxCount) {
+                int wanted = maxCount - operableTriggers.size();
+                int pageSize = wanted;
+                List<CouchDbTrigger> candidates = new ArrayList<CouchDbTrigger>();
+                boolean advanced = false;
+                int rows;
+                if (triggerIndex != null) {
+                    List<CouchDbTrigger> page = triggerIndex.takeNextTriggers(noLaterThan + timeWindow, pageSize);
+                    rows = page.size();
+                    for (CouchDbTrigger couchdbTrigger : page) {
+                        if (!seenTriggerIds.add(couchdbTrigger.getId())) {
+                            continue;
+                        }
+                        advanced = true;
+                        if (pausedGroupStore.isPaused(pausedGroups, couchdbTrigger.getGroup()) || !couchdbTrigger.isAcquirable(acquiredTime.getTime())) {
+                            skippedTriggers.add(couchdbTrigger);
+                        } else {
+                            candidates.add(couchdbTrigger);
+                        }
+                    }
+                } else {
+                    // decide on the view rows and load only the documents of the triggers to be claimed; rows passed
+                    // over are cheap without documents, so once there are some the rest is read in larger pages
+                    if (passedOver) {
+                        pageSize = Math.max(wanted, acquisitionPageSize);
+                    }
+                    if (pageStartKey != null) {
+                        // the start row comes again
+                        pageSize++;
+                    }
+                    List<CouchDbTriggerStore.AcquirableTrigger> page = triggerStore.findAcquirableTriggers(noLaterThan + timeWindow, pageSize, pageStartKey);
+                    rows = page.size();
+                    Map<String, String> revisions = new LinkedHashMap<String, String>();
+                    for (CouchDbTriggerStore.AcquirableTrigger row : page) {
+                        if (revisions.size() == wanted) {
+                            // the rest of the page is read again from here if any of these cannot be claimed
+                            rows = pageSize;
+                            break;
+                        }
+                        if (!seenTriggerIds.add(row.getId())) {
+                            continue;
+                        }
+                        advanced = true;
+                        pageStartKey = row.getAcquisitionKey();
+                        if (!pausedGroupStore.isPaused(pausedGroups, row.getGroup()) && row.mayBeAcquirable()) {
+                            revisions.put(row.getId(), row.getRevision());
+                        } else {
+                            passedOver = true;
+                        }
+                    }
+                    if (!revisions.isEmpty()) {
+                        for (CouchDbTrigger couchdbTrigger : triggerStore.getTriggersAtRevisions(revisions)) {
+                            if (couchdbTrigger.isAcquirable(acquiredTime.getTime())) {
+                                candidates.add(couchdbTrigger);
+                            }
+                        }
+                    }
+                }
+                if (!advanced) {
+                    break;
+                }
 
-        List<OperableTrigger> operableTriggers = new ArrayList<OperableTrigger>();
-        for (CouchDbTrigger couchdbTrigger : couchdbTriggers) {
-            applyMisfire(couchdbTrigger.getTrigger());
-            couchdbTrigger.setState(CouchDbTriggerState.ACQUIRED);
-            operableTriggers.add(couchdbTrigger.getTrigger());
+                for (CouchDbTrigger couchdbTrigger : candidates) {
+                    applyMisfire(couchdbTrigger.getTrigger());
+                    couchdbTrigger.acquire(instanceId, acquiredTime, triggerLeaseDuration);
+                }
+                List<CouchDbTrigger> claimedTriggers = triggerStore.claimTriggers(candidates);
+                long acquired = System.currentTimeMillis();
+                for (CouchDbTrigger couchdbTrigger : claimedTriggers) {
+                    acquiredTriggers.put(couchdbTrigger.getId(), couchdbTrigger);
+                    operableTriggers.add(couchdbTrigger.getTrigger());
+                    recordAcquired(couchdbTrigger, acquisitionStarted, acquired);
+                }
+                if (rows < pageSize) {
+                    break;
+                }
+            }
+            if (triggerIndex != null) {
+                // triggers of paused groups and unexpired leases were taken out of the index along with the others
+                for (CouchDbTrigger couchdbTrigger : skippedTriggers) {
+                    triggerIndex.put(couchdbTrigger);
+                }
+            }
+            previousAcquisitionHorizon = noLaterThan + timeWindow;
+            previousAcquisitionFull = operableTriggers.size() >= maxCount;
+            if (logger.isInfoEnabled()) {
+                logger.info(operableTriggers.size() + " triggers acquired.");
+                logger.trace(operableTriggers);
+            }
+            return operableTriggers;
+        } finally {
+            metrics.operationCompleted("acquireNextTriggers", start);
         }
-        triggerStore.updateTriggers(couchdbTriggers);
-        if (logger.isInfoEnabled()) {
-            logger.info(operableTriggers.size() + " triggers acquired.");
-            logger.trace(operableTriggers);
+    }
+
+    /**
+     * Starts the timeline of the fire, passed over if the previous acquisition covered its time without being full.
+     */
+    private void recordAcquired(CouchDbTrigger couchdbTrigger, long acquisitionStarted, long acquired) {
+        Date nextFireTime = couchdbTrigger.getNextFireTime();
+        if (nextFireTime == null) {
+            return;
         }
-        return operableTriggers;
+        long due = nextFireTime.getTime();
+        boolean passedOver = previousAcquisitionHorizon >= due && !previousAcquisitionFull;
+        metrics.fireAcquired(couchdbTrigger.getKey(), due, acquisitionStarted, acquired, passedOver);
     }
 
     @Override
     public void releaseAcquiredTrigger(OperableTrigger trigger) throws JobPersistenceException {
-        triggerStore.releaseAcquiredTrigger(createCouchDbTrigger(trigger));
+        long start = metrics.start();
+        try {
+            CouchDbTrigger claimedTrigger = acquiredTriggers.remove(CouchDbTrigger.toId(trigger.getKey().getGroup(), trigger.getKey().getName()));
+            if (claimedTrigger != null) {
+                triggerStore.releaseClaimedTrigger(claimedTrigger, instanceId);
+            } else {
+                triggerStore.releaseAcquiredTrigger(createCouchDbTrigger(trigger));
+            }
+        } finally {
+            metrics.operationCompleted("releaseAcquiredTrigger", start);
+        }
     }
 
     @Override
     public List<TriggerFiredResult> triggersFired(List<OperableTrigger> triggers) throws JobPersistenceException {
-        if (logger.isInfoEnabled()) {
-            logger.info("Triggers fired " + triggers.size());
-            logger.trace(triggers);
-        }
+        long start = metrics.start();
+        long fireStarted = System.currentTimeMillis();
+        try {
+            if (logger.isInfoEnabled()) {
+                logger.info("Triggers fired " + triggers.size());
+                logger.trace(triggers);
+            }
 
-        List<CouchDbTrigger> couchdbTriggers = fetchCouchDbTriggers(triggers);
-        Map<String, Calendar> triggerCalendars = fetchCalendars(triggers);
-        Map<JobKey, JobDetail> jobDetailMap = fetchJobDetails(triggers);
+            Map<JobKey, CouchDbJobDetail> cachedJobs = jobStore.getCachedJobs(jobKeys(triggers));
+            Map<TriggerKey, CouchDbTrigger> claimedTriggers = takeAcquiredTriggers(triggers);
+            CouchDbDocumentLoader.Documents documents = documentLoader.load(documentIds(triggers, claimedTriggers.keySet(), cachedJobs.keySet()));
+            List<CouchDbTrigger> couchdbTriggers = fetchCouchDbTriggers(triggers, claimedTriggers, documents);
+            Map<String, Calendar> triggerCalendars = fetchCalendars(triggers, documents);
+            Map<JobKey, JobDetail> jobDetailMap = fetchJobDetails(triggers, documents, cachedJobs);
 
-        List<TriggerFiredResult> firedResults = new ArrayList<TriggerFiredResult>();
-        List<CouchDbTrigger> firedTriggers = triggerStore.triggersFired(couchdbTriggers, triggerCalendars);
-        for (CouchDbTrigger firedTrigger : firedTriggers) {
+            List<TriggerFiredResult> firedResults = new ArrayList<TriggerFiredResult>();
+            List<CouchDbTrigger> firedTriggers = triggerStore.triggersFired(couchdbTriggers, triggerCalendars, instanceId);
+            metrics.triggersFired(firedTriggers.size());
+            for (CouchDbTrigger firedTrigger : firedTriggers) {
 
-            Date prevFireTime = find(couchdbTriggers, firedTrigger.getKey()).getPreviousFireTime();
-            Calendar calendar = triggerCalendars.get(firedTrigger.getCalendarName());
-            JobDetail job = jobDetailMap.get(firedTrigger.getJobKey());
+                Date prevFireTime = find(couchdbTriggers, firedTrigger.getKey()).getPreviousFireTime();
+                Calendar calendar = triggerCalendars.get(firedTrigger.getCalendarName());
+                JobDetail job = jobDetailMap.get(firedTrigger.getJobKey());
 
-            TriggerFiredBundle triggerFiredBundle = buildTriggerFiredBundle(firedTrigger, prevFireTime, calendar, job);
-            firedResults.add(new TriggerFiredResult(triggerFiredBundle));
+                TriggerFiredBundle triggerFiredBundle = buildTriggerFiredBundle(firedTrigger, prevFireTime, calendar, job);
+                firedResults.add(new TriggerFiredResult(triggerFiredBundle));
+            }
+            long fired = System.currentTimeMillis();
+            for (CouchDbTrigger firedTrigger : firedTriggers) {
+                // the fire time just passed is the scheduled one now
+                if (firedTrigger.getPreviousFireTime() != null) {
+                    metrics.fired(firedTrigger.getKey(), firedTrigger.getPreviousFireTime().getTime(), fireStarted, fired);
+                }
+            }
+            return firedResults;
+        } finally {
+            metrics.operationCompleted("triggersFired", start);
         }
-        return firedResults;
     }
 
-    private Map<JobKey, JobDetail> fetchJobDetails(List<OperableTrigger> triggers) {
+    private Set<JobKey> jobKeys(List<OperableTrigger> triggers) {
         Set<JobKey> jobKeys = new HashSet<JobKey>();
         for (OperableTrigger trigger : triggers) {
             jobKeys.add(trigger.getJobKey());
         }
-        Map<JobKey, JobDetail> jobDetailMap = new HashMap<JobKey,JobDetail>();
-        List<CouchDbJobDetail> jobs = jobStore.getJobs(new ArrayList<JobKey>(jobKeys));
-        for (CouchDbJobDetail job : jobs) {
-            jobDetailMap.put(job.getKey(), job);
+        return jobKeys;
+    }
+
+    /**
+     * Takes the documents this instance claimed for the given triggers out of the acquired triggers, they are
+     * fired as claimed without being read again.
+     */
+    private Map<TriggerKey, CouchDbTrigger> takeAcquiredTriggers(List<OperableTrigger> triggers) {
+        Map<TriggerKey, CouchDbTrigger> claimedTriggers = new HashMap<TriggerKey, CouchDbTrigger>();
+        for (OperableTrigger trigger : triggers) {
+            CouchDbTrigger couchdbTrigger = acquiredTriggers.remove(CouchDbTrigger.toId(trigger.getKey().getGroup(), trigger.getKey().getName()));
+            if (couchdbTrigger != null) {
+                claimedTriggers.put(trigger.getKey(), couchdbTrigger);
+            }
         }
-        return jobDetailMap;
+        return claimedTriggers;
     }
 
-    private Map<String, Calendar> fetchCalendars(List<OperableTrigger> triggers) {
-        Set<String> calendarNames = new HashSet<String>();
+    private Set<String> documentIds(List<OperableTrigger> triggers, Set<TriggerKey> claimedTriggerKeys, Set<JobKey> cachedJobKeys) {
+        Set<String> ids = new HashSet<String>();
         for (OperableTrigger trigger : triggers) {
-            calendarNames.add(trigger.getCalendarName());
+            if (!claimedTriggerKeys.contains(trigger.getKey())) {
+                ids.add(CouchDbTrigger.toId(trigger.getKey().getGroup(), trigger.getKey().getName()));
+            }
+            if (!cachedJobKeys.contains(trigger.getJobKey())) {
+                ids.add(CouchDbJobDetail.toId(trigger.getJobKey().getGroup(), trigger.getJobKey().getName()));
+            }
+            if (trigger.getCalendarName() != null) {
+                ids.add(CouchDbCalendar.toId(trigger.getCalendarName()));
+            }
         }
+        return ids;
+    }
+
+    private Map<JobKey, JobDetail> fetchJobDetails(List<OperableTrigger> triggers, CouchDbDocumentLoader.Documents documents, Map<JobKey, CouchDbJobDetail> cachedJobs) {
+        Map<JobKey, JobDetail> jobDetailMap = new HashMap<JobKey,JobDetail>(cachedJobs);
+        for (OperableTrigger trigger : triggers) {
+            CouchDbJobDetail job = documents.getJob(trigger.getJobKey());
+            if (job != null) {
+                jobStore.cacheJob(job);
+                jobDetailMap.put(job.getKey(), job);
+            }
+        }
+        return jobDetailMap;
+    }
+
+    private Map<String, Calendar> fetchCalendars(List<OperableTrigger> triggers, CouchDbDocumentLoader.Documents documents) {
         Map<String, Calendar> calendarMap = new HashMap<String, Calendar>();
-        List<CouchDbCalendar> calendars = calendarStore.getCalendars(new ArrayList<String>(calendarNames));
-        for (CouchDbCalendar calendar : calendars) {
-            calendarMap.put(calendar.getName(), calendar.getCalendar());
+        Set<String> legacyCalendarNames = new HashSet<String>();
+        for (OperableTrigger trigger : triggers) {
+            String calendarName = trigger.getCalendarName();
+            if (calendarName == null) {
+                continue;
+            }
+            CouchDbCalendar calendar = documents.getCalendar(calendarName);
+            if (calendar != null) {
+                calendarMap.put(calendarName, calendarStore.resolve(calendar).getCalendar());
+            } else {
+                legacyCalendarNames.add(calendarName);
+            }
+        }
+        // calendars stored before their ids were derived from their names can only be found by name
+        if (!legacyCalendarNames.isEmpty()) {
+            for (CouchDbCalendar calendar : calendarStore.findLegacyCalendars(new ArrayList<String>(legacyCalendarNames))) {
+                calendarMap.put(calendar.getName(), calendar.getCalendar());
+            }
         }
         return calendarMap;
     }
 
-    private List<CouchDbTrigger> fetchCouchDbTriggers(List<OperableTrigger> triggers) throws JobPersistenceException {
-        List<TriggerKey> triggerKeys = new ArrayList<TriggerKey>();
+    private List<CouchDbTrigger> fetchCouchDbTriggers(List<OperableTrigger> triggers, Map<TriggerKey, CouchDbTrigger> claimedTriggers, CouchDbDocumentLoader.Documents documents) {
+        List<CouchDbTrigger> couchdbTriggers = new ArrayList<CouchDbTrigger>();
         for (OperableTrigger trigger : triggers) {
-                triggerKeys.add(trigger.getKey());
+            CouchDbTrigger couchdbTrigger = claimedTriggers.containsKey(trigger.getKey())
+                ? claimedTriggers.get(trigger.getKey())
+                : documents.getTrigger(trigger.getKey());
+            if (couchdbTrigger == null) {
+                continue;
+            }
+            if (couchdbTrigger.getState() == CouchDbTriggerState.ACQUIRED && couchdbTrigger.getInstanceId() != null
+                && !couchdbTrigger.getInstanceId().equals(instanceId)) {
+                logger.warn(String.format("trigger %s was acquired by %s after its lease expired, not firing it", trigger.getKey(), couchdbTrigger.getInstanceId()));
+                continue;
+            }
+            couchdbTriggers.add(couchdbTrigger);
         }
-        return triggerStore.getTriggersByKeys(triggerKeys);
+        return couchdbTriggers;
     }
 
     private TriggerFiredBundle buildTriggerFiredBundle(CouchDbTrigger firedTrigger, Date prevFireTime, Calendar calendar, JobDetail job) {
@@ -556,8 +1371,16 @@ public class CouchDbStore implements JobStore {
 
     @Override
     public void triggeredJobComplete(OperableTrigger trigger, JobDetail jobDetail, Trigger.CompletedExecutionInstruction triggerInstCode) throws JobPersistenceException {
-        if (trigger.getNextFireTime() == null) {
-            triggerStore.removeTrigger(trigger.getKey());
+        long start = metrics.start();
+        try {
+            if (trigger.getNextFireTime() == null) {
+                triggerStore.removeTrigger(trigger.getKey());
+            }
+            if (trigger.getPreviousFireTime() != null) {
+                metrics.fireCompleted(trigger.getKey(), trigger.getPreviousFireTime().getTime(), System.currentTimeMillis());
+            }
+        } finally {
+            metrics.operationCompleted("triggeredJobComplete", start);
         }
     }
 
@@ -597,6 +1420,14 @@ public class CouchDbStore implements JobStore {
         return schedulerRunning;
     }
 
+    private CouchDbTrigger newCouchDbTrigger(OperableTrigger newTrigger, Set<String> pausedGroups) {
+        CouchDbTrigger couchdbTrigger = createCouchDbTrigger(newTrigger);
+        if (pausedGroupStore.isPaused(pausedGroups, newTrigger.getKey().getGroup())) {
+            couchdbTrigger.setState(CouchDbTriggerState.PAUSED);
+        }
+        return couchdbTrigger;
+    }
+
     private CouchDbTrigger createCouchDbTrigger(OperableTrigger newTrigger) {
         CouchDbTrigger couchdbTrigger = null;
         if (newTrigger instanceof SimpleTriggerImpl) {
@@ -4,6 +4,7 @@ import org.codehaus.jackson.annotate.JsonIgnore;
 import org.codehaus.jackson.annotate.JsonProperty;
 import org.codehaus.jackson.annotate.JsonSubTypes;
 import org.codehaus.jackson.annotate.JsonTypeInfo;
+import org.ektorp.ComplexKey;
 import org.quartz.Calendar;
 import org.quartz.JobDataMap;
 import org.quartz.JobKey;
@@ -25,6 +26,9 @@ public abstract class CouchDbTrigger<T extends AbstractTrigger> {
     private String revision;
     private String type;
     private CouchDbTriggerState state;
+    private String instanceId;
+    private Date acquiredTime;
+    private Date leaseUntil;
 
     private Date startTime;
     private Date endTime;
@@ -135,6 +139,108 @@ public abstract class CouchDbTrigger<T extends AbstractTrigger> {
         this.state = state;
     }
 
+    /**
+     * The scheduler instance that acquired the trigger; null unless ACQUIRED or EXECUTING.
+     */
+    @JsonProperty("instance_id")
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    @JsonProperty("instance_id")
+    public void setInstanceId(String instanceId) {
+        this.instanceId = instanceId;
+    }
+
+    @JsonProperty("acquired_time")
+    public Date getAcquiredTime() {
+        return acquiredTime;
+    }
+
+    @JsonProperty("acquired_time")
+    public void setAcquiredTime(Date acquiredTime) {
+        this.acquiredTime = acquiredTime;
+    }
+
+    /**
+     * The time until which the acquiring scheduler owns the trigger; once it has passed without the trigger being
+     * fired or released, any scheduler may acquire it again.
+     */
+    @JsonProperty("lease_until")
+    public Date getLeaseUntil() {
+        return leaseUntil;
+    }
+
+    @JsonProperty("lease_until")
+    public void setLeaseUntil(Date leaseUntil) {
+        this.leaseUntil = leaseUntil;
+    }
+
+    /**
+     * Marks the trigger as acquired by the given scheduler instance, leased until leaseMillis after its next fire
+     * time (or after the acquisition, if that is later).
+     */
+    public void acquire(String instanceId, Date acquiredTime, long leaseMillis) {
+        this.state = CouchDbTriggerState.ACQUIRED;
+        this.instanceId = instanceId;
+        this.acquiredTime = acquiredTime;
+        Date nextFireTime = getNextFireTime();
+        long leaseStart = nextFireTime != null && nextFireTime.after(acquiredTime) ? nextFireTime.getTime() : acquiredTime.getTime();
+        this.leaseUntil = new Date(leaseStart + leaseMillis);
+    }
+
+    /**
+     * Hands the trigger back, waiting to be acquired again.
+     */
+    public void release() {
+        this.state = CouchDbTriggerState.WAITING;
+        this.instanceId = null;
+        this.acquiredTime = null;
+        this.leaseUntil = null;
+    }
+
+    /**
+     * @return the earliest time the trigger may be acquired: its next fire time while waiting, the later of next
+     * fire time and lease expiry while acquired, null otherwise. This is the key of the acquirable_by_time view.
+     */
+    @JsonIgnore
+    public Date getAcquirableFrom() {
+        Date nextFireTime = getNextFireTime();
+        if (nextFireTime == null) {
+            return null;
+        }
+        if (state == CouchDbTriggerState.WAITING) {
+            return nextFireTime;
+        }
+        if (state == CouchDbTriggerState.ACQUIRED && leaseUntil != null) {
+            return leaseUntil.after(nextFireTime) ? leaseUntil : nextFireTime;
+        }
+        return null;
+    }
+
+    /**
+     * @return the key of the trigger in the acquirable_by_time view: acquirable from, negated priority, id
+     */
+    @JsonIgnore
+    public ComplexKey getAcquisitionKey() {
+        return ComplexKey.of(getAcquirableFrom(), -getPriorityValue(), getId());
+    }
+
+    /**
+     * @return whether the given instance acquired the trigger and its lease lasts beyond the given time
+     */
+    @JsonIgnore
+    public boolean isLeasedBy(String instanceId, long time) {
+        return state == CouchDbTriggerState.ACQUIRED && instanceId != null && instanceId.equals(this.instanceId)
+            && leaseUntil != null && leaseUntil.getTime() > time;
+    }
+
+    @JsonIgnore
+    public boolean isAcquirable(long now) {
+        return state == CouchDbTriggerState.WAITING
+            || (state == CouchDbTriggerState.ACQUIRED && leaseUntil != null && leaseUntil.getTime() <= now);
+    }
+
     @JsonProperty("next_fire_time")
     public Date getNextFireTime() {
         return trigger.getNextFireTime();
@@ -0,0 +1,129 @@
+package org.motechproject.quartz;
+
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.ektorp.changes.DocumentChange;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * In-memory index of the acquirable triggers ordered by next fire time (lease expiry for acquired triggers),
+ * priority and id; the same order Quartz fires in. It is loaded once from the acquirable_by_time view and then kept
+ * current from the _changes feed, so acquisition only needs to talk to CouchDB to claim the triggers that are due.
+ * Every acquirable trigger is held in memory.
+ */
+public class CouchDbTriggerIndex implements CouchDbChangeListener {
+
+    private static final Comparator<Entry> FIRE_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            if (e1.nextFireTime != e2.nextFireTime) {
+                return e1.nextFireTime < e2.nextFireTime ? -1 : 1;
+            }
+            if (e1.priority != e2.priority) {
+                return e1.priority > e2.priority ? -1 : 1;
+            }
+            return e1.id.compareTo(e2.id);
+        }
+    };
+
+    private Logger logger = Logger.getLogger(CouchDbTriggerIndex.class);
+
+    private final ObjectMapper mapper;
+    private final TreeSet<Entry> queue = new TreeSet<Entry>(FIRE_ORDER);
+    private final Map<String, Entry> entriesById = new HashMap<String, Entry>();
+
+    public CouchDbTriggerIndex(ObjectMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    public synchronized void load(Iterator<CouchDbTrigger> waitingTriggers) {
+        queue.clear();
+        entriesById.clear();
+        while (waitingTriggers.hasNext()) {
+            put(waitingTriggers.next());
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info("trigger index loaded with " + queue.size() + " acquirable triggers");
+        }
+    }
+
+    public synchronized void put(CouchDbTrigger trigger) {
+        remove(trigger.getId());
+        if (trigger.getAcquirableFrom() == null) {
+            return;
+        }
+        Entry entry = new Entry(trigger);
+        queue.add(entry);
+        entriesById.put(entry.id, entry);
+    }
+
+    public synchronized void remove(String triggerId) {
+        Entry entry = entriesById.remove(triggerId);
+        if (entry != null) {
+            queue.remove(entry);
+        }
+    }
+
+    /**
+     * Removes and returns up to maxCount triggers due no later than the given time. Triggers that are then lost to
+     * another scheduler come back through the _changes feed if they are still waiting.
+     */
+    public synchronized List<CouchDbTrigger> takeNextTriggers(long noLaterThan, int maxCount) {
+        List<CouchDbTrigger> triggers = new ArrayList<CouchDbTrigger>();
+        Iterator<Entry> iterator = queue.iterator();
+        while (iterator.hasNext() && triggers.size() < maxCount) {
+            Entry entry = iterator.next();
+            if (entry.nextFireTime > noLaterThan) {
+                break;
+            }
+            iterator.remove();
+            entriesById.remove(entry.id);
+            triggers.add(entry.trigger);
+        }
+        return triggers;
+    }
+
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    @Override
+    public void onChange(DocumentChange change) {
+        if (change.isDeleted()) {
+            remove(change.getId());
+            return;
+        }
+        JsonNode doc = change.getDocAsNode();
+        if (doc == null || !"CouchDbTrigger".equals(doc.path("type").getTextValue())) {
+            return;
+        }
+        try {
+            put(mapper.readValue(doc, CouchDbTrigger.class));
+        } catch (Exception e) {
+            logger.error("could not index trigger " + change.getId(), e);
+            remove(change.getId());
+        }
+    }
+
+    private static class Entry {
+        private final long nextFireTime;
+        private final int priority;
+        private final String id;
+        private final CouchDbTrigger trigger;
+
+        private Entry(CouchDbTrigger trigger) {
+            this.nextFireTime = trigger.getAcquirableFrom().getTime();
+            this.priority = trigger.getPriorityValue();
+            this.id = trigger.getId();
+            this.trigger = trigger;
+        }
+    }
+}
@@ -24,6 +24,35 @@ public enum CouchDbTriggerState {
         return value;
     }
 
+    /**
+     * The state a trigger in this state moves to when it is paused, as in the JDBC job store.
+     */
+    public CouchDbTriggerState paused() {
+        switch (this) {
+            case WAITING:
+            case ACQUIRED:
+                return PAUSED;
+            case BLOCKED:
+                return PAUSED_BLOCKED;
+            default:
+                return this;
+        }
+    }
+
+    /**
+     * The state a trigger in this state moves to when it is resumed.
+     */
+    public CouchDbTriggerState resumed() {
+        switch (this) {
+            case PAUSED:
+                return WAITING;
+            case PAUSED_BLOCKED:
+                return BLOCKED;
+            default:
+                return this;
+        }
+    }
+
     public Trigger.TriggerState getQuartzTriggerState() {
         if (this == null) {
             return Trigger.TriggerState.NONE;
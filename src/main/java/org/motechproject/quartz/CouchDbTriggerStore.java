@@ -1,9 +1,17 @@
 package org.motechproject.quartz;
 
 import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.ektorp.ComplexKey;
 import org.ektorp.CouchDbConnector;
 import org.ektorp.DocumentNotFoundException;
+import org.ektorp.DocumentOperationResult;
+import org.ektorp.StreamingViewResult;
+import org.ektorp.UpdateConflictException;
+import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
+import org.ektorp.impl.StdObjectMapperFactory;
 import org.ektorp.support.CouchDbRepositorySupport;
 import org.ektorp.support.View;
 import org.quartz.Calendar;
@@ -15,37 +23,193 @@ import org.quartz.TriggerKey;
 import org.quartz.impl.matchers.GroupMatcher;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import static ch.lambdaj.Lambda.extract;
-import static ch.lambdaj.Lambda.on;
-
 public class CouchDbTriggerStore extends CouchDbRepositorySupport<CouchDbTrigger> {
 
+    private static final int MAX_CONFLICT_RETRIES = 3;
+
     private Logger logger = Logger.getLogger(CouchDbTriggerStore.class);
+    private final CouchDbBulkDeleter bulkDeleter;
+    private final ObjectMapper mapper;
+    private int bulkPageSize = CouchDbBulkDeleter.DEFAULT_PAGE_SIZE;
+    private CouchDbWriteBehindQueue writeBehind;
+
+    /**
+     * Changes a trigger in place, e.g. moves it to another state.
+     */
+    public interface TriggerUpdate {
+        /**
+         * @return whether the trigger was changed and needs to be written back
+         */
+        boolean update(CouchDbTrigger trigger) throws JobPersistenceException;
+    }
+
+    /**
+     * The key a trigger has in a view, to continue paging after it.
+     */
+    private interface ViewKey {
+        Object of(CouchDbTrigger trigger);
+    }
+
+    private static final ViewKey BY_GROUP = new ViewKey() {
+        @Override
+        public Object of(CouchDbTrigger trigger) {
+            return ComplexKey.of(trigger.getGroup(), trigger.getName());
+        }
+    };
+
+    private static final ViewKey BY_JOB_GROUP = new ViewKey() {
+        @Override
+        public Object of(CouchDbTrigger trigger) {
+            return ComplexKey.of(trigger.getJobGroup(), trigger.getJobName());
+        }
+    };
+
+    private static final ViewKey BY_NEXT_FIRE_TIME = new ViewKey() {
+        @Override
+        public Object of(CouchDbTrigger trigger) {
+            return trigger.getNextFireTime();
+        }
+    };
+
+    private static final ViewKey BY_INSTANCE = new ViewKey() {
+        @Override
+        public Object of(CouchDbTrigger trigger) {
+            return ComplexKey.of(trigger.getInstanceId(), trigger.getState().value());
+        }
+    };
+
+    private static final ViewKey BY_CALENDAR = new ViewKey() {
+        @Override
+        public Object of(CouchDbTrigger trigger) {
+            return trigger.getCalendarName();
+        }
+    };
+
+    private static final ViewKey BY_STATE = new ViewKey() {
+        @Override
+        public Object of(CouchDbTrigger trigger) {
+            return trigger.getState().value();
+        }
+    };
 
     protected CouchDbTriggerStore(CouchDbConnector db) {
         super(CouchDbTrigger.class, db);
         initStandardDesignDocument();
+        this.bulkDeleter = new CouchDbBulkDeleter(db);
+        this.mapper = new StdObjectMapperFactory().createObjectMapper(db);
+    }
+
+    public void setBulkPageSize(int bulkPageSize) {
+        bulkDeleter.setPageSize(bulkPageSize);
+        this.bulkPageSize = bulkPageSize;
     }
 
-    // TODO: check conflict?
-    public void updateTriggers(List<CouchDbTrigger> newTriggers) {
+    /**
+     * Defers the writes of fired and released triggers this instance holds the lease of, flushing them every window
+     * milliseconds or once maxPending are queued. Reads may see the acquired state of such a trigger until then.
+     */
+    public void setWriteBehind(long window, int maxPending) {
+        CouchDbBulkWriter bulkWriter = new CouchDbBulkWriter(db);
+        bulkWriter.setPageSize(bulkPageSize);
+        this.writeBehind = new CouchDbWriteBehindQueue(bulkWriter, window, maxPending);
+    }
+
+    public CouchDbWriteBehindQueue getWriteBehind() {
+        return writeBehind;
+    }
+
+    public void startWriteBehind() {
+        if (writeBehind != null) {
+            writeBehind.start();
+        }
+    }
+
+    /**
+     * Stops deferring writes and writes the queued triggers.
+     */
+    public void stopWriteBehind() throws JobPersistenceException {
+        if (writeBehind != null) {
+            writeBehind.stop();
+        }
+    }
+
+    private void discardQueuedWrite(String triggerId) {
+        if (writeBehind != null) {
+            writeBehind.discard(triggerId);
+        }
+    }
+
+    private boolean isQueueable(CouchDbTrigger trigger, String instanceId) {
+        return writeBehind != null && trigger.isLeasedBy(instanceId, System.currentTimeMillis() + writeBehind.getWindow());
+    }
+
+    public List<DocumentOperationResult> updateTriggers(List<CouchDbTrigger> newTriggers) {
         if (logger.isDebugEnabled()) {
             for (CouchDbTrigger trigger : newTriggers) {
                 logger.debug(String.format("Document ID : %s; Revision: %s", trigger.getId(), trigger.getRevision()));
             }
         }
-        db.executeBulk(newTriggers);
+        return db.executeBulk(newTriggers);
+    }
+
+    /**
+     * Writes the given triggers in one bulk request, using each trigger's revision as a compare-and-swap token.
+     * Triggers whose update was rejected (typically a 409 because another scheduler claimed them first) are
+     * dropped; the returned triggers carry their new revisions.
+     */
+    public List<CouchDbTrigger> claimTriggers(List<CouchDbTrigger> triggers) {
+        if (triggers.isEmpty()) {
+            return triggers;
+        }
+        Set<String> rejectedIds = new HashSet<String>();
+        for (DocumentOperationResult result : updateTriggers(triggers)) {
+            if (logger.isInfoEnabled()) {
+                logger.info(String.format("Could not claim trigger %s: %s (%s)", result.getId(), result.getError(), result.getReason()));
+            }
+            rejectedIds.add(result.getId());
+        }
+        List<CouchDbTrigger> claimed = new ArrayList<CouchDbTrigger>();
+        for (CouchDbTrigger trigger : triggers) {
+            if (!rejectedIds.contains(trigger.getId())) {
+                claimed.add(trigger);
+            }
+        }
+        return claimed;
     }
 
+    /**
+     * Writes the trigger without reading it first: a trigger without revision is created, one with a revision is
+     * updated at it, trusting the caller that it replaces a trigger of the same job. Only when CouchDB answers with
+     * a conflict is the existing trigger read.
+     */
     public void storeTrigger(CouchDbTrigger newTrigger, boolean replaceExisting) throws JobPersistenceException {
+        if (replaceExisting) {
+            discardQueuedWrite(newTrigger.getId());
+        }
+        if (newTrigger.getRevision() == null) {
+            try {
+                db.create(newTrigger);
+                return;
+            } catch (UpdateConflictException e) {
+                if (!replaceExisting) {
+                    throw new ObjectAlreadyExistsException("trigger already exists " + newTrigger.getKey());
+                }
+            }
+        } else if (replaceExisting && updateAtKnownRevision(newTrigger)) {
+            return;
+        }
+
         CouchDbTrigger existingTrigger = getTriggerByKey(newTrigger.getKey());
         if (existingTrigger == null) {
+            newTrigger.setRevision(null);
             db.create(newTrigger);
             return;
         }
@@ -77,11 +241,21 @@ public class CouchDbTriggerStore extends CouchDbRepositorySupport<CouchDbTrigger
         if (logger.isDebugEnabled()) {
             logger.debug(String.format("Document ID : %s; Revision: %s", trigger.getId(), trigger.getRevision()));
         }
+        discardQueuedWrite(trigger.getId());
         db.delete(trigger);
         return true;
     }
 
+    /**
+     * Replaces the trigger at the revision the new trigger carries if it has the same key, reading the existing
+     * trigger only when there is none or CouchDB answers with a conflict.
+     */
     public boolean replaceTrigger(TriggerKey triggerKey, CouchDbTrigger newTrigger) throws JobPersistenceException {
+        String triggerId = CouchDbTrigger.toId(triggerKey.getGroup(), triggerKey.getName());
+        discardQueuedWrite(triggerId);
+        if (newTrigger.getRevision() != null && triggerId.equals(newTrigger.getId()) && updateAtKnownRevision(newTrigger)) {
+            return true;
+        }
         CouchDbTrigger existingTrigger = getTriggerByKey(triggerKey);
 
         if (existingTrigger == null) {
@@ -102,6 +276,18 @@ public class CouchDbTriggerStore extends CouchDbRepositorySupport<CouchDbTrigger
         return true;
     }
 
+    private boolean updateAtKnownRevision(CouchDbTrigger trigger) {
+        try {
+            db.update(trigger);
+            return true;
+        } catch (UpdateConflictException e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("Revision %s of %s is stale", trigger.getRevision(), trigger.getId()));
+            }
+            return false;
+        }
+    }
+
     public CouchDbTrigger retrieveTrigger(TriggerKey triggerKey) throws JobPersistenceException {
         return getTriggerByKey(triggerKey);
     }
@@ -114,46 +300,296 @@ public class CouchDbTriggerStore extends CouchDbRepositorySupport<CouchDbTrigger
         }
     }
 
-    @View(name = "by_triggerkey", map = "function(doc) { if (doc.type === 'CouchDbTrigger') emit([doc.trigger_name, doc.trigger_group], doc._id); }")
+    /**
+     * Loads the triggers by their ids, derived from the keys, with one _all_docs request; missing triggers are
+     * left out.
+     */
     public List<CouchDbTrigger> getTriggersByKeys(List<TriggerKey> triggerKeys) throws JobPersistenceException {
-        List<ComplexKey> keys = new ArrayList<ComplexKey>();
+        List<String> ids = new ArrayList<String>();
         for (TriggerKey triggerKey : triggerKeys) {
-            keys.add(ComplexKey.of(triggerKey.getName(), triggerKey.getGroup()));
+            ids.add(CouchDbTrigger.toId(triggerKey.getGroup(), triggerKey.getName()));
         }
-        return db.queryView(createQuery("by_triggerkey").includeDocs(true).keys(keys), type);
+        return loadByIds(ids);
+    }
+
+    private List<CouchDbTrigger> loadByIds(List<String> ids) {
+        return CouchDbDocumentLoader.loadAll(db, mapper, ids, type);
     }
 
     public boolean checkExists(TriggerKey triggerKey) throws JobPersistenceException {
         return getTriggerByKey(triggerKey) != null;
     }
 
+    /**
+     * Applies the update to every trigger of the job and writes the changed ones back in bulk.
+     */
+    public void updateTriggersOfJob(JobKey jobKey, TriggerUpdate update) throws JobPersistenceException {
+        List<CouchDbTrigger> changed = new ArrayList<CouchDbTrigger>();
+        for (CouchDbTrigger trigger : findByJob(jobKey)) {
+            if (update.update(trigger)) {
+                changed.add(trigger);
+            }
+        }
+        writeUpdates(changed, update);
+    }
+
+    /**
+     * Applies the update to a single trigger, reloading it and trying again if another writer got there first.
+     *
+     * @return false if the trigger does not exist
+     */
+    public boolean updateTrigger(TriggerKey triggerKey, TriggerUpdate update) throws JobPersistenceException {
+        CouchDbTrigger trigger = getTriggerByKey(triggerKey);
+        if (trigger == null) {
+            return false;
+        }
+        if (update.update(trigger)) {
+            writeUpdates(Arrays.asList(trigger), update);
+        }
+        return true;
+    }
+
+    /**
+     * Applies the update to every trigger in a group the matcher matches, reading and writing one bulk page of
+     * triggers at a time.
+     *
+     * @return the matched trigger groups
+     */
+    public Set<String> updateTriggersInGroups(GroupMatcher<TriggerKey> matcher, TriggerUpdate update) throws JobPersistenceException {
+        return updateTriggersInGroups("by_group_and_name", matcher, false, update);
+    }
+
+    /**
+     * Like {@link #updateTriggersInGroups} but only visits PAUSED and PAUSED_BLOCKED triggers.
+     *
+     * @return the trigger groups in which paused triggers were found
+     */
+    @View(name = "paused_by_group_and_name", map = "function(doc) { if (doc.type === 'CouchDbTrigger' && (doc.state === 'PAUSED' || doc.state === 'PAUSED_BLOCKED')) emit([doc.trigger_group, doc.trigger_name], null); }")
+    public Set<String> updatePausedTriggersInGroups(GroupMatcher<TriggerKey> matcher, TriggerUpdate update) throws JobPersistenceException {
+        return updateTriggersInGroups("paused_by_group_and_name", matcher, false, update);
+    }
+
+    /**
+     * Applies the update to every trigger of a job in a group the matcher matches, one bulk page at a time.
+     *
+     * @return the matched job groups
+     */
+    @View(name = "by_job_group_and_name", map = "function(doc) { if (doc.type === 'CouchDbTrigger') emit([doc.job_group, doc.job_name], null); }")
+    public Set<String> updateTriggersOfJobGroups(GroupMatcher<JobKey> matcher, TriggerUpdate update) throws JobPersistenceException {
+        return updateTriggersInGroups("by_job_group_and_name", matcher, true, update);
+    }
+
+    /**
+     * Moves every trigger in the given state back to WAITING, one bulk page at a time.
+     *
+     * @return the number of triggers visited
+     */
+    @View(name = "by_state", map = "function(doc) { if (doc.type === 'CouchDbTrigger') emit(doc.state, null); }")
+    public int updateTriggersInState(CouchDbTriggerState state, TriggerUpdate update) throws JobPersistenceException {
+        return updateTriggerPages(createQuery("by_state").startKey(state.value()).endKey(state.value()), BY_STATE, update);
+    }
+
+    /**
+     * Applies the update to every ACQUIRED or EXECUTING trigger of the given scheduler instance, one bulk page at
+     * a time.
+     *
+     * @return the number of triggers visited
+     */
+    @View(name = "acquired_by_instance", map = "function(doc) { if (doc.type === 'CouchDbTrigger' && doc.instance_id && (doc.state === 'ACQUIRED' || doc.state === 'EXECUTING')) emit([doc.instance_id, doc.state], null); }")
+    public int updateTriggersOfInstance(String instanceId, TriggerUpdate update) throws JobPersistenceException {
+        return updateTriggerPages(createQuery("acquired_by_instance").startKey(ComplexKey.of(instanceId)).endKey(ComplexKey.of(instanceId, ComplexKey.emptyObject())), BY_INSTANCE, update);
+    }
+
+    /**
+     * Applies the update to every waiting trigger whose next fire time is before the given time, one bulk page at
+     * a time.
+     *
+     * @return the number of triggers visited
+     */
+    @View(name = "by_nextFireTime", map = "function(doc) { if (doc.type === 'CouchDbTrigger' && doc.state === 'WAITING') emit(doc.next_fire_time, doc._id); }")
+    public int updateTriggersDueBefore(long time, TriggerUpdate update) throws JobPersistenceException {
+        return updateTriggerPages(createQuery("by_nextFireTime").startKey(new Date(0)).endKey(new Date(time)), BY_NEXT_FIRE_TIME, update);
+    }
+
+    private Set<String> updateTriggersInGroups(String viewName, final GroupMatcher<?> matcher, final boolean byJob, final TriggerUpdate update) throws JobPersistenceException {
+        final Set<String> groups = new HashSet<String>();
+        updateTriggerPages(GroupMatcherKeyRange.apply(createQuery(viewName), matcher), byJob ? BY_JOB_GROUP : BY_GROUP, new TriggerUpdate() {
+            @Override
+            public boolean update(CouchDbTrigger trigger) throws JobPersistenceException {
+                String group = byJob ? trigger.getJobGroup() : trigger.getGroup();
+                if (!GroupMatcherKeyRange.matches(matcher, group)) {
+                    return false;
+                }
+                groups.add(group);
+                return update.update(trigger);
+            }
+        });
+        return groups;
+    }
+
+    /**
+     * Reads the view one bulk page at a time, continuing after the last row of the previous page, and writes each
+     * page's updated triggers before reading the next, so that only one page is held at a time.
+     */
+    private int updateTriggerPages(ViewQuery baseQuery, ViewKey viewKey, TriggerUpdate update) throws JobPersistenceException {
+        baseQuery.includeDocs(true);
+        int visited = 0;
+        Object startKey = null;
+        String startId = null;
+        while (true) {
+            ViewQuery pageQuery = baseQuery.clone().limit(bulkPageSize);
+            if (startId != null) {
+                pageQuery.startKey(startKey).startDocId(startId);
+            }
+            List<CouchDbTrigger> page = db.queryView(pageQuery, type);
+            if (!page.isEmpty()) {
+                // taken before the update, which may change the key
+                CouchDbTrigger last = page.get(page.size() - 1);
+                startKey = viewKey.of(last);
+            }
+
+            List<CouchDbTrigger> changed = new ArrayList<CouchDbTrigger>();
+            boolean advanced = false;
+            for (CouchDbTrigger trigger : page) {
+                if (trigger.getId().equals(startId)) {
+                    continue;
+                }
+                advanced = true;
+                visited++;
+                if (update.update(trigger)) {
+                    changed.add(trigger);
+                }
+            }
+            if (!page.isEmpty()) {
+                startId = page.get(page.size() - 1).getId();
+            }
+            writeUpdates(changed, update);
+            if (page.size() < bulkPageSize || !advanced) {
+                return visited;
+            }
+        }
+    }
+
+    /**
+     * Writes the updated triggers in bulk. With write-behind, a trigger whose fired or released state is still
+     * queued was read in its stored, acquired state; the queued state is updated and written instead, at the same
+     * revision, so that neither write overwrites the other.
+     */
+    private void writeUpdates(final List<CouchDbTrigger> triggers, final TriggerUpdate update) throws JobPersistenceException {
+        if (writeBehind == null || triggers.isEmpty()) {
+            writeUpdatesRetrying(triggers, update);
+            return;
+        }
+        writeBehind.writeDirectly(new CouchDbWriteBehindQueue.DirectWrite() {
+            @Override
+            public void write() throws JobPersistenceException {
+                List<CouchDbTrigger> merged = new ArrayList<CouchDbTrigger>();
+                for (CouchDbTrigger trigger : triggers) {
+                    CouchDbTrigger queued = writeBehind.take(trigger.getId());
+                    if (queued == null) {
+                        merged.add(trigger);
+                    } else {
+                        // written even if the update leaves it unchanged, as the queue would have
+                        update.update(queued);
+                        merged.add(queued);
+                    }
+                }
+                writeUpdatesRetrying(merged, update);
+            }
+        });
+    }
+
+    /**
+     * Writes the updated triggers in bulk. Triggers rejected with a conflict are reloaded, updated again and
+     * rewritten, up to MAX_CONFLICT_RETRIES times.
+     */
+    private void writeUpdatesRetrying(List<CouchDbTrigger> triggers, TriggerUpdate update) throws JobPersistenceException {
+        List<CouchDbTrigger> pending = triggers;
+        for (int attempt = 0; !pending.isEmpty(); attempt++) {
+            List<CouchDbTrigger> retries = new ArrayList<CouchDbTrigger>();
+            List<String> failedIds = new ArrayList<String>();
+            for (DocumentOperationResult result : updateTriggers(pending)) {
+                if (!"conflict".equals(result.getError()) || attempt >= MAX_CONFLICT_RETRIES) {
+                    logger.error(String.format("Could not update %s: %s (%s)", result.getId(), result.getError(), result.getReason()));
+                    failedIds.add(result.getId());
+                    continue;
+                }
+                CouchDbTrigger current = db.find(type, result.getId());
+                if (current != null && update.update(current)) {
+                    retries.add(current);
+                }
+            }
+            if (!failedIds.isEmpty()) {
+                throw new JobPersistenceException("could not update triggers " + failedIds);
+            }
+            pending = retries;
+        }
+    }
+
     @View(name = "by_jobkey", map = "function(doc) { if (doc.type === 'CouchDbTrigger') emit([doc.job_name, doc.job_group], doc._id); }")
     public List<CouchDbTrigger> findByJob(JobKey jobKey) {
         return db.queryView(createQuery("by_jobkey").key(ComplexKey.of(jobKey.getName(), jobKey.getGroup())).includeDocs(true), type);
     }
 
+    /**
+     * @deprecated reads every trigger into memory at once, use {@link #iterateAll()}
+     */
+    @Deprecated
     @View(name = "all_triggers", map = "function(doc) { if (doc.type === 'CouchDbTrigger') emit(doc._id, doc._id); }")
     public List<CouchDbTrigger> getAll() {
         return db.queryView(createQuery("all_triggers").includeDocs(true), type);
     }
 
+    /**
+     * @return every trigger, read one bulk page at a time; the cursor has to be closed unless read to the end
+     */
+    public CouchDbViewCursor<CouchDbTrigger> iterateAll() {
+        return new CouchDbViewCursor<CouchDbTrigger>(db, mapper, createQuery("all_triggers"), type, bulkPageSize);
+    }
+
+    @View(name = "count_by_group_and_state", map = "function(doc) { if (doc.type === 'CouchDbTrigger') emit([doc.trigger_group, doc.state], null); }", reduce = "_count")
     public int getNumberOfTriggers() {
-        return getAll().size();
+        ViewResult result = db.queryView(createQuery("count_by_group_and_state").reduce(true));
+        return result.isEmpty() ? 0 : result.getRows().get(0).getValueAsInt();
+    }
+
+    public Map<String, Integer> getNumberOfTriggersByGroup() {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (ViewResult.Row row : db.queryView(createQuery("count_by_group_and_state").groupLevel(1))) {
+            counts.put(row.getKeyAsNode().get(0).getTextValue(), row.getValueAsInt());
+        }
+        return counts;
     }
 
+    public Map<CouchDbTriggerState, Integer> getNumberOfTriggersByState() {
+        Map<CouchDbTriggerState, Integer> counts = new HashMap<CouchDbTriggerState, Integer>();
+        for (ViewResult.Row row : db.queryView(createQuery("count_by_group_and_state").groupLevel(2))) {
+            CouchDbTriggerState state = CouchDbTriggerState.valueOf(row.getKeyAsNode().get(1).getTextValue());
+            Integer count = counts.get(state);
+            counts.put(state, (count == null ? 0 : count) + row.getValueAsInt());
+        }
+        return counts;
+    }
+
+    @View(name = "by_group_and_name", map = "function(doc) { if (doc.type === 'CouchDbTrigger') emit([doc.trigger_group, doc.trigger_name], null); }")
     public Set<TriggerKey> getTriggerKeys(GroupMatcher<TriggerKey> matcher) {
         Set<TriggerKey> matchedKeys = new HashSet<TriggerKey>();
-        for (CouchDbTrigger couchdbTrigger : getAll()) {
-            if (matcher.isMatch(couchdbTrigger.getKey())) {
-                matchedKeys.add(couchdbTrigger.getKey());
+        StreamingViewResult rows = db.queryForStreamingView(GroupMatcherKeyRange.apply(createQuery("by_group_and_name"), matcher));
+        try {
+            for (ViewResult.Row row : rows) {
+                TriggerKey key = TriggerKey.triggerKey(row.getKeyAsNode().get(1).getTextValue(), row.getKeyAsNode().get(0).getTextValue());
+                if (matcher.isMatch(key)) {
+                    matchedKeys.add(key);
+                }
             }
+        } finally {
+            rows.close();
         }
         return matchedKeys;
     }
 
-    @View(name = "by_triggerGroupName", map = "function(doc) { if (doc.type === 'CouchDbTrigger') emit(doc.group, doc._id); }")
     public List<String> getTriggerGroupNames() {
-        return new ArrayList<String>(new HashSet<String>(extract(db.queryView(createQuery("by_triggerGroupName").includeDocs(true), type), on(CouchDbTrigger.class).getGroup())));
+        return new ArrayList<String>(getNumberOfTriggersByGroup().keySet());
     }
 
     public Trigger.TriggerState getTriggerState(TriggerKey triggerKey) throws JobPersistenceException {
@@ -164,51 +600,166 @@ public class CouchDbTriggerStore extends CouchDbRepositorySupport<CouchDbTrigger
         return trigger.getState().getQuartzTriggerState();
     }
 
-    @View(name = "by_nextFireTime", map = "function(doc) { if (doc.type === 'CouchDbTrigger' && doc.state === 'WAITING') emit(doc.next_fire_time, doc._id); }")
-    public List<CouchDbTrigger> acquireNextTriggers(long noLaterThan, int maxCount, long timeWindow) throws JobPersistenceException {
-        logger.info("by_nextFireTime");
-        return db.queryView(createQuery("by_nextFireTime").startKey(new Date(0)).endKey(new Date(noLaterThan + timeWindow)).limit(maxCount).includeDocs(true), CouchDbTrigger.class);
+    /**
+     * Returns a page of acquirable triggers starting at the given acquisition key (see
+     * {@link CouchDbTrigger#getAcquisitionKey()}), or at the beginning of the view when no start key is given. The
+     * start row itself is returned again if it is still acquirable. Acquirable are waiting triggers, by next fire
+     * time, and acquired triggers, by the later of next fire time and lease expiry; callers still drop triggers
+     * whose lease has not expired yet. Triggers due at the same time come highest priority first.
+     * <p/>
+     * Only the view rows are read: the value of each row carries just what is needed to decide whether to claim the
+     * trigger, the documents themselves are loaded with {@link #getTriggersAtRevisions} for the chosen ones.
+     */
+    @View(name = "acquirable_by_time", map = "function(doc) { if (doc.type === 'CouchDbTrigger' && doc.next_fire_time) { "
+        + "var value = {rev: doc._rev, group: doc.trigger_group, state: doc.state, lease_until: doc.lease_until}; "
+        + "if (doc.state === 'WAITING') emit([doc.next_fire_time, -doc.priority, doc._id], value); "
+        + "else if (doc.state === 'ACQUIRED' && doc.lease_until) emit([doc.lease_until > doc.next_fire_time ? doc.lease_until : doc.next_fire_time, -doc.priority, doc._id], value); } }")
+    public List<AcquirableTrigger> findAcquirableTriggers(long noLaterThan, int maxCount, ComplexKey startKey) {
+        ViewQuery query = createQuery("acquirable_by_time")
+            .startKey(startKey == null ? ComplexKey.of(new Date(0)) : startKey)
+            .endKey(ComplexKey.of(new Date(noLaterThan), ComplexKey.emptyObject()))
+            .limit(maxCount);
+        List<AcquirableTrigger> triggers = new ArrayList<AcquirableTrigger>();
+        for (ViewResult.Row row : db.queryView(query)) {
+            triggers.add(new AcquirableTrigger(row));
+        }
+        return triggers;
+    }
+
+    /**
+     * Loads the given triggers with one _all_docs request, leaving out those no longer at the given revision.
+     *
+     * @param revisions the expected revision by trigger id
+     */
+    public List<CouchDbTrigger> getTriggersAtRevisions(Map<String, String> revisions) {
+        List<CouchDbTrigger> triggers = new ArrayList<CouchDbTrigger>();
+        for (CouchDbTrigger trigger : loadByIds(new ArrayList<String>(revisions.keySet()))) {
+            if (trigger.getRevision().equals(revisions.get(trigger.getId()))) {
+                triggers.add(trigger);
+            }
+        }
+        return triggers;
+    }
+
+    /**
+     * A row of the acquirable_by_time view.
+     */
+    public static class AcquirableTrigger {
+        private final ComplexKey key;
+        private final String id;
+        private final String revision;
+        private final String group;
+        private final CouchDbTriggerState state;
+        private final String leaseUntil;
+
+        private AcquirableTrigger(ViewResult.Row row) {
+            JsonNode keyNode = row.getKeyAsNode();
+            JsonNode value = row.getValueAsNode();
+            this.key = ComplexKey.of(keyNode.get(0).getTextValue(), keyNode.get(1).getIntValue(), keyNode.get(2).getTextValue());
+            this.id = row.getId();
+            this.revision = value.path("rev").getTextValue();
+            this.group = value.path("group").getTextValue();
+            this.state = CouchDbTriggerState.valueOf(value.path("state").getTextValue());
+            this.leaseUntil = value.path("lease_until").getTextValue();
+        }
+
+        public ComplexKey getAcquisitionKey() {
+            return key;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getRevision() {
+            return revision;
+        }
+
+        public String getGroup() {
+            return group;
+        }
+
+        /**
+         * Whether the trigger is waiting or its lease has expired, as far as the view row tells; the loaded
+         * document is checked again before it is claimed.
+         */
+        public boolean mayBeAcquirable() {
+            return state == CouchDbTriggerState.WAITING || (state == CouchDbTriggerState.ACQUIRED && leaseUntil != null);
+        }
+    }
+
+    /**
+     * @return the triggers that are or will become acquirable, read one bulk page at a time; the cursor has to be
+     *         closed unless read to the end
+     */
+    public CouchDbViewCursor<CouchDbTrigger> iterateAcquirableTriggers() {
+        return new CouchDbViewCursor<CouchDbTrigger>(db, mapper, createQuery("acquirable_by_time").startKey(ComplexKey.of(new Date(0))), type, bulkPageSize);
     }
 
     public void releaseAcquiredTrigger(CouchDbTrigger couchdbTrigger) throws JobPersistenceException {
         if (log.isInfoEnabled()) {
             log.info("releaseAcquiredTrigger:" + couchdbTrigger);
         }
-        couchdbTrigger.setState(CouchDbTriggerState.WAITING);
+        couchdbTrigger.release();
         replaceTrigger(couchdbTrigger.getKey(), couchdbTrigger);
 
     }
 
+    /**
+     * Releases a trigger as claimed by the given instance, queueing the write while the lease holds.
+     */
+    public void releaseClaimedTrigger(CouchDbTrigger couchdbTrigger, String instanceId) throws JobPersistenceException {
+        if (!isQueueable(couchdbTrigger, instanceId)) {
+            releaseAcquiredTrigger(couchdbTrigger);
+            return;
+        }
+        couchdbTrigger.release();
+        writeBehind.enqueue(couchdbTrigger);
+    }
+
     @View(name = "by_calendarName", map = "function(doc) { if (doc.type == 'CouchDbTrigger') emit(doc.calendar_name, doc._id);}")
     public List<CouchDbTrigger> findByCalendarName(String calName) {
         return db.queryView(createQuery("by_calendarName").key(calName).includeDocs(true), CouchDbTrigger.class);
     }
 
-    List<CouchDbTrigger> triggersFired(List<CouchDbTrigger> triggers, Map<String, Calendar> calendarMap) throws JobPersistenceException {
+    /**
+     * Applies the update to every trigger modified by the calendar, one bulk page at a time.
+     *
+     * @return the number of triggers visited
+     */
+    public int updateTriggersOfCalendar(String calName, TriggerUpdate update) throws JobPersistenceException {
+        return updateTriggerPages(createQuery("by_calendarName").startKey(calName).endKey(calName), BY_CALENDAR, update);
+    }
+
+    List<CouchDbTrigger> triggersFired(List<CouchDbTrigger> triggers, Map<String, Calendar> calendarMap, String instanceId) throws JobPersistenceException {
         if (logger.isInfoEnabled()) {
             logger.info("triggersFired: Releasing triggers " + triggers.size());
             logger.info(triggers);
         }
+        List<CouchDbTrigger> leasedTriggers = new ArrayList<CouchDbTrigger>();
+        List<CouchDbTrigger> otherTriggers = new ArrayList<CouchDbTrigger>();
         for (CouchDbTrigger trigger : triggers) {
+            if (isQueueable(trigger, instanceId)) {
+                leasedTriggers.add(trigger);
+            } else {
+                otherTriggers.add(trigger);
+            }
             trigger.triggered(calendarMap.get(trigger.getKey()));
-            trigger.setState(CouchDbTriggerState.WAITING);
+            trigger.release();
             log.info("Updating trigger back to waiting state " + trigger);
         }
-        updateTriggers(triggers);
-        return triggers;
-    }
-
-    public void updateTriggerState(TriggerKey triggerKey, String state) {
-        ///getTriggerState()    todo
+        // a trigger changed since it was loaded, e.g. re-acquired after its lease expired, is not fired here
+        List<CouchDbTrigger> firedTriggers = new ArrayList<CouchDbTrigger>(claimTriggers(otherTriggers));
+        // nobody else writes a trigger while this instance holds its lease
+        for (CouchDbTrigger trigger : leasedTriggers) {
+            writeBehind.enqueue(trigger);
+            firedTriggers.add(trigger);
+        }
+        return firedTriggers;
     }
 
-    public void removeAll() {
-        try {
-            for (CouchDbTrigger doc : getAll()) {
-                db.delete(db.get(CouchDbTrigger.class, doc.getId()));
-            }
-        } catch (Exception e) {
-            logger.error(e.getMessage(), e);
-        }
+    @View(name = "all_trigger_revs", map = "function(doc) { if (doc.type === 'CouchDbTrigger') emit(doc._id, doc._rev); }")
+    public int removeAll() throws JobPersistenceException {
+        return bulkDeleter.deleteAll(createQuery("all_trigger_revs"));
     }
 }
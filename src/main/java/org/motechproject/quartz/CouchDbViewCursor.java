@@ -0,0 +1,188 @@
+package org.motechproject.quartz;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DbAccessException;
+import org.ektorp.ViewQuery;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the documents of a view one page at a time, each page starting at the key and document id of the
+ * last row of the one before. Rows are parsed as they are read from the response and each document is bound
+ * straight from the parser, so only one page's response and one document are held at a time, whatever the size of
+ * the view. Rows of deleted documents are skipped. A cursor has to be closed unless it was read to the end.
+ */
+public class CouchDbViewCursor<T> implements Iterator<T>, Closeable {
+
+    private final CouchDbConnector db;
+    private final ObjectMapper mapper;
+    private final ViewQuery query;
+    private final Class<T> type;
+    private final int pageSize;
+
+    private InputStream stream;
+    private JsonParser parser;
+    private int pageLimit;
+    private int pageRows;
+    private boolean pageAdvanced;
+    private String pageStartId;
+    private JsonNode lastKey;
+    private String lastId;
+    private T next;
+    private boolean finished;
+
+    public CouchDbViewCursor(CouchDbConnector db, ObjectMapper mapper, ViewQuery query, Class<T> type, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be larger than 0");
+        }
+        this.db = db;
+        this.mapper = mapper;
+        this.query = query;
+        this.type = type;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !finished) {
+            try {
+                next = readNext();
+            } catch (IOException e) {
+                close();
+                throw new DbAccessException(e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T document = next;
+        next = null;
+        return document;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        finished = true;
+        closePage();
+    }
+
+    private T readNext() throws IOException {
+        while (true) {
+            if (parser == null && !openPage()) {
+                close();
+                return null;
+            }
+            JsonToken token = parser.nextToken();
+            if (token != JsonToken.START_OBJECT) {
+                // the end of the rows; the page was the last if it was not full or held nothing new
+                closePage();
+                if (pageRows < pageLimit || !pageAdvanced) {
+                    close();
+                    return null;
+                }
+                continue;
+            }
+            T document = readRow();
+            if (document != null) {
+                return document;
+            }
+        }
+    }
+
+    /**
+     * @return the document of the row, null if it was deleted or is the one the page started after
+     */
+    private T readRow() throws IOException {
+        pageRows++;
+        String id = null;
+        JsonNode key = null;
+        T document = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("id".equals(field)) {
+                id = parser.getText();
+            } else if ("key".equals(field)) {
+                key = parser.readValueAsTree();
+            } else if ("doc".equals(field) && value == JsonToken.START_OBJECT && !isPageStart(id)) {
+                document = mapper.readValue(parser, type);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (isPageStart(id)) {
+            return null;
+        }
+        pageAdvanced = true;
+        lastKey = key;
+        lastId = id;
+        return document;
+    }
+
+    private boolean isPageStart(String id) {
+        return id != null && id.equals(pageStartId);
+    }
+
+    private boolean openPage() throws IOException {
+        ViewQuery pageQuery = query.clone().includeDocs(true);
+        if (lastId == null) {
+            pageLimit = pageSize;
+        } else {
+            // the row the page starts at was read already
+            pageLimit = pageSize + 1;
+            pageQuery.startKey(lastKey).startDocId(lastId);
+        }
+        pageQuery.limit(pageLimit);
+        pageStartId = lastId;
+        pageRows = 0;
+        pageAdvanced = false;
+
+        stream = db.queryForStream(pageQuery);
+        parser = mapper.getJsonFactory().createJsonParser(stream);
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return false;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("rows".equals(field)) {
+                return value == JsonToken.START_ARRAY;
+            }
+            parser.skipChildren();
+        }
+        return false;
+    }
+
+    private void closePage() {
+        try {
+            if (parser != null) {
+                parser.close();
+            }
+            if (stream != null) {
+                stream.close();
+            }
+        } catch (IOException ignored) {
+        } finally {
+            parser = null;
+            stream = null;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.motechproject.quartz;
+
+import org.apache.log4j.Logger;
+import org.ektorp.DocumentOperationResult;
+import org.quartz.JobPersistenceException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects trigger writes and flushes them with one _bulk_docs request per window on a daemon thread. A trigger
+ * queued again before the flush replaces its earlier state, so only its latest state is written. Once maxPending
+ * triggers are queued, or while the queue is not started, the caller flushes synchronously.
+ * <p/>
+ * Only triggers whose lease this instance holds are queued: nobody else may write them until it expires, so a
+ * rejected write means the trigger was replaced or removed meanwhile and is dropped. Writes of this instance that
+ * bypass the queue go through {@link #writeDirectly} and take over the queued states of their triggers.
+ */
+public class CouchDbWriteBehindQueue implements Runnable {
+
+    private Logger logger = Logger.getLogger(CouchDbWriteBehindQueue.class);
+
+    private final CouchDbBulkWriter bulkWriter;
+    private final long window;
+    private final int maxPending;
+
+    private final Map<String, CouchDbTrigger> pending = new LinkedHashMap<String, CouchDbTrigger>();
+    private final Object flushLock = new Object();
+
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * A write of triggers that bypasses the queue.
+     */
+    public interface DirectWrite {
+        void write() throws JobPersistenceException;
+    }
+
+    public CouchDbWriteBehindQueue(CouchDbBulkWriter bulkWriter, long window, int maxPending) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Write-behind window must be larger than 0");
+        }
+        if (maxPending < 1) {
+            throw new IllegalArgumentException("Write-behind queue depth must be larger than 0");
+        }
+        this.bulkWriter = bulkWriter;
+        this.window = window;
+        this.maxPending = maxPending;
+    }
+
+    public long getWindow() {
+        return window;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "couchdb-write-behind");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the flushing thread and writes whatever is still queued.
+     */
+    public void stop() throws JobPersistenceException {
+        synchronized (this) {
+            if (running) {
+                running = false;
+                thread.interrupt();
+                thread = null;
+            }
+        }
+        flush();
+    }
+
+    public void enqueue(CouchDbTrigger trigger) throws JobPersistenceException {
+        boolean flushNow;
+        synchronized (this) {
+            pending.put(trigger.getId(), trigger);
+            flushNow = !running || pending.size() >= maxPending;
+        }
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    /**
+     * Drops the queued state of a trigger, e.g. because it is being replaced or removed.
+     */
+    public synchronized void discard(String triggerId) {
+        pending.remove(triggerId);
+    }
+
+    /**
+     * Removes the queued state of a trigger and returns it, null if none is queued.
+     */
+    public synchronized CouchDbTrigger take(String triggerId) {
+        return pending.remove(triggerId);
+    }
+
+    /**
+     * Runs a write that bypasses the queue while no flush is in flight and nothing can be queued; queueing blocks
+     * until it is done. The write takes the queued states of the triggers it writes with {@link #take}, so that
+     * it neither overwrites a queued state nor is overwritten by it.
+     */
+    public void writeDirectly(DirectWrite write) throws JobPersistenceException {
+        synchronized (flushLock) {
+            synchronized (this) {
+                write.write();
+            }
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(window);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                flush();
+            } catch (Exception e) {
+                logger.error("write-behind flush failed", e);
+            }
+        }
+    }
+
+    /**
+     * Writes the queued triggers. When the request fails they are queued again unless a newer state is queued.
+     *
+     * @return the number of triggers written
+     */
+    public int flush() throws JobPersistenceException {
+        synchronized (flushLock) {
+            List<CouchDbTrigger> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return 0;
+                }
+                batch = new ArrayList<CouchDbTrigger>(pending.values());
+                pending.clear();
+            }
+            Map<String, DocumentOperationResult> failures;
+            try {
+                failures = bulkWriter.write(batch);
+            } catch (RuntimeException e) {
+                requeue(batch);
+                throw new JobPersistenceException("could not write " + batch.size() + " queued triggers", e);
+            }
+            for (DocumentOperationResult failure : failures.values()) {
+                logger.info(String.format("Dropped queued write of trigger %s: %s (%s)", failure.getId(), failure.getError(), failure.getReason()));
+            }
+            return batch.size() - failures.size();
+        }
+    }
+
+    private synchronized void requeue(List<CouchDbTrigger> batch) {
+        for (CouchDbTrigger trigger : batch) {
+            if (!pending.containsKey(trigger.getId())) {
+                pending.put(trigger.getId(), trigger);
+            }
+        }
+    }
+}
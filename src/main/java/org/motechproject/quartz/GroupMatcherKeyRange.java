@@ -0,0 +1,35 @@
+package org.motechproject.quartz;
+
+import org.ektorp.ComplexKey;
+import org.ektorp.ViewQuery;
+import org.quartz.impl.matchers.GroupMatcher;
+import org.quartz.impl.matchers.StringMatcher;
+
+/**
+ * Narrows a query on a view keyed by [group, name] to the rows a {@link GroupMatcher} can match. EQUALS and
+ * STARTS_WITH become key ranges; other operators scan the whole view, so callers still test each row with
+ * {@link GroupMatcher#isMatch} or {@link #matches}.
+ */
+final class GroupMatcherKeyRange {
+
+    private static final String HIGHEST_CHARACTER = "\ufff0";
+
+    private GroupMatcherKeyRange() {
+    }
+
+    static ViewQuery apply(ViewQuery query, GroupMatcher<?> matcher) {
+        String group = matcher.getCompareToValue();
+        StringMatcher.StringOperatorName operator = matcher.getCompareWithOperator();
+        if (operator == StringMatcher.StringOperatorName.EQUALS) {
+            return query.startKey(ComplexKey.of(group)).endKey(ComplexKey.of(group, ComplexKey.emptyObject()));
+        }
+        if (operator == StringMatcher.StringOperatorName.STARTS_WITH) {
+            return query.startKey(ComplexKey.of(group)).endKey(ComplexKey.of(group + HIGHEST_CHARACTER));
+        }
+        return query;
+    }
+
+    static boolean matches(GroupMatcher<?> matcher, String group) {
+        return group != null && matcher.getCompareWithOperator().evaluate(group, matcher.getCompareToValue());
+    }
+}
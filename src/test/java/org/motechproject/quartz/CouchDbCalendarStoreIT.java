@@ -1,5 +1,7 @@
 package org.motechproject.quartz;
 
+import org.codehaus.jackson.map.ObjectMapper;
+import org.ektorp.impl.changes.StdDocumentChange;
 import org.joda.time.DateTime;
 import org.junit.Before;
 import org.junit.Test;
@@ -22,7 +24,9 @@ import static ch.lambdaj.Lambda.extract;
 import static ch.lambdaj.Lambda.on;
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.motechproject.quartz.IdRandomizer.id;
 import static org.quartz.SimpleScheduleBuilder.simpleSchedule;
@@ -67,6 +71,48 @@ public class CouchDbCalendarStoreIT {
         assertEquals(0, dbCalendar.getExcludedDates().size());
     }
 
+    @Test
+    public void shouldReuseDeserializedCalendarUntilItChanges() throws Exception {
+        HolidayCalendar testCalendar = new HolidayCalendar();
+        testCalendar.addExcludedDate(new Date());
+        String calendarName = id("testCalendar");
+        couchdbStore.storeCalendar(calendarName, testCalendar, false, false);
+
+        CouchDbCalendarStore calendarStore = couchdbStore.getCalendarStore();
+        Calendar firstLoad = calendarStore.findCalendar(calendarName);
+        assertSame(firstLoad, calendarStore.findCalendar(calendarName));
+
+        couchdbStore.storeCalendar(calendarName, new HolidayCalendar(), true, false);
+
+        Calendar reloaded = calendarStore.findCalendar(calendarName);
+        assertNotSame(firstLoad, reloaded);
+        assertTrue(((HolidayCalendar) reloaded).getExcludedDates().isEmpty());
+    }
+
+    @Test
+    public void shouldHandOutCopiesOfCachedCalendar() throws Exception {
+        String calendarName = id("testCalendar");
+        couchdbStore.storeCalendar(calendarName, new HolidayCalendar(), false, false);
+
+        HolidayCalendar retrieved = (HolidayCalendar) couchdbStore.retrieveCalendar(calendarName);
+        retrieved.addExcludedDate(new Date());
+
+        assertTrue(((HolidayCalendar) couchdbStore.retrieveCalendar(calendarName)).getExcludedDates().isEmpty());
+    }
+
+    @Test
+    public void shouldNotCacheRevisionOlderThanReportedByChanges() throws Exception {
+        String calendarName = id("testCalendar");
+        couchdbStore.storeCalendar(calendarName, new HolidayCalendar(), false, false);
+        CouchDbCalendarStore calendarStore = couchdbStore.getCalendarStore();
+        calendarStore.setCacheFollowsChanges(true);
+
+        calendarStore.onChange(new StdDocumentChange(new ObjectMapper().readTree(
+                "{\"seq\": 1, \"id\": \"" + CouchDbCalendar.toId(calendarName) + "\", \"changes\": [{\"rev\": \"99-a\"}]}")));
+
+        assertNotSame(calendarStore.findCalendar(calendarName), calendarStore.findCalendar(calendarName));
+    }
+
     @Test(expected = ObjectAlreadyExistsException.class)
     public void shouldNotReplaceExistingCalendar() throws Exception {
         couchdbStore.storeCalendar("testCalendar", new HolidayCalendar(), false, false);
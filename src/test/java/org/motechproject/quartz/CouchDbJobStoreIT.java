@@ -1,18 +1,24 @@
 package org.motechproject.quartz;
 
+import org.codehaus.jackson.map.ObjectMapper;
+import org.ektorp.impl.changes.StdDocumentChange;
 import org.junit.Before;
 import org.junit.Test;
 import org.quartz.JobDetail;
 import org.quartz.JobKey;
 import org.quartz.JobPersistenceException;
 import org.quartz.ObjectAlreadyExistsException;
+import org.quartz.Trigger;
 import org.quartz.TriggerKey;
 import org.quartz.impl.matchers.GroupMatcher;
 import org.quartz.impl.triggers.SimpleTriggerImpl;
+import org.quartz.spi.OperableTrigger;
+import org.quartz.spi.TriggerFiredBundle;
 
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 import static ch.lambdaj.Lambda.extract;
 import static ch.lambdaj.Lambda.on;
@@ -52,6 +58,114 @@ public class CouchDbJobStoreIT {
         assertEquals("bar", couchdbStore.retrieveJob(JobKey.jobKey(jobId, "bargroup")).getJobDataMap().get("foo"));
     }
 
+    @Test
+    public void shouldServeJobsFromCacheUntilTheyChange() throws Exception, CouchDbJobStoreException {
+        CouchDbStore cachingCouchdbStore = new CouchDbStore();
+        cachingCouchdbStore.setProperties("/couchdb-job-cache.properties");
+        CouchDbJobCache jobCache = cachingCouchdbStore.getJobStore().getJobCache();
+
+        final String jobId = id("fooid");
+        cachingCouchdbStore.storeJob(newJob(DummyJobListener.class).withIdentity(jobId, "bargroup").usingJobData("foo", "bar").build(), false);
+
+        assertEquals("bar", cachingCouchdbStore.retrieveJob(JobKey.jobKey(jobId, "bargroup")).getJobDataMap().get("foo"));
+        assertEquals("bar", cachingCouchdbStore.retrieveJob(JobKey.jobKey(jobId, "bargroup")).getJobDataMap().get("foo"));
+        assertEquals(1, jobCache.getHitCount());
+
+        couchdbStore.storeJob(newJob(DummyJobListener.class).withIdentity(jobId, "bargroup").usingJobData("foo", "baz").build(), true);
+
+        assertEquals("baz", cachingCouchdbStore.retrieveJob(JobKey.jobKey(jobId, "bargroup")).getJobDataMap().get("foo"));
+        assertEquals(1, jobCache.getHitCount());
+    }
+
+    @Test
+    public void shouldFireJobsFromCacheWithOnlyCacheSizeSet() throws Exception, CouchDbJobStoreException {
+        CouchDbStore cachingCouchdbStore = new CouchDbStore();
+        cachingCouchdbStore.setProperties("/couchdb-job-cache.properties");
+        cachingCouchdbStore.schedulerStarted();
+        try {
+            JobDetail job = newJob(DummyJobListener.class).withIdentity(id("fooid"), "bargroup").usingJobData("foo", "bar").build();
+            SimpleTriggerImpl trigger = (SimpleTriggerImpl) newTrigger()
+                    .withIdentity(id("fuuid"), "borgroup")
+                    .forJob(job)
+                    .startAt(new Date())
+                    .withSchedule(simpleSchedule().withIntervalInMinutes(2).repeatForever())
+                    .build();
+            trigger.computeFirstFireTime(null);
+            cachingCouchdbStore.storeJobAndTrigger(job, trigger);
+            fire(cachingCouchdbStore, acquire(cachingCouchdbStore));
+
+            List<OperableTrigger> acquired = acquire(cachingCouchdbStore);
+            CouchDbMetrics metrics = cachingCouchdbStore.getMetrics();
+            long allDocsRequests = metrics.getRequestCount("POST _all_docs");
+            long documentRequests = metrics.getRequestCount("GET document");
+            fire(cachingCouchdbStore, acquired);
+            assertEquals("bar", cachingCouchdbStore.retrieveJob(job.getKey()).getJobDataMap().get("foo"));
+
+            assertEquals(allDocsRequests, metrics.getRequestCount("POST _all_docs"));
+            assertEquals(documentRequests, metrics.getRequestCount("GET document"));
+        } finally {
+            cachingCouchdbStore.shutdown();
+        }
+    }
+
+    private List<OperableTrigger> acquire(CouchDbStore store) throws JobPersistenceException {
+        List<OperableTrigger> acquired = store.acquireNextTriggers(System.currentTimeMillis() + 24 * 60 * 60 * 1000L, 1, 0);
+        assertEquals(1, acquired.size());
+        return acquired;
+    }
+
+    private void fire(CouchDbStore store, List<OperableTrigger> acquired) throws JobPersistenceException {
+        TriggerFiredBundle bundle = store.triggersFired(acquired).get(0).getTriggerFiredBundle();
+        store.triggeredJobComplete(bundle.getTrigger(), bundle.getJobDetail(), Trigger.CompletedExecutionInstruction.NOOP);
+    }
+
+    @Test
+    public void shouldReplaceJobWhoseCachedRevisionIsStale() throws Exception, CouchDbJobStoreException {
+        CouchDbStore cachingCouchdbStore = new CouchDbStore();
+        cachingCouchdbStore.setProperties("/couchdb-job-cache.properties");
+
+        final String jobId = id("fooid");
+        cachingCouchdbStore.storeJob(newJob(DummyJobListener.class).withIdentity(jobId, "bargroup").usingJobData("foo", "bar").build(), false);
+        cachingCouchdbStore.retrieveJob(JobKey.jobKey(jobId, "bargroup"));
+        couchdbStore.storeJob(newJob(DummyJobListener.class).withIdentity(jobId, "bargroup").usingJobData("foo", "baz").build(), true);
+
+        cachingCouchdbStore.storeJob(newJob(DummyJobListener.class).withIdentity(jobId, "bargroup").usingJobData("foo", "bur").build(), true);
+
+        assertEquals("bur", couchdbStore.retrieveJob(JobKey.jobKey(jobId, "bargroup")).getJobDataMap().get("foo"));
+    }
+
+    @Test
+    public void shouldNotCacheJobRevisionOlderThanReportedByChanges() throws Exception, CouchDbJobStoreException {
+        CouchDbStore cachingCouchdbStore = new CouchDbStore();
+        cachingCouchdbStore.setProperties("/couchdb-job-cache.properties");
+        CouchDbJobCache jobCache = cachingCouchdbStore.getJobStore().getJobCache();
+
+        JobKey jobKey = JobKey.jobKey(id("fooid"), "bargroup");
+        cachingCouchdbStore.storeJob(newJob(DummyJobListener.class).withIdentity(jobKey).build(), false);
+        jobCache.onChange(new StdDocumentChange(new ObjectMapper().readTree(
+                "{\"seq\": 1, \"id\": \"" + CouchDbJobDetail.toId(jobKey.getGroup(), jobKey.getName()) + "\", \"changes\": [{\"rev\": \"99-a\"}]}")));
+
+        cachingCouchdbStore.retrieveJob(jobKey);
+
+        assertNull(jobCache.getRevision(CouchDbJobDetail.toId(jobKey.getGroup(), jobKey.getName())));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedJobsFromCache() throws Exception, CouchDbJobStoreException {
+        CouchDbStore cachingCouchdbStore = new CouchDbStore();
+        cachingCouchdbStore.setProperties("/couchdb-job-cache.properties");
+        CouchDbJobCache jobCache = cachingCouchdbStore.getJobStore().getJobCache();
+
+        for (int i = 0; i < 3; i++) {
+            JobKey jobKey = JobKey.jobKey(id("fooid" + i), "bargroup");
+            cachingCouchdbStore.storeJob(newJob(DummyJobListener.class).withIdentity(jobKey).build(), false);
+            cachingCouchdbStore.retrieveJob(jobKey);
+        }
+
+        assertEquals(2, jobCache.size());
+        assertEquals(1, jobCache.getEvictionCount());
+    }
+
     @Test
     public void shouldUpdateExistingJob() throws JobPersistenceException {
         final String jobId = id("fooid");
@@ -172,6 +286,20 @@ public class CouchDbJobStoreIT {
         assertEquals(numberOfJobsBeforeTest + 3, couchdbStore.getNumberOfJobs());
     }
 
+    @Test
+    public void shouldCountJobsByGroup() throws JobPersistenceException {
+        final String group1Id = id("bargroup1");
+        final String group2Id = id("bargroup2");
+        couchdbStore.storeJob(newJob(DummyJobListener.class).withIdentity(id("fooid1"), group1Id).build(), false);
+        couchdbStore.storeJob(newJob(DummyJobListener.class).withIdentity(id("fooid2"), group2Id).build(), false);
+        couchdbStore.storeJob(newJob(DummyJobListener.class).withIdentity(id("fooid3"), group2Id).build(), false);
+
+        Map<String, Integer> counts = couchdbStore.getJobStore().getNumberOfJobsByGroup();
+
+        assertEquals(Integer.valueOf(1), counts.get(group1Id));
+        assertEquals(Integer.valueOf(2), counts.get(group2Id));
+    }
+
     @Test
     public void shouldReturnMatchingJobKeys() throws JobPersistenceException {
         JobDetail job1 = newJob(DummyJobListener.class).withIdentity(id("fooid1"), "bargroup1").build();
@@ -189,6 +317,23 @@ public class CouchDbJobStoreIT {
             couchdbStore.getJobKeys(GroupMatcher.<JobKey>groupEquals(groupId)));
     }
 
+    @Test
+    public void shouldReturnJobKeysMatchingGroupPrefixAndSuffix() throws JobPersistenceException {
+        final String groupPrefix = id("bargroup");
+        final String job1Id = id("fooid1");
+        final String job2Id = id("fooid2");
+        couchdbStore.storeJob(newJob(DummyJobListener.class).withIdentity(job1Id, groupPrefix + "-first").build(), false);
+        couchdbStore.storeJob(newJob(DummyJobListener.class).withIdentity(job2Id, groupPrefix + "-second").build(), false);
+        couchdbStore.storeJob(newJob(DummyJobListener.class).withIdentity(id("fooid3"), id("othergroup")).build(), false);
+
+        assertEquals(
+            new HashSet<JobKey>(asList(JobKey.jobKey(job1Id, groupPrefix + "-first"), JobKey.jobKey(job2Id, groupPrefix + "-second"))),
+            couchdbStore.getJobKeys(GroupMatcher.<JobKey>groupStartsWith(groupPrefix)));
+        assertEquals(
+            new HashSet<JobKey>(asList(JobKey.jobKey(job2Id, groupPrefix + "-second"))),
+            couchdbStore.getJobKeys(GroupMatcher.<JobKey>groupEndsWith(groupPrefix + "-second")));
+    }
+
     @Test
     public void shouldReturnAllJobGroupNames() throws JobPersistenceException {
         final String group1Id = id("group1Id");
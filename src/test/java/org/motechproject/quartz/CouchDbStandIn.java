@@ -0,0 +1,600 @@
+package org.motechproject.quartz;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process HTTP server answering the part of the CouchDB API this store uses: databases, document CRUD with
+ * revision checks and 409 conflicts, _bulk_docs, _all_docs, views with the _count and _sum reduce functions and the
+ * normal, longpoll and continuous _changes feeds. Everything is kept in memory.
+ * <p/>
+ * Map functions are not run as JavaScript: every view is mapped by a {@link MapFunction} registered under its design
+ * document and name. The views of this store are registered by {@link CouchDbStandInViews}. Every request can be
+ * delayed by a fixed latency plus random jitter to stand in for a remote server.
+ * <p/>
+ * Run {@link #main} to serve on a port, by default 5984, so the ITs run against it.
+ */
+public class CouchDbStandIn {
+
+    private static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+    private static final long DEFAULT_CHANGES_TIMEOUT = 60000;
+
+    static {
+        /* the server writes headers and body apart, which Nagle's algorithm and delayed acks turn into 40ms a request */
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private Logger logger = Logger.getLogger(CouchDbStandIn.class);
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final ConcurrentMap<String, CouchDbStandInDatabase> databases = new ConcurrentHashMap<String, CouchDbStandInDatabase>();
+    private final ConcurrentMap<String, MapFunction> mapFunctions = new ConcurrentHashMap<String, MapFunction>();
+    private final AtomicLong requests = new AtomicLong();
+    private final Random random = new Random();
+
+    private volatile long latencyMillis;
+    private volatile long latencyJitterMillis;
+    private volatile boolean running;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * The map function of a view, handed the stored JSON of every document that is not a design document.
+     */
+    public interface MapFunction {
+        void map(JsonNode document, Emitter emitter);
+    }
+
+    public interface Emitter {
+        /**
+         * @param key   a {@link JsonNode} or anything Jackson maps to JSON, null for a null key
+         * @param value likewise
+         */
+        void emit(Object key, Object value);
+    }
+
+    public CouchDbStandIn() {
+        CouchDbStandInViews.register(this);
+    }
+
+    /**
+     * Starts serving on the given port, any free port if 0.
+     */
+    public synchronized CouchDbStandIn start(int port) throws IOException {
+        if (running) {
+            return this;
+        }
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicLong threads = new AtomicLong();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "couchdb-stand-in-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 128);
+        server.createContext("/", new Handler());
+        server.setExecutor(executor);
+        server.start();
+        running = true;
+        logger.info("CouchDB stand-in listening on port " + getPort());
+        return this;
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        for (CouchDbStandInDatabase database : databases.values()) {
+            database.wakeUp();
+        }
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+        executor = null;
+    }
+
+    public synchronized int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void registerMapFunction(String designDocumentId, String viewName, MapFunction map) {
+        mapFunctions.put(designDocumentId + "/" + viewName, map);
+    }
+
+    MapFunction getMapFunction(String designDocumentId, String viewName) {
+        return mapFunctions.get(designDocumentId + "/" + viewName);
+    }
+
+    void missingMapFunction(String designDocumentId, String viewName, String source) {
+        logger.warn("no map function registered for view " + viewName + " of " + designDocumentId + ", queries of it will fail: " + source);
+    }
+
+    /**
+     * Delays every request by the given latency plus up to the given jitter.
+     */
+    public void setLatency(long millis, long jitterMillis) {
+        this.latencyMillis = millis;
+        this.latencyJitterMillis = jitterMillis;
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Drops all databases.
+     */
+    public void clear() {
+        for (CouchDbStandInDatabase database : databases.values()) {
+            database.wakeUp();
+        }
+        databases.clear();
+    }
+
+    /**
+     * Arguments: port, latency in ms and jitter in ms, all optional.
+     */
+    public static void main(String[] args) throws Exception {
+        CouchDbStandIn standIn = new CouchDbStandIn();
+        if (args.length > 1) {
+            standIn.setLatency(Long.parseLong(args[1]), args.length > 2 ? Long.parseLong(args[2]) : 0);
+        }
+        standIn.start(args.length > 0 ? Integer.parseInt(args[0]) : 5984);
+        Thread.currentThread().join();
+    }
+
+    private class Handler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            if (logger.isDebugEnabled()) {
+                logger.debug(exchange.getRequestMethod() + " " + exchange.getRequestURI());
+            }
+            try {
+                delay();
+                route(exchange);
+            } catch (ErrorResponse e) {
+                respond(exchange, e.getStatus(), e.toJson(), null);
+            } catch (JsonProcessingException e) {
+                respond(exchange, 400, new ErrorResponse(400, "bad_request", "invalid JSON: " + e.getMessage()).toJson(), null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                logger.error("failed on " + exchange.getRequestMethod() + " " + exchange.getRequestURI(), e);
+                respond(exchange, 500, new ErrorResponse(500, "internal_error", String.valueOf(e.getMessage())).toJson(), null);
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    private void delay() throws InterruptedException {
+        long jitter = latencyJitterMillis;
+        long millis = latencyMillis + (jitter > 0 ? (long) (random.nextDouble() * (jitter + 1)) : 0);
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    private void route(HttpExchange exchange) throws IOException, InterruptedException {
+        String method = exchange.getRequestMethod();
+        List<String> path = segments(exchange.getRequestURI().getRawPath());
+        Map<String, String> parameters = parameters(exchange.getRequestURI().getRawQuery());
+
+        if (path.isEmpty()) {
+            ObjectNode welcome = NODES.objectNode();
+            welcome.put("couchdb", "Welcome");
+            welcome.put("version", "1.2.0");
+            respond(exchange, 200, welcome, null);
+            return;
+        }
+        if (path.size() == 1 && path.get(0).equals("_all_dbs")) {
+            ArrayNode names = NODES.arrayNode();
+            for (String name : new TreeSet<String>(databases.keySet())) {
+                names.add(name);
+            }
+            respond(exchange, 200, names, null);
+            return;
+        }
+        String databaseName = path.get(0);
+        if (path.size() == 1) {
+            database(exchange, method, databaseName);
+            return;
+        }
+        CouchDbStandInDatabase database = databases.get(databaseName);
+        if (database == null) {
+            throw new ErrorResponse(404, "not_found", "no_db_file");
+        }
+
+        String first = path.get(1);
+        if (first.equals("_bulk_docs") && method.equals("POST")) {
+            JsonNode body = body(exchange);
+            if (body == null || !body.path("docs").isArray()) {
+                throw new ErrorResponse(400, "bad_request", "POST body must include `docs` parameter.");
+            }
+            respond(exchange, 201, database.bulk(body.get("docs")), null);
+        } else if (first.equals("_all_docs") && (method.equals("GET") || method.equals("POST"))) {
+            respond(exchange, 200, database.allDocs(query(parameters, method.equals("POST") ? body(exchange) : null)), null);
+        } else if (first.equals("_changes") && method.equals("GET")) {
+            changes(exchange, databaseName, database, parameters);
+        } else if (first.equals("_ensure_full_commit") || first.equals("_compact") || first.equals("_view_cleanup")) {
+            ObjectNode ok = NODES.objectNode();
+            ok.put("ok", true);
+            respond(exchange, method.equals("POST") ? 201 : 200, ok, null);
+        } else {
+            int rest = 2;
+            String id = first;
+            if (first.equals("_design") && path.size() > 2) {
+                id = "_design/" + path.get(2);
+                rest = 3;
+            } else if (!first.startsWith("_design/")) {
+                if (first.startsWith("_")) {
+                    throw new ErrorResponse(400, "bad_request", "Only reserved document ids may start with underscore.");
+                }
+                id = join(path.subList(1, path.size()));
+                rest = path.size();
+            }
+            if (rest == path.size()) {
+                document(exchange, method, database, id, parameters);
+            } else if (rest + 2 == path.size() && path.get(rest).equals("_view") && (method.equals("GET") || method.equals("POST"))) {
+                respond(exchange, 200, database.view(id, path.get(rest + 1), query(parameters, method.equals("POST") ? body(exchange) : null)), null);
+            } else {
+                throw new ErrorResponse(400, "bad_request", "not supported by the stand-in: " + method + " " + exchange.getRequestURI());
+            }
+        }
+    }
+
+    private void database(HttpExchange exchange, String method, String name) throws IOException {
+        CouchDbStandInDatabase database = databases.get(name);
+        ObjectNode ok = NODES.objectNode();
+        ok.put("ok", true);
+        if (method.equals("PUT")) {
+            if (databases.putIfAbsent(name, new CouchDbStandInDatabase(name, this, mapper)) != null) {
+                throw new ErrorResponse(412, "file_exists", "The database could not be created, the file already exists.");
+            }
+            respond(exchange, 201, ok, null);
+            return;
+        }
+        if (database == null) {
+            throw new ErrorResponse(404, "not_found", "no_db_file");
+        }
+        if (method.equals("GET") || method.equals("HEAD")) {
+            respond(exchange, 200, database.info(), null);
+        } else if (method.equals("DELETE")) {
+            databases.remove(name);
+            database.wakeUp();
+            respond(exchange, 200, ok, null);
+        } else if (method.equals("POST")) {
+            JsonNode document = objectBody(exchange);
+            JsonNode id = document.get("_id");
+            ObjectNode result = database.put(id == null ? UUID.randomUUID().toString().replace("-", "") : id.getTextValue(), (ObjectNode) document);
+            respond(exchange, 201, result, result.get("rev").getTextValue());
+        } else {
+            throw new ErrorResponse(405, "method_not_allowed", "Only DELETE,GET,HEAD,POST,PUT allowed");
+        }
+    }
+
+    private void document(HttpExchange exchange, String method, CouchDbStandInDatabase database, String id, Map<String, String> parameters) throws IOException {
+        String revision = parameters.get("rev");
+        if (method.equals("GET") || method.equals("HEAD")) {
+            ObjectNode document = database.get(id);
+            if (document == null || (revision != null && !revision.equals(document.get("_rev").getTextValue()))) {
+                throw new ErrorResponse(404, "not_found", "missing");
+            }
+            respond(exchange, 200, document, document.get("_rev").getTextValue());
+        } else if (method.equals("PUT")) {
+            ObjectNode document = (ObjectNode) objectBody(exchange);
+            if (revision != null && !document.has("_rev")) {
+                document.put("_rev", revision);
+            }
+            ObjectNode result = database.put(id, document);
+            respond(exchange, 201, result, result.get("rev").getTextValue());
+        } else if (method.equals("DELETE")) {
+            if (revision == null) {
+                revision = unquote(exchange.getRequestHeaders().getFirst("If-Match"));
+            }
+            ObjectNode result = database.delete(id, revision);
+            respond(exchange, 200, result, result.get("rev").getTextValue());
+        } else {
+            throw new ErrorResponse(405, "method_not_allowed", "Only DELETE,GET,HEAD,PUT allowed");
+        }
+    }
+
+    private void changes(HttpExchange exchange, String databaseName, CouchDbStandInDatabase database, Map<String, String> parameters) throws IOException, InterruptedException {
+        String sinceParameter = parameters.get("since");
+        long since = sinceParameter == null ? 0 : sinceParameter.equals("now") ? database.getUpdateSequence() : Long.parseLong(sinceParameter);
+        boolean includeDocs = Boolean.parseBoolean(parameters.get("include_docs"));
+        int limit = parameters.containsKey("limit") ? Integer.parseInt(parameters.get("limit")) : Integer.MAX_VALUE;
+        long timeout = parameters.containsKey("timeout") ? Long.parseLong(parameters.get("timeout")) : DEFAULT_CHANGES_TIMEOUT;
+        String feed = parameters.get("feed");
+
+        if (!"continuous".equals(feed)) {
+            if ("longpoll".equals(feed)) {
+                database.awaitChange(since, timeout);
+            }
+            List<ObjectNode> changes = database.changesSince(since, includeDocs, limit);
+            ObjectNode result = NODES.objectNode();
+            ArrayNode results = result.putArray("results");
+            for (ObjectNode change : changes) {
+                results.add(change);
+                since = change.get("seq").getLongValue();
+            }
+            result.put("last_seq", since);
+            respond(exchange, 200, result, null);
+            return;
+        }
+
+        Long heartbeat = parameters.containsKey("heartbeat") ? Long.valueOf(parameters.get("heartbeat")) : null;
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        long idleSince = System.currentTimeMillis();
+        int sent = 0;
+        try {
+            while (running && databases.get(databaseName) == database && sent < limit) {
+                List<ObjectNode> changes = database.changesSince(since, includeDocs, limit - sent);
+                for (ObjectNode change : changes) {
+                    out.write(mapper.writeValueAsBytes(change));
+                    out.write('\n');
+                    since = change.get("seq").getLongValue();
+                    sent++;
+                }
+                if (!changes.isEmpty()) {
+                    out.flush();
+                    idleSince = System.currentTimeMillis();
+                    continue;
+                }
+                long wait = heartbeat != null ? heartbeat : idleSince + timeout - System.currentTimeMillis();
+                if (wait <= 0) {
+                    break;
+                }
+                database.awaitChange(since, wait);
+                if (heartbeat != null && database.getUpdateSequence() <= since) {
+                    out.write('\n');
+                    out.flush();
+                }
+            }
+            ObjectNode last = NODES.objectNode();
+            last.put("last_seq", since);
+            out.write(mapper.writeValueAsBytes(last));
+            out.write('\n');
+            out.flush();
+        } catch (IOException e) {
+            logger.debug("changes feed closed by the client: " + e.getMessage());
+        }
+    }
+
+    private CouchDbStandInDatabase.Query query(Map<String, String> parameters, JsonNode body) throws IOException {
+        CouchDbStandInDatabase.Query query = new CouchDbStandInDatabase.Query();
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            String name = parameter.getKey();
+            String value = parameter.getValue();
+            if (name.equals("key")) {
+                query.key = mapper.readTree(value);
+            } else if (name.equals("keys")) {
+                query.keys = list(mapper.readTree(value));
+            } else if (name.equals("startkey") || name.equals("start_key")) {
+                query.startKey = mapper.readTree(value);
+            } else if (name.equals("endkey") || name.equals("end_key")) {
+                query.endKey = mapper.readTree(value);
+            } else if (name.equals("startkey_docid") || name.equals("start_key_doc_id")) {
+                query.startKeyDocId = value;
+            } else if (name.equals("endkey_docid") || name.equals("end_key_doc_id")) {
+                query.endKeyDocId = value;
+            } else if (name.equals("limit")) {
+                query.limit = Integer.parseInt(value);
+            } else if (name.equals("skip")) {
+                query.skip = Integer.parseInt(value);
+            } else if (name.equals("descending")) {
+                query.descending = Boolean.parseBoolean(value);
+            } else if (name.equals("include_docs")) {
+                query.includeDocs = Boolean.parseBoolean(value);
+            } else if (name.equals("inclusive_end")) {
+                query.inclusiveEnd = Boolean.parseBoolean(value);
+            } else if (name.equals("reduce")) {
+                query.reduce = Boolean.valueOf(value);
+            } else if (name.equals("group")) {
+                query.group = Boolean.parseBoolean(value);
+            } else if (name.equals("group_level")) {
+                query.groupLevel = Integer.valueOf(value);
+            }
+        }
+        if (body != null && body.has("keys")) {
+            query.keys = list(body.get("keys"));
+        }
+        return query;
+    }
+
+    private static List<JsonNode> list(JsonNode array) {
+        if (!array.isArray()) {
+            throw new ErrorResponse(400, "bad_request", "`keys` member must be a array.");
+        }
+        List<JsonNode> list = new ArrayList<JsonNode>();
+        for (JsonNode element : array) {
+            list.add(element);
+        }
+        return list;
+    }
+
+    private JsonNode objectBody(HttpExchange exchange) throws IOException {
+        JsonNode body = body(exchange);
+        if (body == null || !body.isObject()) {
+            throw new ErrorResponse(400, "bad_request", "Document must be a JSON object");
+        }
+        return body;
+    }
+
+    private JsonNode body(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.size() == 0 ? null : mapper.readTree(bytes.toByteArray());
+    }
+
+    private void respond(HttpExchange exchange, int status, JsonNode body, String revision) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.getResponseHeaders().set("Cache-Control", "must-revalidate");
+        if (revision != null) {
+            exchange.getResponseHeaders().set("ETag", "\"" + revision + "\"");
+        }
+        /* a response without body, as to HEAD, is finished as soon as its headers are sent, and the server then closes
+           the connection unless the request body was read to its end; the client would only notice that when reusing
+           the connection, by a reset if its next request was already underway */
+        drain(exchange.getRequestBody());
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] bytes = body.path("rows").isArray() ? rows(body) : mapper.writeValueAsBytes(body);
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.flush();
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) != -1) {
+        }
+    }
+
+    /* rows one per line after the other members, as CouchDB lays them out and ektorp's streaming view result reads them */
+    private byte[] rows(JsonNode result) throws IOException {
+        StringBuilder json = new StringBuilder("{");
+        Iterator<Map.Entry<String, JsonNode>> fields = result.getFields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            if (!field.getKey().equals("rows")) {
+                json.append(mapper.writeValueAsString(field.getKey())).append(':').append(mapper.writeValueAsString(field.getValue())).append(',');
+            }
+        }
+        json.append("\"rows\":[\r\n");
+        Iterator<JsonNode> rows = result.get("rows").getElements();
+        while (rows.hasNext()) {
+            json.append(mapper.writeValueAsString(rows.next())).append(rows.hasNext() ? ",\r\n" : "\r\n");
+        }
+        return json.append("]}\n").toString().getBytes("UTF-8");
+    }
+
+    private static List<String> segments(String rawPath) {
+        List<String> segments = new ArrayList<String>();
+        for (String segment : rawPath.split("/")) {
+            if (segment.length() > 0) {
+                segments.add(decode(segment));
+            }
+        }
+        return segments;
+    }
+
+    private static String join(List<String> segments) {
+        StringBuilder joined = new StringBuilder();
+        for (String segment : segments) {
+            joined.append(joined.length() > 0 ? "/" : "").append(segment);
+        }
+        return joined.toString();
+    }
+
+    private static Map<String, String> parameters(String rawQuery) {
+        Map<String, String> parameters = new HashMap<String, String>();
+        if (rawQuery == null) {
+            return parameters;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0) {
+                parameters.put(decode(parameter.substring(0, separator)), decode(parameter.substring(separator + 1)));
+            } else if (parameter.length() > 0) {
+                parameters.put(decode(parameter), "");
+            }
+        }
+        return parameters;
+    }
+
+    private static String decode(String encoded) {
+        try {
+            return URLDecoder.decode(encoded.replace("+", "%2B"), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String unquote(String etag) {
+        return etag == null ? null : etag.replace("\"", "");
+    }
+
+    /**
+     * An error answered with its status and a CouchDB error document.
+     */
+    static class ErrorResponse extends RuntimeException {
+
+        private final int status;
+        private final String error;
+        private final String reason;
+
+        ErrorResponse(int status, String error, String reason) {
+            super(status + " " + error + ": " + reason);
+            this.status = status;
+            this.error = error;
+            this.reason = reason;
+        }
+
+        int getStatus() {
+            return status;
+        }
+
+        String getError() {
+            return error;
+        }
+
+        String getReason() {
+            return reason;
+        }
+
+        ObjectNode toJson() {
+            ObjectNode json = NODES.objectNode();
+            json.put("error", error);
+            json.put("reason", reason);
+            return json;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.motechproject.quartz;
+
+import org.codehaus.jackson.JsonNode;
+
+import java.text.Collator;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Orders view keys the way CouchDB does: null, false, true, numbers, strings, arrays and objects, arrays and objects
+ * element by element. Strings are compared with the root locale collator rather than ICU, which agrees with CouchDB
+ * for the keys this store emits.
+ */
+class CouchDbStandInCollation implements Comparator<JsonNode> {
+
+    private final Collator collator;
+
+    CouchDbStandInCollation() {
+        collator = Collator.getInstance(Locale.ROOT);
+        collator.setStrength(Collator.TERTIARY);
+    }
+
+    @Override
+    public int compare(JsonNode a, JsonNode b) {
+        int rank = rank(a);
+        if (rank != rank(b)) {
+            return rank - rank(b);
+        }
+        if (rank < 3) {
+            return 0;
+        }
+        if (a.isNumber()) {
+            return Double.compare(a.getDoubleValue(), b.getDoubleValue());
+        }
+        if (a.isTextual()) {
+            int result = collator.compare(a.getTextValue(), b.getTextValue());
+            return result != 0 ? result : a.getTextValue().compareTo(b.getTextValue());
+        }
+        if (a.isArray()) {
+            for (int i = 0; i < Math.min(a.size(), b.size()); i++) {
+                int result = compare(a.get(i), b.get(i));
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return a.size() - b.size();
+        }
+        if (a.isObject()) {
+            Iterator<Map.Entry<String, JsonNode>> fieldsOfA = a.getFields();
+            Iterator<Map.Entry<String, JsonNode>> fieldsOfB = b.getFields();
+            while (fieldsOfA.hasNext() && fieldsOfB.hasNext()) {
+                Map.Entry<String, JsonNode> fieldOfA = fieldsOfA.next();
+                Map.Entry<String, JsonNode> fieldOfB = fieldsOfB.next();
+                int result = collator.compare(fieldOfA.getKey(), fieldOfB.getKey());
+                if (result == 0) {
+                    result = compare(fieldOfA.getValue(), fieldOfB.getValue());
+                }
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return a.size() - b.size();
+        }
+        return 0;
+    }
+
+    private static int rank(JsonNode node) {
+        if (node == null || node.isNull() || node.isMissingNode()) {
+            return 0;
+        }
+        if (node.isBoolean()) {
+            return node.getBooleanValue() ? 2 : 1;
+        }
+        if (node.isNumber()) {
+            return 3;
+        }
+        if (node.isTextual()) {
+            return 4;
+        }
+        if (node.isArray()) {
+            return 5;
+        }
+        return 6;
+    }
+}
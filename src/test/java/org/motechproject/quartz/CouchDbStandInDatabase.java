@@ -0,0 +1,527 @@
+package org.motechproject.quartz;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * One database of the {@link CouchDbStandIn}: the latest revision of every document, deleted ones kept as
+ * tombstones, the index of every view of its design documents, kept current on every write, and the sequence of
+ * changes. All access is serialized on the database.
+ */
+class CouchDbStandInDatabase {
+
+    private static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+    private static final int BEFORE = Integer.MIN_VALUE;
+    private static final int AFTER = Integer.MAX_VALUE;
+
+    private final String name;
+    private final CouchDbStandIn standIn;
+    private final ObjectMapper mapper;
+    private final CouchDbStandInCollation collation = new CouchDbStandInCollation();
+
+    private final TreeMap<String, ObjectNode> documents = new TreeMap<String, ObjectNode>();
+    private final Map<String, ViewIndex> views = new HashMap<String, ViewIndex>();
+    private final TreeMap<Long, String> changes = new TreeMap<Long, String>();
+    private final Map<String, Long> lastChanges = new HashMap<String, Long>();
+    private long updateSequence;
+    private int documentCount;
+    private int deletedCount;
+
+    CouchDbStandInDatabase(String name, CouchDbStandIn standIn, ObjectMapper mapper) {
+        this.name = name;
+        this.standIn = standIn;
+        this.mapper = mapper;
+    }
+
+    synchronized ObjectNode info() {
+        ObjectNode info = NODES.objectNode();
+        info.put("db_name", name);
+        info.put("doc_count", documentCount);
+        info.put("doc_del_count", deletedCount);
+        info.put("update_seq", updateSequence);
+        info.put("purge_seq", 0);
+        info.put("compact_running", false);
+        info.put("disk_size", 0);
+        info.put("instance_start_time", "0");
+        info.put("disk_format_version", 5);
+        info.put("committed_update_seq", updateSequence);
+        return info;
+    }
+
+    /**
+     * @return the current revision of the document, null if it does not exist or was deleted
+     */
+    synchronized ObjectNode get(String id) {
+        ObjectNode document = documents.get(id);
+        return document == null || isDeleted(document) ? null : document;
+    }
+
+    synchronized ObjectNode put(String id, ObjectNode document) {
+        return write(id, document);
+    }
+
+    synchronized ObjectNode delete(String id, String revision) {
+        ObjectNode tombstone = NODES.objectNode();
+        tombstone.put("_id", id);
+        if (revision != null) {
+            tombstone.put("_rev", revision);
+        }
+        tombstone.put("_deleted", true);
+        return write(id, tombstone);
+    }
+
+    /**
+     * Writes every document on its own as CouchDB does, conflicts are reported in the result of the document.
+     */
+    synchronized ArrayNode bulk(JsonNode documents) {
+        ArrayNode results = NODES.arrayNode();
+        for (JsonNode document : documents) {
+            if (!document.isObject()) {
+                throw new CouchDbStandIn.ErrorResponse(400, "bad_request", "Document must be a JSON object");
+            }
+            String id = document.has("_id") ? document.get("_id").getTextValue() : UUID.randomUUID().toString().replace("-", "");
+            try {
+                results.add(write(id, (ObjectNode) document));
+            } catch (CouchDbStandIn.ErrorResponse e) {
+                ObjectNode result = NODES.objectNode();
+                result.put("id", id);
+                result.put("error", e.getError());
+                result.put("reason", e.getReason());
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    synchronized ObjectNode allDocs(Query query) {
+        ArrayNode rows = NODES.arrayNode();
+        ObjectNode result = NODES.objectNode();
+        result.put("total_rows", documentCount);
+        if (query.keys != null) {
+            result.put("offset", 0);
+            for (JsonNode key : query.keys) {
+                rows.add(allDocsRow(key.getTextValue(), documents.get(key.getTextValue()), query.includeDocs));
+            }
+        } else {
+            NavigableMap<String, ObjectNode> range = query.descending ? documents.descendingMap() : documents;
+            String start = query.startKey != null ? query.startKey.getTextValue() : query.startKeyDocId;
+            String end = query.endKey != null ? query.endKey.getTextValue() : query.endKeyDocId;
+            if (start != null) {
+                range = range.tailMap(start, true);
+            }
+            if (end != null) {
+                range = range.headMap(end, query.inclusiveEnd);
+            }
+            int offset = start == null ? 0 : documents.size() - documents.tailMap(start, true).size();
+            result.put("offset", offset);
+            int skipped = 0;
+            for (Map.Entry<String, ObjectNode> entry : range.entrySet()) {
+                if (rows.size() >= query.limit) {
+                    break;
+                }
+                if (isDeleted(entry.getValue()) || skipped++ < query.skip) {
+                    continue;
+                }
+                rows.add(allDocsRow(entry.getKey(), entry.getValue(), query.includeDocs));
+            }
+        }
+        result.put("rows", rows);
+        return result;
+    }
+
+    synchronized ObjectNode view(String designDocumentId, String viewName, Query query) {
+        ViewIndex view = views.get(designDocumentId + "/" + viewName);
+        if (view == null) {
+            throw new CouchDbStandIn.ErrorResponse(404, "not_found", "missing_named_view");
+        }
+        boolean reduce = view.reduce != null && (query.reduce == null || query.reduce);
+        if (reduce && query.includeDocs) {
+            throw new CouchDbStandIn.ErrorResponse(400, "query_parse_error", "`include_docs` is invalid for reduce");
+        }
+        if (view.reduce == null && (query.group || query.groupLevel != null)) {
+            throw new CouchDbStandIn.ErrorResponse(400, "query_parse_error", "Invalid use of grouping on a map view.");
+        }
+        List<Map.Entry<Row, JsonNode>> selected = select(view, query);
+        return reduce ? reduce(view, selected, query) : map(view, selected, query);
+    }
+
+    /**
+     * @return the latest change of each document changed after the given sequence, oldest first
+     */
+    synchronized List<ObjectNode> changesSince(long since, boolean includeDocs, int limit) {
+        List<ObjectNode> result = new ArrayList<ObjectNode>();
+        for (Map.Entry<Long, String> change : changes.tailMap(since, false).entrySet()) {
+            if (result.size() >= limit) {
+                break;
+            }
+            ObjectNode document = documents.get(change.getValue());
+            ObjectNode row = NODES.objectNode();
+            row.put("seq", change.getKey());
+            row.put("id", change.getValue());
+            ArrayNode revisions = row.putArray("changes");
+            revisions.addObject().put("rev", document.get("_rev").getTextValue());
+            if (isDeleted(document)) {
+                row.put("deleted", true);
+            }
+            if (includeDocs) {
+                row.put("doc", document);
+            }
+            result.add(row);
+        }
+        return result;
+    }
+
+    synchronized long getUpdateSequence() {
+        return updateSequence;
+    }
+
+    /**
+     * Waits until a change after the given sequence was made or the time is up.
+     */
+    synchronized void awaitChange(long since, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while (updateSequence <= since && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+    }
+
+    synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    private ObjectNode write(String id, ObjectNode document) {
+        ObjectNode current = documents.get(id);
+        JsonNode givenRevision = document.get("_rev");
+        String revision = givenRevision == null || givenRevision.isNull() ? null : givenRevision.getTextValue();
+        boolean exists = current != null && !isDeleted(current);
+        boolean deleting = document.path("_deleted").getBooleanValue();
+        if (exists ? !current.get("_rev").getTextValue().equals(revision) : revision != null && (current == null || !current.get("_rev").getTextValue().equals(revision))) {
+            throw new CouchDbStandIn.ErrorResponse(409, "conflict", "Document update conflict.");
+        }
+        if (!exists && deleting) {
+            throw new CouchDbStandIn.ErrorResponse(404, "not_found", current == null ? "missing" : "deleted");
+        }
+        int generation = current == null ? 1 : Integer.parseInt(current.get("_rev").getTextValue().split("-")[0]) + 1;
+        String newRevision = generation + "-" + UUID.randomUUID().toString().replace("-", "");
+
+        ObjectNode stored = NODES.objectNode();
+        stored.put("_id", id);
+        stored.put("_rev", newRevision);
+        if (deleting) {
+            stored.put("_deleted", true);
+        } else {
+            Iterator<Map.Entry<String, JsonNode>> fields = document.getFields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                if (!field.getKey().equals("_id") && !field.getKey().equals("_rev")) {
+                    stored.put(field.getKey(), field.getValue());
+                }
+            }
+        }
+        documents.put(id, stored);
+        documentCount += (deleting ? 0 : 1) - (exists ? 1 : 0);
+        deletedCount += (deleting ? 1 : 0) - (current != null && !exists ? 1 : 0);
+
+        Long previousChange = lastChanges.put(id, ++updateSequence);
+        if (previousChange != null) {
+            changes.remove(previousChange);
+        }
+        changes.put(updateSequence, id);
+
+        if (id.startsWith("_design/")) {
+            defineViews(id, deleting ? null : stored);
+        } else {
+            for (ViewIndex view : views.values()) {
+                view.update(id, deleting ? null : stored);
+            }
+        }
+        notifyAll();
+
+        ObjectNode result = NODES.objectNode();
+        result.put("ok", true);
+        result.put("id", id);
+        result.put("rev", newRevision);
+        return result;
+    }
+
+    private void defineViews(String designDocumentId, ObjectNode designDocument) {
+        Iterator<String> names = views.keySet().iterator();
+        while (names.hasNext()) {
+            if (names.next().startsWith(designDocumentId + "/")) {
+                names.remove();
+            }
+        }
+        if (designDocument == null || !designDocument.path("views").isObject()) {
+            return;
+        }
+        Iterator<Map.Entry<String, JsonNode>> definitions = designDocument.get("views").getFields();
+        while (definitions.hasNext()) {
+            Map.Entry<String, JsonNode> definition = definitions.next();
+            CouchDbStandIn.MapFunction map = standIn.getMapFunction(designDocumentId, definition.getKey());
+            if (map == null) {
+                standIn.missingMapFunction(designDocumentId, definition.getKey(), definition.getValue().path("map").getTextValue());
+                continue;
+            }
+            JsonNode reduce = definition.getValue().get("reduce");
+            ViewIndex view = new ViewIndex(map, reduce == null || reduce.isNull() ? null : reduce.getTextValue());
+            for (Map.Entry<String, ObjectNode> document : documents.entrySet()) {
+                if (!document.getKey().startsWith("_design/") && !isDeleted(document.getValue())) {
+                    view.update(document.getKey(), document.getValue());
+                }
+            }
+            views.put(designDocumentId + "/" + definition.getKey(), view);
+        }
+    }
+
+    private List<Map.Entry<Row, JsonNode>> select(ViewIndex view, Query query) {
+        List<Map.Entry<Row, JsonNode>> selected = new ArrayList<Map.Entry<Row, JsonNode>>();
+        if (query.keys != null) {
+            for (JsonNode key : query.keys) {
+                NavigableMap<Row, JsonNode> rows = view.rows.subMap(new Row(key, null, BEFORE), true, new Row(key, null, AFTER), true);
+                selected.addAll((query.descending ? rows.descendingMap() : rows).entrySet());
+            }
+            return selected;
+        }
+        JsonNode startKey = query.startKey;
+        JsonNode endKey = query.endKey;
+        if (query.key != null) {
+            startKey = query.key;
+            endKey = query.key;
+        }
+        int direction = query.descending ? -1 : 1;
+        NavigableMap<Row, JsonNode> rows = view.rows;
+        if (startKey != null) {
+            Row start = new Row(startKey, query.startKeyDocId, query.descending ? AFTER : BEFORE);
+            rows = query.descending ? rows.headMap(start, true) : rows.tailMap(start, true);
+        }
+        if (query.descending) {
+            rows = rows.descendingMap();
+        }
+        Row end = endKey == null ? null : new Row(endKey, query.endKeyDocId, query.inclusiveEnd == query.descending ? BEFORE : AFTER);
+        for (Map.Entry<Row, JsonNode> row : rows.entrySet()) {
+            if (end != null && direction * view.rows.comparator().compare(row.getKey(), end) > 0) {
+                break;
+            }
+            selected.add(row);
+        }
+        return selected;
+    }
+
+    private ObjectNode map(ViewIndex view, List<Map.Entry<Row, JsonNode>> selected, Query query) {
+        ObjectNode result = NODES.objectNode();
+        result.put("total_rows", view.rows.size());
+        int offset = 0;
+        if (!selected.isEmpty() && query.keys == null) {
+            Row first = selected.get(0).getKey();
+            offset = query.descending ? view.rows.tailMap(first, false).size() : view.rows.headMap(first, false).size();
+        }
+        result.put("offset", offset + Math.min(query.skip, selected.size()));
+        ArrayNode rows = result.putArray("rows");
+        for (Map.Entry<Row, JsonNode> entry : page(selected, query)) {
+            ObjectNode row = rows.addObject();
+            row.put("id", entry.getKey().id);
+            row.put("key", entry.getKey().key);
+            row.put("value", entry.getValue());
+            if (query.includeDocs) {
+                JsonNode linked = entry.getValue().path("_id");
+                row.put("doc", get(linked.isTextual() ? linked.getTextValue() : entry.getKey().id));
+            }
+        }
+        return result;
+    }
+
+    private ObjectNode reduce(ViewIndex view, List<Map.Entry<Row, JsonNode>> selected, Query query) {
+        List<Map.Entry<Row, JsonNode>> groups = new ArrayList<Map.Entry<Row, JsonNode>>();
+        JsonNode groupKey = null;
+        List<JsonNode> values = new ArrayList<JsonNode>();
+        Integer level = query.group ? Integer.valueOf(Integer.MAX_VALUE) : query.groupLevel;
+        for (Map.Entry<Row, JsonNode> entry : selected) {
+            JsonNode key = level == null ? null : groupKey(entry.getKey().key, level);
+            if (!values.isEmpty() && level != null && collation.compare(key, groupKey) != 0) {
+                groups.add(new AbstractMap.SimpleEntry<Row, JsonNode>(new Row(groupKey, null, 0), reduce(view.reduce, values)));
+                values.clear();
+            }
+            groupKey = key;
+            values.add(entry.getValue());
+        }
+        if (!values.isEmpty()) {
+            groups.add(new AbstractMap.SimpleEntry<Row, JsonNode>(new Row(groupKey, null, 0), reduce(view.reduce, values)));
+        }
+        ObjectNode result = NODES.objectNode();
+        ArrayNode rows = result.putArray("rows");
+        for (Map.Entry<Row, JsonNode> group : page(groups, query)) {
+            ObjectNode row = rows.addObject();
+            row.put("key", group.getKey().key == null ? NODES.nullNode() : group.getKey().key);
+            row.put("value", group.getValue());
+        }
+        return result;
+    }
+
+    private JsonNode reduce(String function, List<JsonNode> values) {
+        if (function.equals("_count")) {
+            return NODES.numberNode(values.size());
+        }
+        if (function.equals("_sum")) {
+            double sum = 0;
+            for (JsonNode value : values) {
+                sum += value.getDoubleValue();
+            }
+            return sum == Math.rint(sum) ? NODES.numberNode((long) sum) : NODES.numberNode(sum);
+        }
+        throw new CouchDbStandIn.ErrorResponse(500, "unsupported_reduce", "only the _count and _sum reduce functions are supported, not " + function);
+    }
+
+    private static JsonNode groupKey(JsonNode key, int level) {
+        if (!key.isArray() || key.size() <= level) {
+            return key;
+        }
+        ArrayNode truncated = NODES.arrayNode();
+        for (int i = 0; i < level; i++) {
+            truncated.add(key.get(i));
+        }
+        return truncated;
+    }
+
+    private static <T> List<T> page(List<T> rows, Query query) {
+        int from = Math.min(query.skip, rows.size());
+        int to = (int) Math.min((long) from + query.limit, rows.size());
+        return rows.subList(from, to);
+    }
+
+    private ObjectNode allDocsRow(String id, ObjectNode document, boolean includeDocs) {
+        ObjectNode row = NODES.objectNode();
+        if (document == null) {
+            row.put("key", id);
+            row.put("error", "not_found");
+            return row;
+        }
+        row.put("id", id);
+        row.put("key", id);
+        ObjectNode value = row.putObject("value");
+        value.put("rev", document.get("_rev").getTextValue());
+        if (isDeleted(document)) {
+            value.put("deleted", true);
+        }
+        if (includeDocs) {
+            row.put("doc", isDeleted(document) ? NODES.nullNode() : document);
+        }
+        return row;
+    }
+
+    private static boolean isDeleted(ObjectNode document) {
+        return document.path("_deleted").getBooleanValue();
+    }
+
+    /**
+     * The rows a view emitted, ordered by key and document id. Bounds of a range are rows without a document id
+     * placed before or after all rows of their key.
+     */
+    private class ViewIndex {
+
+        private final CouchDbStandIn.MapFunction map;
+        private final String reduce;
+        private final TreeMap<Row, JsonNode> rows = new TreeMap<Row, JsonNode>(new Comparator<Row>() {
+            @Override
+            public int compare(Row a, Row b) {
+                int result = collation.compare(a.key, b.key);
+                if (result != 0) {
+                    return result;
+                }
+                if (a.id != null && b.id != null) {
+                    result = a.id.compareTo(b.id);
+                } else if (a.id != null || b.id != null) {
+                    return a.id == null ? a.edge : -b.edge;
+                }
+                return result != 0 ? result : a.edge < b.edge ? -1 : a.edge == b.edge ? 0 : 1;
+            }
+        });
+        private final Map<String, List<Row>> rowsOfDocuments = new HashMap<String, List<Row>>();
+
+        private ViewIndex(CouchDbStandIn.MapFunction map, String reduce) {
+            this.map = map;
+            this.reduce = reduce;
+        }
+
+        private void update(final String id, ObjectNode document) {
+            List<Row> previous = rowsOfDocuments.remove(id);
+            if (previous != null) {
+                for (Row row : previous) {
+                    rows.remove(row);
+                }
+            }
+            if (document == null) {
+                return;
+            }
+            final List<Row> emitted = new ArrayList<Row>();
+            map.map(document, new CouchDbStandIn.Emitter() {
+                @Override
+                public void emit(Object key, Object value) {
+                    Row row = new Row(toJson(key), id, emitted.size());
+                    emitted.add(row);
+                    rows.put(row, toJson(value));
+                }
+            });
+            if (!emitted.isEmpty()) {
+                rowsOfDocuments.put(id, emitted);
+            }
+        }
+
+        private JsonNode toJson(Object value) {
+            if (value == null) {
+                return NODES.nullNode();
+            }
+            return value instanceof JsonNode ? (JsonNode) value : mapper.<JsonNode>valueToTree(value);
+        }
+    }
+
+    /* the edge of an emitted row is the number of rows the document emitted before it */
+    private static class Row {
+
+        private final JsonNode key;
+        private final String id;
+        private final int edge;
+
+        private Row(JsonNode key, String id, int edge) {
+            this.key = key;
+            this.id = id;
+            this.edge = edge;
+        }
+    }
+
+    /**
+     * The options of an _all_docs or view query.
+     */
+    static class Query {
+
+        JsonNode key;
+        List<JsonNode> keys;
+        JsonNode startKey;
+        JsonNode endKey;
+        String startKeyDocId;
+        String endKeyDocId;
+        int limit = Integer.MAX_VALUE;
+        int skip;
+        boolean descending;
+        boolean includeDocs;
+        boolean inclusiveEnd = true;
+        Boolean reduce;
+        boolean group;
+        Integer groupLevel;
+    }
+}
@@ -0,0 +1,118 @@
+package org.motechproject.quartz;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.JobDetail;
+import org.quartz.JobPersistenceException;
+import org.quartz.ObjectAlreadyExistsException;
+import org.quartz.impl.triggers.SimpleTriggerImpl;
+import org.quartz.spi.OperableTrigger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.quartz.JobBuilder.newJob;
+import static org.quartz.SimpleScheduleBuilder.simpleSchedule;
+import static org.quartz.TriggerBuilder.newTrigger;
+
+public class CouchDbStandInIT {
+
+    CouchDbStandIn standIn;
+    CouchDbStore couchdbStore;
+
+    @Before
+    public void setup() throws Exception, CouchDbJobStoreException {
+        standIn = new CouchDbStandIn().start(0);
+
+        Properties properties = new Properties();
+        properties.load(CouchDbStandInIT.class.getResourceAsStream("/couchdb.properties"));
+        properties.setProperty("port", String.valueOf(standIn.getPort()));
+        couchdbStore = new CouchDbStore();
+        couchdbStore.setProperties(properties);
+    }
+
+    @After
+    public void tearDown() {
+        couchdbStore.shutdown();
+        standIn.stop();
+    }
+
+    @Test
+    public void shouldScheduleAndFireTriggersWithoutCouchDb() throws JobPersistenceException {
+        JobDetail job = newJob(JobListener.class).withIdentity("fooid", "bargroup").build();
+        SimpleTriggerImpl trigger = (SimpleTriggerImpl) newTrigger()
+                .withIdentity("fuuid", "borgroup")
+                .forJob(job)
+                .startAt(new Date(2010 - 1900, 10, 20))
+                .withSchedule(simpleSchedule().withIntervalInMinutes(2).repeatForever())
+                .build();
+        trigger.computeFirstFireTime(null);
+        couchdbStore.storeJobAndTrigger(job, trigger);
+
+        List<OperableTrigger> acquiredTriggers = couchdbStore.acquireNextTriggers(new Date(2010 - 1900, 10, 21).getTime(), 1, 0);
+        assertEquals(1, acquiredTriggers.size());
+        assertEquals(1, couchdbStore.triggersFired(acquiredTriggers).size());
+        assertEquals(1, couchdbStore.getNumberOfJobs());
+        assertEquals(1, couchdbStore.getNumberOfTriggers());
+        assertEquals(CouchDbTriggerState.WAITING, couchdbStore.getTriggerStore().getTriggerByKey(trigger.getKey()).getState());
+    }
+
+    @Test(expected = ObjectAlreadyExistsException.class)
+    public void shouldAnswerConflictsForExistingDocuments() throws JobPersistenceException {
+        JobDetail job = newJob(JobListener.class).withIdentity("fooid", "bargroup").build();
+        couchdbStore.storeJob(job, false);
+        couchdbStore.storeJob(job, false);
+    }
+
+    @Test
+    public void shouldDelayRequestsByLatency() throws JobPersistenceException {
+        standIn.setLatency(50, 0);
+        long requestsBefore = standIn.getRequestCount();
+        long start = System.currentTimeMillis();
+
+        couchdbStore.getNumberOfJobs();
+
+        long requests = standIn.getRequestCount() - requestsBefore;
+        assertTrue(requests > 0);
+        assertTrue(System.currentTimeMillis() - start >= requests * 50);
+    }
+
+    @Test
+    public void shouldKeepConnectionAliveAfterResponseWithoutBody() throws Exception {
+        Socket socket = new Socket("localhost", standIn.getPort());
+        try {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write("HEAD /missing HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+            out.flush();
+            assertTrue(readHeaders(in).startsWith("HTTP/1.1 404"));
+
+            Thread.sleep(100);
+            out.write("HEAD / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+            out.flush();
+            assertTrue(readHeaders(in).startsWith("HTTP/1.1 200"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    private String readHeaders(InputStream in) throws IOException {
+        StringBuilder headers = new StringBuilder();
+        while (!headers.toString().endsWith("\r\n\r\n")) {
+            int read = in.read();
+            if (read == -1) {
+                break;
+            }
+            headers.append((char) read);
+        }
+        return headers.toString();
+    }
+}
@@ -0,0 +1,167 @@
+package org.motechproject.quartz;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * The views of the store's repositories for the {@link CouchDbStandIn}, the JavaScript of their {@code @View}
+ * annotations translated to Java. A view changed in a repository has to be changed here as well.
+ */
+final class CouchDbStandInViews {
+
+    private static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+
+    private CouchDbStandInViews() {
+    }
+
+    static void register(CouchDbStandIn standIn) {
+        String jobs = "_design/CouchDbJobDetail";
+        standIn.registerMapFunction(jobs, "all_jobs", emit("CouchDbJobDetail", "_id", "_id"));
+        standIn.registerMapFunction(jobs, "all_job_revs", emit("CouchDbJobDetail", "_rev", "_id"));
+        standIn.registerMapFunction(jobs, "count_by_group", emit("CouchDbJobDetail", null, "group"));
+        standIn.registerMapFunction(jobs, "by_group_and_name", emit("CouchDbJobDetail", null, "group", "name"));
+
+        String calendars = "_design/CouchDbCalendar";
+        standIn.registerMapFunction(calendars, "by_calendarName", emit("CouchDbCalendar", "_id", "name"));
+        standIn.registerMapFunction(calendars, "all_calendars", emit("CouchDbCalendar", "_id", "_id"));
+        standIn.registerMapFunction(calendars, "all_calendar_revs", emit("CouchDbCalendar", "_rev", "_id"));
+        standIn.registerMapFunction(calendars, "count_calendars", emit("CouchDbCalendar", null, "name"));
+
+        standIn.registerMapFunction("_design/CouchDbPausedGroup", "all_paused_groups", emit("CouchDbPausedGroup", "_rev", "_id"));
+        standIn.registerMapFunction("_design/CouchDbSchedulerState", "all_scheduler_states", emit("CouchDbSchedulerState", "_rev", "_id"));
+
+        String triggers = "_design/CouchDbTrigger";
+        standIn.registerMapFunction(triggers, "paused_by_group_and_name", new CouchDbStandIn.MapFunction() {
+            @Override
+            public void map(JsonNode doc, CouchDbStandIn.Emitter emitter) {
+                String state = doc.path("state").getTextValue();
+                if (isTrigger(doc) && ("PAUSED".equals(state) || "PAUSED_BLOCKED".equals(state))) {
+                    emitter.emit(array(doc, "trigger_group", "trigger_name"), null);
+                }
+            }
+        });
+        standIn.registerMapFunction(triggers, "by_job_group_and_name", emit("CouchDbTrigger", null, "job_group", "job_name"));
+        standIn.registerMapFunction(triggers, "by_state", emit("CouchDbTrigger", null, "state"));
+        standIn.registerMapFunction(triggers, "acquired_by_instance", new CouchDbStandIn.MapFunction() {
+            @Override
+            public void map(JsonNode doc, CouchDbStandIn.Emitter emitter) {
+                String state = doc.path("state").getTextValue();
+                if (isTrigger(doc) && isTruthy(doc.get("instance_id")) && ("ACQUIRED".equals(state) || "EXECUTING".equals(state))) {
+                    emitter.emit(array(doc, "instance_id", "state"), null);
+                }
+            }
+        });
+        standIn.registerMapFunction(triggers, "by_jobkey", emit("CouchDbTrigger", "_id", "job_name", "job_group"));
+        standIn.registerMapFunction(triggers, "all_triggers", emit("CouchDbTrigger", "_id", "_id"));
+        standIn.registerMapFunction(triggers, "all_trigger_revs", emit("CouchDbTrigger", "_rev", "_id"));
+        standIn.registerMapFunction(triggers, "count_by_group_and_state", emit("CouchDbTrigger", null, "trigger_group", "state"));
+        standIn.registerMapFunction(triggers, "by_group_and_name", emit("CouchDbTrigger", null, "trigger_group", "trigger_name"));
+        standIn.registerMapFunction(triggers, "by_calendarName", emit("CouchDbTrigger", "_id", "calendar_name"));
+        standIn.registerMapFunction(triggers, "by_nextFireTime", new CouchDbStandIn.MapFunction() {
+            @Override
+            public void map(JsonNode doc, CouchDbStandIn.Emitter emitter) {
+                if (isTrigger(doc) && "WAITING".equals(doc.path("state").getTextValue())) {
+                    emitter.emit(doc.get("next_fire_time"), doc.get("_id"));
+                }
+            }
+        });
+        standIn.registerMapFunction(triggers, "acquirable_by_time", new CouchDbStandIn.MapFunction() {
+            @Override
+            public void map(JsonNode doc, CouchDbStandIn.Emitter emitter) {
+                JsonNode nextFireTime = doc.get("next_fire_time");
+                if (!isTrigger(doc) || !isTruthy(nextFireTime)) {
+                    return;
+                }
+                ObjectNode value = NODES.objectNode();
+                copy(doc, "_rev", value, "rev");
+                copy(doc, "trigger_group", value, "group");
+                copy(doc, "state", value, "state");
+                copy(doc, "lease_until", value, "lease_until");
+                String state = doc.path("state").getTextValue();
+                JsonNode leaseUntil = doc.get("lease_until");
+                if ("WAITING".equals(state)) {
+                    emitter.emit(key(nextFireTime, doc), value);
+                } else if ("ACQUIRED".equals(state) && isTruthy(leaseUntil)) {
+                    emitter.emit(key(isGreater(leaseUntil, nextFireTime) ? leaseUntil : nextFireTime, doc), value);
+                }
+            }
+
+            private ArrayNode key(JsonNode time, JsonNode doc) {
+                ArrayNode key = NODES.arrayNode();
+                key.add(time);
+                JsonNode priority = doc.get("priority");
+                if (priority != null && priority.isNumber()) {
+                    key.add(-priority.getIntValue());
+                } else {
+                    key.addNull();
+                }
+                key.add(doc.get("_id"));
+                return key;
+            }
+        });
+    }
+
+    /**
+     * A view emitting the given fields of the documents of a type as key, a single field or an array, and another
+     * field or null as value.
+     */
+    private static CouchDbStandIn.MapFunction emit(final String type, final String valueField, final String... keyFields) {
+        return new CouchDbStandIn.MapFunction() {
+            @Override
+            public void map(JsonNode doc, CouchDbStandIn.Emitter emitter) {
+                if (!type.equals(doc.path("type").getTextValue())) {
+                    return;
+                }
+                Object key = keyFields.length == 1 ? doc.get(keyFields[0]) : array(doc, keyFields);
+                emitter.emit(key, valueField == null ? null : doc.get(valueField));
+            }
+        };
+    }
+
+    private static boolean isTrigger(JsonNode doc) {
+        return "CouchDbTrigger".equals(doc.path("type").getTextValue());
+    }
+
+    /* undefined members of an array become null, as JSON.stringify has it */
+    private static ArrayNode array(JsonNode doc, String... fields) {
+        ArrayNode array = NODES.arrayNode();
+        for (String field : fields) {
+            JsonNode value = doc.get(field);
+            if (value == null) {
+                array.addNull();
+            } else {
+                array.add(value);
+            }
+        }
+        return array;
+    }
+
+    private static void copy(JsonNode from, String field, ObjectNode to, String name) {
+        JsonNode value = from.get(field);
+        if (value != null) {
+            to.put(name, value);
+        }
+    }
+
+    private static boolean isTruthy(JsonNode value) {
+        if (value == null || value.isNull()) {
+            return false;
+        }
+        if (value.isBoolean()) {
+            return value.getBooleanValue();
+        }
+        if (value.isNumber()) {
+            return value.getDoubleValue() != 0;
+        }
+        return !value.isTextual() || value.getTextValue().length() > 0;
+    }
+
+    private static boolean isGreater(JsonNode a, JsonNode b) {
+        if (a.isNumber() && b.isNumber()) {
+            return a.getDoubleValue() > b.getDoubleValue();
+        }
+        return a.asText().compareTo(b.asText()) > 0;
+    }
+}
@@ -6,12 +6,26 @@ import org.quartz.Calendar;
 import org.quartz.JobDetail;
 import org.quartz.JobKey;
 import org.quartz.JobPersistenceException;
+import org.quartz.ObjectAlreadyExistsException;
+import org.quartz.Trigger;
+import org.quartz.TriggerKey;
 import org.quartz.impl.calendar.WeeklyCalendar;
 import org.quartz.impl.triggers.SimpleTriggerImpl;
+import org.quartz.spi.OperableTrigger;
+import org.quartz.spi.TriggerFiredBundle;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.motechproject.quartz.IdRandomizer.id;
 import static org.quartz.JobBuilder.newJob;
 import static org.quartz.SimpleScheduleBuilder.simpleSchedule;
@@ -59,4 +73,206 @@ public class CouchDbStoreIT {
         assertEquals(0, couchdbStore.getJobGroupNames().size());
         assertEquals(0, couchdbStore.getCalendarNames().size());
     }
+
+    @Test
+    public void shouldReleaseTriggersOfFailedClusterInstance() throws JobPersistenceException {
+        String failedInstanceId = id("node");
+        couchdbStore.setInstanceId(failedInstanceId);
+        SimpleTriggerImpl trigger = (SimpleTriggerImpl) newTrigger()
+                .withIdentity(id("fuuid"), id("borgroup"))
+                .forJob(JobKey.jobKey("fooid", "bargroup"))
+                .startAt(new Date(2010, 10, 20))
+                .withSchedule(simpleSchedule()
+                        .withIntervalInMinutes(2)
+                        .repeatForever())
+                .build();
+        trigger.computeFirstFireTime(null);
+        couchdbStore.storeTrigger(trigger, false);
+        assertEquals(1, couchdbStore.acquireNextTriggers(new Date(2010, 10, 20).getTime(), 1, 0).size());
+        assertEquals(failedInstanceId, couchdbStore.getTriggerStore().getTriggerByKey(trigger.getKey()).getInstanceId());
+
+        couchdbStore.getSchedulerStateStore().checkin(new CouchDbSchedulerState(failedInstanceId, 1000), 0);
+        CouchDbClusterManager clusterManager = new CouchDbClusterManager(couchdbStore.getSchedulerStateStore(), couchdbStore.getTriggerStore(), id("node"), 1000);
+
+        assertEquals(1, clusterManager.checkin());
+        CouchDbTrigger released = couchdbStore.getTriggerStore().getTriggerByKey(trigger.getKey());
+        assertEquals(CouchDbTriggerState.WAITING, released.getState());
+        assertEquals(null, released.getInstanceId());
+    }
+
+    @Test
+    public void shouldRemoveAllDocumentsPageByPage() throws JobPersistenceException {
+        for (int i = 0; i < 5; i++) {
+            couchdbStore.storeJob(newJob(JobListener.class).withIdentity(id("fooid"), "bargroup").build(), false);
+        }
+        couchdbStore.getJobStore().setBulkPageSize(2);
+
+        assertEquals(5, couchdbStore.getJobStore().removeAll());
+        assertEquals(0, couchdbStore.getNumberOfJobs());
+    }
+
+    @Test
+    public void shouldStoreJobsAndTriggersInBulk() throws JobPersistenceException {
+        Map<JobDetail, List<Trigger>> triggersAndJobs = new HashMap<JobDetail, List<Trigger>>();
+        for (int i = 0; i < 3; i++) {
+            JobDetail job = newJob(JobListener.class).withIdentity(id("fooid"), "bargroup").build();
+            Trigger trigger = newTrigger()
+                    .withIdentity(id("fuuid"), "borgroup")
+                    .forJob(job)
+                    .startAt(new Date(2010 - 1900, 10, 20))
+                    .withSchedule(simpleSchedule().withIntervalInMinutes(2).repeatForever())
+                    .build();
+            triggersAndJobs.put(job, Arrays.asList(trigger));
+        }
+
+        couchdbStore.storeJobsAndTriggers(triggersAndJobs, false);
+
+        assertEquals(3, couchdbStore.getNumberOfJobs());
+        assertEquals(3, couchdbStore.getNumberOfTriggers());
+
+        couchdbStore.storeJobsAndTriggers(triggersAndJobs, true);
+
+        assertEquals(3, couchdbStore.getNumberOfJobs());
+        assertEquals(3, couchdbStore.getNumberOfTriggers());
+    }
+
+    @Test
+    public void shouldNotReplaceTriggerOfAnotherJobInBulk() throws JobPersistenceException {
+        JobDetail job = newJob(JobListener.class).withIdentity(id("fooid"), "bargroup").build();
+        Trigger trigger = newTrigger().withIdentity(id("fuuid"), "borgroup").forJob(job).startAt(new Date()).build();
+        couchdbStore.storeJobsAndTriggers(Collections.<JobDetail, List<Trigger>>singletonMap(job, Arrays.asList(trigger)), false);
+
+        JobDetail otherJob = newJob(JobListener.class).withIdentity(id("fooid"), "bargroup").build();
+        Trigger otherTrigger = newTrigger().withIdentity(trigger.getKey()).forJob(otherJob).startAt(new Date()).build();
+        try {
+            couchdbStore.storeJobsAndTriggers(Collections.<JobDetail, List<Trigger>>singletonMap(otherJob, Arrays.asList(otherTrigger)), true);
+            fail("replaced a trigger of another job");
+        } catch (JobPersistenceException e) {
+            assertEquals("New trigger is not related to the same job as the old trigger.", e.getMessage());
+        }
+
+        assertEquals(job.getKey(), couchdbStore.retrieveTrigger(trigger.getKey()).getJobKey());
+        assertNull(couchdbStore.retrieveJob(otherJob.getKey()));
+    }
+
+    @Test
+    public void shouldMeasureOperationsRequestsAndBulkWrites() throws JobPersistenceException {
+        RecordingMetricsListener listener = new RecordingMetricsListener();
+        couchdbStore.addMetricsListener(listener);
+        CouchDbMetrics metrics = couchdbStore.getMetrics();
+        long requestsBefore = metrics.getHttpRequestCount();
+
+        JobDetail job = newJob(JobListener.class).withIdentity(id("fooid"), "bargroup").build();
+        couchdbStore.storeJob(job, false);
+        try {
+            couchdbStore.storeJob(job, false);
+        } catch (ObjectAlreadyExistsException expected) {
+        }
+        for (int i = 0; i < 3; i++) {
+            couchdbStore.storeJob(newJob(JobListener.class).withIdentity(id("fooid"), "bargroup").build(), false);
+        }
+        couchdbStore.getJobStore().removeAll();
+
+        assertEquals(Arrays.asList("storeJob", "storeJob", "storeJob", "storeJob", "storeJob"), listener.operations);
+        assertEquals(5, metrics.getOperationCount("storeJob"));
+        assertTrue(metrics.getHttpRequestCount() >= requestsBefore + 5);
+        assertTrue(metrics.getConflictCount() >= 1);
+        assertTrue(metrics.getBytesSent() > 0);
+        assertTrue(metrics.getBytesReceived() > 0);
+        assertEquals(Arrays.asList(4), listener.bulkSizes);
+        assertTrue(metrics.getRequestCount("PUT document") >= 5);
+    }
+
+    @Test
+    public void shouldRecordTimelineOfFires() throws JobPersistenceException {
+        RecordingMetricsListener listener = new RecordingMetricsListener();
+        couchdbStore.addMetricsListener(listener);
+        String group = id("borgroup");
+        JobDetail job = newJob(JobListener.class).withIdentity(id("fooid"), "bargroup").build();
+        SimpleTriggerImpl trigger = (SimpleTriggerImpl) newTrigger()
+                .withIdentity(id("fuuid"), group)
+                .forJob(job)
+                .startAt(new Date(2010 - 1900, 10, 20))
+                .withSchedule(simpleSchedule().withIntervalInMinutes(2).repeatForever())
+                .build();
+        trigger.computeFirstFireTime(null);
+        couchdbStore.storeJobAndTrigger(job, trigger);
+
+        List<OperableTrigger> acquiredTriggers = couchdbStore.acquireNextTriggers(System.currentTimeMillis(), 1, 0);
+        TriggerFiredBundle bundle = couchdbStore.triggersFired(acquiredTriggers).get(0).getTriggerFiredBundle();
+        couchdbStore.triggeredJobComplete(bundle.getTrigger(), bundle.getJobDetail(), Trigger.CompletedExecutionInstruction.NOOP);
+
+        assertEquals(1, listener.timelines.size());
+        long[] timeline = listener.timelines.get(0);
+        assertEquals(bundle.getScheduledFireTime().getTime(), timeline[0]);
+        for (int i = 2; i < timeline.length; i++) {
+            assertTrue(timeline[i] >= timeline[i - 1]);
+        }
+        CouchDbMetrics metrics = couchdbStore.getMetrics();
+        assertTrue(Arrays.asList(metrics.getTriggerGroups()).contains(group));
+        assertEquals(1, metrics.getFireCount(group));
+        assertEquals(1, metrics.getFireStatistics(group).getPhase(CouchDbFireStatistics.EXECUTION).getCount());
+        assertEquals(timeline[5], metrics.getFireTimeline().getLatest(1).get(0).getCompletedTime());
+    }
+
+    @Test
+    public void shouldStoreNewJobsAndTriggersWithoutReadingFirst() throws JobPersistenceException {
+        CouchDbMetrics metrics = couchdbStore.getMetrics();
+        JobDetail job = newJob(JobListener.class).withIdentity(id("fooid"), "bargroup").build();
+        SimpleTriggerImpl trigger = (SimpleTriggerImpl) newTrigger()
+                .withIdentity(id("fuuid"), id("borgroup"))
+                .forJob(job)
+                .startAt(new Date(2010 - 1900, 10, 20))
+                .withSchedule(simpleSchedule().withIntervalInMinutes(2).repeatForever())
+                .build();
+        long requestsBefore = metrics.getHttpRequestCount();
+        couchdbStore.storeJobAndTrigger(job, trigger);
+        assertEquals(requestsBefore + 2, metrics.getHttpRequestCount());
+
+        SimpleTriggerImpl otherTrigger = (SimpleTriggerImpl) newTrigger()
+                .withIdentity(id("fuuid"), id("borgroup"))
+                .forJob(job)
+                .startAt(new Date(2010 - 1900, 10, 20))
+                .withSchedule(simpleSchedule().withIntervalInMinutes(2).repeatForever())
+                .build();
+        requestsBefore = metrics.getHttpRequestCount();
+        couchdbStore.storeTrigger(otherTrigger, false);
+        assertEquals(requestsBefore + 1, metrics.getHttpRequestCount());
+    }
+
+    @Test(expected = ObjectAlreadyExistsException.class)
+    public void shouldNotStoreJobsAndTriggersInBulkIfAnyExists() throws JobPersistenceException {
+        JobDetail job = newJob(JobListener.class).withIdentity(id("fooid"), "bargroup").build();
+        couchdbStore.storeJob(job, false);
+
+        Map<JobDetail, List<Trigger>> triggersAndJobs = new HashMap<JobDetail, List<Trigger>>();
+        triggersAndJobs.put(job, Collections.<Trigger>emptyList());
+
+        couchdbStore.storeJobsAndTriggers(triggersAndJobs, false);
+    }
+
+    private static class RecordingMetricsListener implements CouchDbMetricsListener {
+        private final List<String> operations = new ArrayList<String>();
+        private final List<Integer> bulkSizes = new ArrayList<Integer>();
+        private final List<long[]> timelines = new ArrayList<long[]>();
+
+        @Override
+        public void operationCompleted(String operation, long durationMicros) {
+            operations.add(operation);
+        }
+
+        @Override
+        public void requestCompleted(String method, String resource, int status, long durationMicros, long bytesSent, long bytesReceived) {
+        }
+
+        @Override
+        public void bulkWritten(int documents, int rejected, int conflicts) {
+            bulkSizes.add(documents);
+        }
+
+        @Override
+        public void fireCompleted(TriggerKey key, long due, long acquisitionStarted, long acquired, long fireStarted, long fired, long completed) {
+            timelines.add(new long[]{due, acquisitionStarted, acquired, fireStarted, fired, completed});
+        }
+    }
 }
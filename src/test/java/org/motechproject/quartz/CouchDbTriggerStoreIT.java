@@ -10,14 +10,18 @@ import org.quartz.ObjectAlreadyExistsException;
 import org.quartz.SimpleTrigger;
 import org.quartz.Trigger;
 import org.quartz.TriggerKey;
+import org.quartz.impl.calendar.WeeklyCalendar;
 import org.quartz.impl.matchers.GroupMatcher;
 import org.quartz.impl.triggers.SimpleTriggerImpl;
 import org.quartz.spi.OperableTrigger;
 import org.quartz.spi.TriggerFiredResult;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static ch.lambdaj.Lambda.extract;
@@ -219,6 +223,30 @@ public class CouchDbTriggerStoreIT {
         assertTrue(triggerKeys.contains(trigger3.getKey()));
     }
 
+    @Test
+    public void shouldLeaveOutMissingAndRemovedTriggersWhenFetchingByKeys() throws JobPersistenceException {
+        List<TriggerKey> keys = new ArrayList<TriggerKey>();
+        for (int i = 0; i < 2; i++) {
+            SimpleTriggerImpl trigger = (SimpleTriggerImpl) newTrigger()
+                    .withIdentity(id("fuuid"), "borgroup")
+                    .forJob(JobKey.jobKey("fooid", "bargroup"))
+                    .startAt(new Date(2010, 10, 20))
+                    .withSchedule(simpleSchedule()
+                            .withIntervalInMinutes(2)
+                            .repeatForever())
+                    .build();
+            couchdbStore.storeTrigger(trigger, false);
+            keys.add(trigger.getKey());
+        }
+        couchdbStore.removeTrigger(keys.get(0));
+        keys.add(TriggerKey.triggerKey(id("missing"), "borgroup"));
+
+        List<CouchDbTrigger> triggers = couchdbStore.getTriggerStore().getTriggersByKeys(keys);
+
+        assertEquals(1, triggers.size());
+        assertEquals(keys.get(1), triggers.get(0).getKey());
+    }
+
     @Test
     public void shouldReplaceExistingTrigger() throws JobPersistenceException {
         final String triggerName = id("fuuid");
@@ -348,6 +376,190 @@ public class CouchDbTriggerStoreIT {
         assertEquals(numberOfTriggers + 2, couchdbStore.getNumberOfTriggers());
     }
 
+    @Test
+    public void shouldCountTriggersByGroupAndState() throws JobPersistenceException {
+        final String groupId = id("borgroup");
+        SimpleTriggerImpl trigger = (SimpleTriggerImpl) newTrigger()
+                .withIdentity(id("fuuid1"), groupId)
+                .forJob(JobKey.jobKey("fooid", "bargroup"))
+                .startAt(new Date(2010, 10, 20))
+                .withSchedule(simpleSchedule()
+                        .withIntervalInMinutes(2)
+                        .repeatForever())
+                .build();
+        couchdbStore.storeTrigger(trigger, false);
+
+        SimpleTriggerImpl acquiredTrigger = (SimpleTriggerImpl) newTrigger()
+                .withIdentity(id("fuuid2"), groupId)
+                .forJob(JobKey.jobKey("fooid", "bargroup"))
+                .startAt(new Date(2012, 10, 20))
+                .withSchedule(simpleSchedule()
+                        .withIntervalInMinutes(2)
+                        .repeatForever())
+                .build();
+        couchdbStore.getTriggerStore().storeTrigger(new CouchDbSimpleTrigger(acquiredTrigger, CouchDbTriggerState.ACQUIRED), false);
+
+        assertEquals(Integer.valueOf(2), couchdbStore.getTriggerStore().getNumberOfTriggersByGroup().get(groupId));
+        Map<CouchDbTriggerState, Integer> countsByState = couchdbStore.getTriggerStore().getNumberOfTriggersByState();
+        assertEquals(Integer.valueOf(1), countsByState.get(CouchDbTriggerState.WAITING));
+        assertEquals(Integer.valueOf(1), countsByState.get(CouchDbTriggerState.ACQUIRED));
+    }
+
+    @Test
+    public void shouldPauseAndResumeJobsGroupByGroupPageByPage() throws JobPersistenceException {
+        final String groupId = id("borgroup");
+        final String jobGroupId = id("bargroup");
+        couchdbStore.getTriggerStore().setBulkPageSize(2);
+        for (int i = 0; i < 3; i++) {
+            SimpleTriggerImpl trigger = (SimpleTriggerImpl) newTrigger()
+                    .withIdentity(id("fuuid" + i), groupId)
+                    .forJob(JobKey.jobKey("fooid" + i, jobGroupId))
+                    .startAt(new Date(2010, 10, 20))
+                    .withSchedule(simpleSchedule()
+                            .withIntervalInMinutes(2)
+                            .repeatForever())
+                    .build();
+            couchdbStore.storeTrigger(trigger, false);
+        }
+        final String otherTriggerName = id("fuuid");
+        SimpleTriggerImpl otherTrigger = (SimpleTriggerImpl) newTrigger()
+                .withIdentity(otherTriggerName, id("borgroup"))
+                .forJob(JobKey.jobKey("fooid", "bargroup"))
+                .startAt(new Date(2010, 10, 20))
+                .withSchedule(simpleSchedule()
+                        .withIntervalInMinutes(2)
+                        .repeatForever())
+                .build();
+        couchdbStore.storeTrigger(otherTrigger, false);
+
+        assertEquals(asList(jobGroupId), asList(couchdbStore.pauseJobs(GroupMatcher.jobGroupStartsWith(jobGroupId)).toArray()));
+        assertEquals(Integer.valueOf(3), couchdbStore.getTriggerStore().getNumberOfTriggersByState().get(CouchDbTriggerState.PAUSED));
+
+        couchdbStore.resumeJob(JobKey.jobKey("fooid0", jobGroupId));
+        assertEquals(Integer.valueOf(2), couchdbStore.getTriggerStore().getNumberOfTriggersByState().get(CouchDbTriggerState.PAUSED));
+
+        couchdbStore.pauseTrigger(otherTrigger.getKey());
+        assertEquals(Trigger.TriggerState.PAUSED, couchdbStore.getTriggerState(otherTrigger.getKey()));
+        couchdbStore.resumeTrigger(otherTrigger.getKey());
+        assertEquals(Trigger.TriggerState.NORMAL, couchdbStore.getTriggerState(otherTrigger.getKey()));
+    }
+
+    @Test
+    public void shouldPauseAndResumeTriggerGroupsWithMarkers() throws JobPersistenceException {
+        final String groupId = id("borgroup");
+        SimpleTriggerImpl trigger = (SimpleTriggerImpl) newTrigger()
+                .withIdentity(id("fuuid1"), groupId)
+                .forJob(JobKey.jobKey("fooid", "bargroup"))
+                .startAt(new Date(2010, 10, 20))
+                .withSchedule(simpleSchedule()
+                        .withIntervalInMinutes(2)
+                        .repeatForever())
+                .build();
+        trigger.computeFirstFireTime(null);
+        couchdbStore.storeTrigger(trigger, false);
+
+        couchdbStore.pauseTriggers(GroupMatcher.triggerGroupEquals(groupId));
+        assertEquals(asList(groupId), asList(couchdbStore.getPausedTriggerGroups().toArray()));
+        assertEquals(Trigger.TriggerState.PAUSED, couchdbStore.getTriggerState(trigger.getKey()));
+        assertEquals(Integer.valueOf(1), couchdbStore.getTriggerStore().getNumberOfTriggersByState().get(CouchDbTriggerState.WAITING));
+        assertEquals(0, couchdbStore.acquireNextTriggers(new Date(2010, 10, 20).getTime(), 10, 0).size());
+
+        SimpleTriggerImpl newTrigger = (SimpleTriggerImpl) newTrigger()
+                .withIdentity(id("fuuid2"), groupId)
+                .forJob(JobKey.jobKey("fooid", "bargroup"))
+                .startAt(new Date(2010, 10, 20))
+                .withSchedule(simpleSchedule()
+                        .withIntervalInMinutes(2)
+                        .repeatForever())
+                .build();
+        newTrigger.computeFirstFireTime(null);
+        couchdbStore.storeTrigger(newTrigger, false);
+        assertEquals(Integer.valueOf(1), couchdbStore.getTriggerStore().getNumberOfTriggersByState().get(CouchDbTriggerState.PAUSED));
+
+        couchdbStore.resumeTriggers(GroupMatcher.triggerGroupEquals(groupId));
+        assertTrue(couchdbStore.getPausedTriggerGroups().isEmpty());
+        assertEquals(Integer.valueOf(2), couchdbStore.getTriggerStore().getNumberOfTriggersByState().get(CouchDbTriggerState.WAITING));
+
+        couchdbStore.pauseAll();
+        assertEquals(Trigger.TriggerState.PAUSED, couchdbStore.getTriggerState(trigger.getKey()));
+        assertEquals(asList(groupId), asList(couchdbStore.getPausedTriggerGroups().toArray()));
+        couchdbStore.resumeAll();
+        assertTrue(couchdbStore.getPausedTriggerGroups().isEmpty());
+        assertEquals(Trigger.TriggerState.NORMAL, couchdbStore.getTriggerState(trigger.getKey()));
+        assertEquals(2, couchdbStore.acquireNextTriggers(new Date(2010, 10, 20).getTime(), 10, 0).size());
+
+        couchdbStore.getTriggerStore().updateTrigger(trigger.getKey(), new CouchDbTriggerStore.TriggerUpdate() {
+            @Override
+            public boolean update(CouchDbTrigger couchdbTrigger) {
+                couchdbTrigger.setState(CouchDbTriggerState.BLOCKED);
+                return true;
+            }
+        });
+        couchdbStore.pauseTriggers(GroupMatcher.triggerGroupEquals(groupId));
+        assertEquals(Trigger.TriggerState.PAUSED, couchdbStore.getTriggerState(trigger.getKey()));
+        couchdbStore.resumeTriggers(GroupMatcher.triggerGroupEquals(groupId));
+        assertEquals(Trigger.TriggerState.BLOCKED, couchdbStore.getTriggerState(trigger.getKey()));
+    }
+
+    @Test
+    public void shouldPassOverPausedTriggersInFewViewRequests() throws JobPersistenceException {
+        String pausedGroup = id("borgroup");
+        for (int i = 0; i < 30; i++) {
+            SimpleTriggerImpl trigger = (SimpleTriggerImpl) newTrigger()
+                    .withIdentity(id("fuuid"), pausedGroup)
+                    .forJob(JobKey.jobKey("fooid", "bargroup"))
+                    .startAt(new Date(2010 - 1900, 10, 20))
+                    .withSchedule(simpleSchedule().withIntervalInMinutes(2).repeatForever())
+                    .build();
+            trigger.computeFirstFireTime(null);
+            couchdbStore.storeTrigger(trigger, false);
+        }
+        SimpleTriggerImpl dueLater = (SimpleTriggerImpl) newTrigger()
+                .withIdentity(id("fuuid"), id("borgroup"))
+                .forJob(JobKey.jobKey("fooid", "bargroup"))
+                .startAt(new Date(2010 - 1900, 10, 21))
+                .withSchedule(simpleSchedule().withIntervalInMinutes(2).repeatForever())
+                .build();
+        dueLater.computeFirstFireTime(null);
+        couchdbStore.storeTrigger(dueLater, false);
+        couchdbStore.pauseTriggers(GroupMatcher.triggerGroupEquals(pausedGroup));
+        couchdbStore.setAcquisitionPageSize(20);
+        CouchDbMetrics metrics = couchdbStore.getMetrics();
+        long noLaterThan = new Date(2010 - 1900, 10, 22).getTime();
+
+        long viewRequests = metrics.getRequestCount("GET _view/acquirable_by_time");
+        List<OperableTrigger> acquired = couchdbStore.acquireNextTriggers(noLaterThan, 1, 0);
+        assertEquals(asList(dueLater.getKey()), extract(acquired, on(OperableTrigger.class).getKey()));
+        assertEquals(viewRequests + 3, metrics.getRequestCount("GET _view/acquirable_by_time"));
+
+        couchdbStore.releaseAcquiredTrigger(acquired.get(0));
+        couchdbStore.pauseAll();
+        long requests = metrics.getHttpRequestCount();
+        assertEquals(0, couchdbStore.acquireNextTriggers(noLaterThan, 1, 0).size());
+        assertEquals(requests, metrics.getHttpRequestCount());
+    }
+
+    @Test
+    public void shouldCachePausedTriggerGroupsUntilRefreshed() throws Exception, CouchDbJobStoreException {
+        final String groupId = id("borgroup");
+        CouchDbPausedGroupStore pausedGroupStore = couchdbStore.getPausedGroupStore();
+        pausedGroupStore.setRefreshInterval(60000);
+        CouchDbMetrics metrics = couchdbStore.getMetrics();
+        long markerRequests = metrics.getRequestCount("GET _view/all_paused_groups");
+        for (int i = 0; i < 3; i++) {
+            couchdbStore.acquireNextTriggers(new Date(2010, 10, 20).getTime(), 10, 0);
+        }
+        assertEquals(markerRequests, metrics.getRequestCount("GET _view/all_paused_groups"));
+
+        CouchDbStore otherStore = new CouchDbStore();
+        otherStore.setProperties("/couchdb.properties");
+        otherStore.pauseTriggers(GroupMatcher.triggerGroupEquals(groupId));
+        assertFalse(couchdbStore.getPausedTriggerGroups().contains(groupId));
+
+        pausedGroupStore.setRefreshInterval(0);
+        assertTrue(couchdbStore.getPausedTriggerGroups().contains(groupId));
+    }
+
     @Test
     public void shouldReturnAllTriggerGroupNames() throws JobPersistenceException {
         final String triggerName1 = id("fuuid1");
@@ -377,6 +589,43 @@ public class CouchDbTriggerStoreIT {
         assertTrue(triggerGroupNames.contains("borgroup2"));
     }
 
+    @Test
+    public void shouldIterateOverTriggersPageByPage() throws JobPersistenceException {
+        couchdbStore.getTriggerStore().setBulkPageSize(2);
+        List<String> triggerNames = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            SimpleTriggerImpl trigger = (SimpleTriggerImpl) newTrigger()
+                    .withIdentity(id("fuuid" + i), "borgroup")
+                    .forJob(JobKey.jobKey("fooid", "bargroup"))
+                    .startAt(new Date(2010, 10, 20))
+                    .withSchedule(simpleSchedule()
+                            .withIntervalInMinutes(2)
+                            .repeatForever())
+                    .build();
+            trigger.computeFirstFireTime(null);
+            couchdbStore.storeTrigger(trigger, false);
+            triggerNames.add(trigger.getName());
+        }
+        couchdbStore.removeTrigger(TriggerKey.triggerKey(triggerNames.remove(2), "borgroup"));
+
+        List<String> iteratedNames = new ArrayList<String>();
+        CouchDbViewCursor<CouchDbTrigger> triggers = couchdbStore.getTriggerStore().iterateAll();
+        while (triggers.hasNext()) {
+            iteratedNames.add(triggers.next().getName());
+        }
+        assertEquals(4, iteratedNames.size());
+        assertTrue(iteratedNames.containsAll(triggerNames));
+
+        // all fire at the same time, so the pages are told apart by document id
+        List<String> acquirableNames = new ArrayList<String>();
+        CouchDbViewCursor<CouchDbTrigger> acquirableTriggers = couchdbStore.getTriggerStore().iterateAcquirableTriggers();
+        while (acquirableTriggers.hasNext()) {
+            acquirableNames.add(acquirableTriggers.next().getName());
+        }
+        assertEquals(4, acquirableNames.size());
+        assertTrue(acquirableNames.containsAll(triggerNames));
+    }
+
     @Test
     public void shouldReturnMatchingTriggerKeys() throws JobPersistenceException {
         final String triggerName1 = id("fuuid1");
@@ -453,6 +702,69 @@ public class CouchDbTriggerStoreIT {
         assertEquals(TriggerKey.triggerKey(triggerName1, "borgroup1"), triggers.get(0).getKey());
     }
 
+    @Test
+    public void shouldNotAcquireTriggerAlreadyClaimedByAnotherScheduler() throws Exception, CouchDbJobStoreException {
+        CouchDbStore otherCouchdbStore = new CouchDbStore();
+        otherCouchdbStore.setProperties("/couchdb.properties");
+
+        final String triggerName = id("fuuid");
+        SimpleTriggerImpl trigger = (SimpleTriggerImpl) newTrigger()
+                .withIdentity(triggerName, "borgroup1")
+                .forJob(JobKey.jobKey("fooid", "bargroup"))
+                .startAt(new Date(2010 - 1900, 10, 20))
+                .withSchedule(simpleSchedule()
+                        .withIntervalInMinutes(2)
+                        .repeatForever())
+                .build();
+        trigger.computeFirstFireTime(null);
+        couchdbStore.storeTrigger(trigger, false);
+
+        long noLaterThan = new Date(2010 - 1900, 10, 21).getTime();
+        Map<String, String> revisions = new HashMap<String, String>();
+        for (CouchDbTriggerStore.AcquirableTrigger row : otherCouchdbStore.getTriggerStore().findAcquirableTriggers(noLaterThan, Integer.MAX_VALUE, null)) {
+            revisions.put(row.getId(), row.getRevision());
+        }
+        List<CouchDbTrigger> staleCandidates = otherCouchdbStore.getTriggerStore().getTriggersAtRevisions(revisions);
+
+        List<OperableTrigger> acquired = couchdbStore.acquireNextTriggers(noLaterThan, Integer.MAX_VALUE, 0);
+        assertTrue(extract(acquired, on(OperableTrigger.class).getKey()).contains(TriggerKey.triggerKey(triggerName, "borgroup1")));
+
+        for (CouchDbTrigger candidate : staleCandidates) {
+            candidate.setState(CouchDbTriggerState.ACQUIRED);
+        }
+        assertEquals(0, otherCouchdbStore.getTriggerStore().claimTriggers(staleCandidates).size());
+        assertEquals(0, otherCouchdbStore.acquireNextTriggers(noLaterThan, Integer.MAX_VALUE, 0).size());
+    }
+
+    @Test
+    public void shouldAcquireTriggersFromTriggerIndex() throws Exception, CouchDbJobStoreException {
+        CouchDbStore indexedCouchdbStore = new CouchDbStore();
+        indexedCouchdbStore.setProperties("/couchdb-trigger-index.properties");
+
+        final String triggerName = id("fuuid");
+        SimpleTriggerImpl trigger = (SimpleTriggerImpl) newTrigger()
+                .withIdentity(triggerName, "borgroup1")
+                .forJob(JobKey.jobKey("fooid", "bargroup"))
+                .startAt(new Date(2010 - 1900, 10, 20))
+                .withSchedule(simpleSchedule()
+                        .withIntervalInMinutes(2)
+                        .repeatForever())
+                .build();
+        trigger.computeFirstFireTime(null);
+        indexedCouchdbStore.storeTrigger(trigger, false);
+
+        try {
+            List<OperableTrigger> triggers = indexedCouchdbStore.acquireNextTriggers(new Date(2010 - 1900, 10, 21).getTime(), Integer.MAX_VALUE, 0);
+
+            assertEquals(1, triggers.size());
+            assertEquals(TriggerKey.triggerKey(triggerName, "borgroup1"), triggers.get(0).getKey());
+            assertEquals(CouchDbTriggerState.ACQUIRED, couchdbStore.getTriggerStore().getTriggerByKey(trigger.getKey()).getState());
+            assertEquals(0, indexedCouchdbStore.getTriggerIndex().takeNextTriggers(new Date(2010 - 1900, 10, 21).getTime(), Integer.MAX_VALUE).size());
+        } finally {
+            indexedCouchdbStore.shutdown();
+        }
+    }
+
     @Test
     public void shouldFireTriggers() throws JobPersistenceException {
         final String triggerName = id("fuuid1");
@@ -473,6 +785,108 @@ public class CouchDbTriggerStoreIT {
         assertEquals(TriggerKey.triggerKey(triggerName, "borgroup1"), firedResults.get(0).getTriggerFiredBundle().getTrigger().getKey());
     }
 
+    @Test
+    public void shouldQueueWritesOfFiredTriggersUntilFlushed() throws JobPersistenceException {
+        SimpleTriggerImpl trigger = (SimpleTriggerImpl) newTrigger()
+                .withIdentity(id("fuuid1"), "borgroup1")
+                .forJob(JobKey.jobKey("fooid", "bargroup"))
+                .startAt(new Date(2010 - 1900, 10, 20))
+                .withSchedule(simpleSchedule()
+                        .withIntervalInMinutes(2)
+                        .repeatForever())
+                .build();
+        trigger.computeFirstFireTime(null);
+        couchdbStore.storeTrigger(trigger, false);
+
+        couchdbStore.setInstanceId("instance1");
+        CouchDbTriggerStore triggerStore = couchdbStore.getTriggerStore();
+        triggerStore.setWriteBehind(60000, 100);
+        triggerStore.startWriteBehind();
+        Date fireTime;
+        try {
+            List<OperableTrigger> acquiredTriggers = couchdbStore.acquireNextTriggers(new Date(2010 - 1900, 10, 21).getTime(), 1, 0);
+            fireTime = acquiredTriggers.get(0).getNextFireTime();
+            assertEquals(1, couchdbStore.triggersFired(acquiredTriggers).size());
+
+            assertEquals(1, triggerStore.getWriteBehind().getPendingCount());
+            assertEquals(CouchDbTriggerState.ACQUIRED, triggerStore.getTriggerByKey(trigger.getKey()).getState());
+        } finally {
+            triggerStore.stopWriteBehind();
+        }
+
+        CouchDbTrigger firedTrigger = triggerStore.getTriggerByKey(trigger.getKey());
+        assertEquals(CouchDbTriggerState.WAITING, firedTrigger.getState());
+        assertEquals(new Date(fireTime.getTime() + 2 * 60 * 1000), firedTrigger.getNextFireTime());
+    }
+
+    @Test
+    public void shouldKeepQueuedFireWhenTriggerIsPausedBeforeFlush() throws JobPersistenceException {
+        SimpleTriggerImpl trigger = (SimpleTriggerImpl) newTrigger()
+                .withIdentity(id("fuuid1"), "borgroup1")
+                .forJob(JobKey.jobKey("fooid", "bargroup"))
+                .startAt(new Date(2010 - 1900, 10, 20))
+                .withSchedule(simpleSchedule()
+                        .withIntervalInMinutes(2)
+                        .repeatForever())
+                .build();
+        trigger.computeFirstFireTime(null);
+        couchdbStore.storeTrigger(trigger, false);
+
+        couchdbStore.setInstanceId("instance1");
+        CouchDbTriggerStore triggerStore = couchdbStore.getTriggerStore();
+        triggerStore.setWriteBehind(60000, 100);
+        triggerStore.startWriteBehind();
+        Date fireTime;
+        try {
+            List<OperableTrigger> acquiredTriggers = couchdbStore.acquireNextTriggers(new Date(2010 - 1900, 10, 21).getTime(), 1, 0);
+            fireTime = acquiredTriggers.get(0).getNextFireTime();
+            assertEquals(1, couchdbStore.triggersFired(acquiredTriggers).size());
+            assertEquals(1, triggerStore.getWriteBehind().getPendingCount());
+
+            couchdbStore.pauseTrigger(trigger.getKey());
+            assertEquals(0, triggerStore.getWriteBehind().getPendingCount());
+        } finally {
+            triggerStore.stopWriteBehind();
+        }
+
+        CouchDbTrigger pausedTrigger = triggerStore.getTriggerByKey(trigger.getKey());
+        assertEquals(CouchDbTriggerState.PAUSED, pausedTrigger.getState());
+        assertEquals(new Date(fireTime.getTime() + 2 * 60 * 1000), pausedTrigger.getNextFireTime());
+    }
+
+    @Test
+    public void shouldFireTriggersWithTheirJobAndCalendar() throws JobPersistenceException {
+        final String jobName = id("job");
+        JobDetail job = newJob(CouchDbStoreCalendarRepeatingJobIT.TestListener.class)
+                .withIdentity(jobName, "bargroup")
+                .usingJobData("foo", "bar")
+                .build();
+        couchdbStore.storeJob(job, false);
+
+        final String calendarName = id("weeklyCalendar");
+        couchdbStore.storeCalendar(calendarName, new WeeklyCalendar(), false, false);
+
+        final String triggerName = id("fuuid1");
+        SimpleTriggerImpl trigger = (SimpleTriggerImpl) newTrigger()
+                .withIdentity(triggerName, "borgroup1")
+                .forJob(JobKey.jobKey(jobName, "bargroup"))
+                .startAt(new Date(2010 - 1900, 10, 20))
+                .withSchedule(simpleSchedule()
+                        .withIntervalInMinutes(2)
+                        .repeatForever())
+                .modifiedByCalendar(calendarName)
+                .build();
+        trigger.computeFirstFireTime(null);
+        couchdbStore.storeTrigger(trigger, false);
+
+        List<TriggerFiredResult> firedResults = couchdbStore.triggersFired(Arrays.<OperableTrigger>asList(trigger));
+
+        assertEquals(1, firedResults.size());
+        assertEquals(JobKey.jobKey(jobName, "bargroup"), firedResults.get(0).getTriggerFiredBundle().getJobDetail().getKey());
+        assertEquals("bar", firedResults.get(0).getTriggerFiredBundle().getJobDetail().getJobDataMap().get("foo"));
+        assertTrue(firedResults.get(0).getTriggerFiredBundle().getCalendar() instanceof WeeklyCalendar);
+    }
+
     @Test
     public void shouldDeleteTriggerAfterFire() throws JobPersistenceException {
         final String jobName = id("job");
@@ -552,6 +966,159 @@ public class CouchDbTriggerStoreIT {
         assertEquals(1, acquiredTrigger.getRepeatCount());
     }
 
+    @Test
+    public void shouldHandleMisfiresAndReleaseAcquiredTriggersOnStartup() throws Exception {
+        DateTime now = new DateTime();
+        SimpleTriggerImpl overdueTrigger = (SimpleTriggerImpl) newTrigger()
+                .withIdentity(id("fuuid1"), "borgroup")
+                .forJob(JobKey.jobKey("fooid", "bargroup"))
+                .startAt(now.minusMinutes(10).toDate())
+                .withSchedule(simpleSchedule()
+                        .withIntervalInMinutes(1)
+                        .repeatForever()
+                        .withMisfireHandlingInstructionNextWithRemainingCount())
+                .build();
+        overdueTrigger.computeFirstFireTime(null);
+        couchdbStore.storeTrigger(overdueTrigger, false);
+
+        SimpleTriggerImpl acquiredTrigger = (SimpleTriggerImpl) newTrigger()
+                .withIdentity(id("fuuid2"), "borgroup")
+                .forJob(JobKey.jobKey("fooid", "bargroup"))
+                .startAt(now.plusMinutes(10).toDate())
+                .withSchedule(simpleSchedule()
+                        .withIntervalInMinutes(1)
+                        .repeatForever())
+                .build();
+        acquiredTrigger.computeFirstFireTime(null);
+        couchdbStore.getTriggerStore().storeTrigger(new CouchDbSimpleTrigger(acquiredTrigger, CouchDbTriggerState.ACQUIRED), false);
+
+        couchdbStore.schedulerStarted();
+
+        assertTrue(couchdbStore.retrieveTrigger(overdueTrigger.getKey()).getNextFireTime().after(now.toDate()));
+        assertEquals(Trigger.TriggerState.NORMAL, couchdbStore.getTriggerState(acquiredTrigger.getKey()));
+        assertEquals(Integer.valueOf(2), couchdbStore.getTriggerStore().getNumberOfTriggersByState().get(CouchDbTriggerState.WAITING));
+        couchdbStore.shutdown();
+    }
+
+    @Test
+    public void shouldReacquireTriggerWhoseLeaseExpired() throws Exception {
+        DateTime now = new DateTime();
+        SimpleTriggerImpl trigger = (SimpleTriggerImpl) newTrigger()
+                .withIdentity(id("fuuid"), "borgroup")
+                .forJob(JobKey.jobKey("fooid", "bargroup"))
+                .startAt(now.minusSeconds(10).toDate())
+                .withSchedule(simpleSchedule()
+                        .withIntervalInMinutes(1)
+                        .repeatForever())
+                .build();
+        trigger.computeFirstFireTime(null);
+        couchdbStore.storeTrigger(trigger, false);
+        couchdbStore.setTriggerLeaseDuration(1);
+
+        couchdbStore.setInstanceId("node1");
+        List<OperableTrigger> acquiredByFirstNode = couchdbStore.acquireNextTriggers(now.getMillis(), 1, 0);
+        assertEquals(1, acquiredByFirstNode.size());
+        Thread.sleep(10);
+
+        couchdbStore.setInstanceId("node2");
+        assertEquals(1, couchdbStore.acquireNextTriggers(System.currentTimeMillis(), 1, 0).size());
+        assertEquals("node2", couchdbStore.getTriggerStore().getTriggerByKey(trigger.getKey()).getInstanceId());
+
+        couchdbStore.setInstanceId("node1");
+        assertEquals(0, couchdbStore.triggersFired(acquiredByFirstNode).size());
+    }
+
+    @Test
+    public void shouldAcquireHighestPriorityTriggersFirstAmongThoseDueTogether() throws Exception {
+        Date fireTime = new Date(2010, 10, 20);
+        String highPriorityTriggerName = null;
+        for (int priority : new int[]{1, 10, 5}) {
+            SimpleTriggerImpl trigger = (SimpleTriggerImpl) newTrigger()
+                    .withIdentity(id("fuuid"), "borgroup")
+                    .forJob(JobKey.jobKey("fooid", "bargroup"))
+                    .startAt(fireTime)
+                    .withPriority(priority)
+                    .withSchedule(simpleSchedule()
+                            .withIntervalInMinutes(2)
+                            .repeatForever())
+                    .build();
+            trigger.computeFirstFireTime(null);
+            couchdbStore.storeTrigger(trigger, false);
+            if (priority == 10) {
+                highPriorityTriggerName = trigger.getKey().getName();
+            }
+        }
+
+        List<OperableTrigger> acquiredTriggers = couchdbStore.acquireNextTriggers(fireTime.getTime(), 1, 0);
+        assertEquals(1, acquiredTriggers.size());
+        assertEquals(highPriorityTriggerName, acquiredTriggers.get(0).getKey().getName());
+        assertEquals(5, couchdbStore.acquireNextTriggers(fireTime.getTime(), 1, 0).get(0).getPriority());
+    }
+
+    @Test
+    public void shouldLoadOnlyAcquirableTriggersStillAtTheRevisionOfTheViewRow() throws Exception {
+        Date fireTime = new Date(2010 - 1900, 10, 20);
+        List<TriggerKey> keys = new ArrayList<TriggerKey>();
+        for (int i = 0; i < 2; i++) {
+            SimpleTriggerImpl trigger = (SimpleTriggerImpl) newTrigger()
+                    .withIdentity(id("fuuid"), "borgroup")
+                    .forJob(JobKey.jobKey("fooid", "bargroup"))
+                    .startAt(fireTime)
+                    .withSchedule(simpleSchedule()
+                            .withIntervalInMinutes(2)
+                            .repeatForever())
+                    .build();
+            trigger.computeFirstFireTime(null);
+            couchdbStore.storeTrigger(trigger, false);
+            keys.add(trigger.getKey());
+        }
+
+        CouchDbTriggerStore triggerStore = couchdbStore.getTriggerStore();
+        List<CouchDbTriggerStore.AcquirableTrigger> rows = triggerStore.findAcquirableTriggers(fireTime.getTime(), Integer.MAX_VALUE, null);
+        assertEquals(2, rows.size());
+        Map<String, String> revisions = new HashMap<String, String>();
+        for (CouchDbTriggerStore.AcquirableTrigger row : rows) {
+            assertEquals("borgroup", row.getGroup());
+            assertTrue(row.mayBeAcquirable());
+            revisions.put(row.getId(), row.getRevision());
+        }
+
+        couchdbStore.pauseTrigger(keys.get(0));
+
+        List<CouchDbTrigger> triggers = triggerStore.getTriggersAtRevisions(revisions);
+        assertEquals(1, triggers.size());
+        assertEquals(keys.get(1), triggers.get(0).getKey());
+    }
+
+    @Test
+    public void shouldLoadOnlyTriggersToBeClaimedOnAcquisition() throws Exception {
+        Date fireTime = new Date(2010 - 1900, 10, 20);
+        String pausedGroup = id("borgroup");
+        List<TriggerKey> keys = new ArrayList<TriggerKey>();
+        for (String group : asList("borgroup", pausedGroup)) {
+            SimpleTriggerImpl trigger = (SimpleTriggerImpl) newTrigger()
+                    .withIdentity(id("fuuid"), group)
+                    .forJob(JobKey.jobKey("fooid", "bargroup"))
+                    .startAt(fireTime)
+                    .withSchedule(simpleSchedule()
+                            .withIntervalInMinutes(2)
+                            .repeatForever())
+                    .build();
+            trigger.computeFirstFireTime(null);
+            couchdbStore.storeTrigger(trigger, false);
+            keys.add(trigger.getKey());
+        }
+        couchdbStore.pauseTriggers(GroupMatcher.triggerGroupEquals(pausedGroup));
+
+        CouchDbMetrics metrics = couchdbStore.getMetrics();
+        long requestsBefore = metrics.getHttpRequestCount();
+        long allDocsBefore = metrics.getRequestCount("POST _all_docs");
+        List<OperableTrigger> acquired = couchdbStore.acquireNextTriggers(fireTime.getTime(), 10, 0);
+        assertEquals(asList(keys.get(0)), extract(acquired, on(OperableTrigger.class).getKey()));
+        assertEquals(requestsBefore + 3, metrics.getHttpRequestCount());
+        assertEquals(1, metrics.getRequestCount("POST _all_docs") - allDocsBefore);
+    }
+
     @Test
     public void shouldGetTriggerState() throws Exception {
         final String triggerName = id("fuuid1");